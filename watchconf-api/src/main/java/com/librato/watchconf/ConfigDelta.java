@@ -0,0 +1,86 @@
+package com.librato.watchconf;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.base.Optional;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * A change to a configuration: the value before and after, and the
+ * <a href="https://tools.ietf.org/html/rfc6901">JSON pointers</a> of the parts of the document that changed.
+ *
+ * @param <T> The type of configuration that changed.
+ */
+public class ConfigDelta<T> {
+
+    private final Optional<T> previous;
+    private final Optional<T> current;
+    private final Set<String> changedPaths;
+    private final JsonNode tree;
+
+    public ConfigDelta(Optional<T> previous, Optional<T> current, Set<String> changedPaths) {
+        this(previous, current, changedPaths, null);
+    }
+
+    /**
+     * @param tree tree current was bound from, or null if there is none
+     */
+    public ConfigDelta(Optional<T> previous, Optional<T> current, Set<String> changedPaths, JsonNode tree) {
+        this.previous = previous;
+        this.current = current;
+        this.changedPaths = Collections.unmodifiableSet(changedPaths);
+        this.tree = tree;
+    }
+
+    /**
+     * @return the configuration before the change
+     */
+    public Optional<T> getPrevious() {
+        return previous;
+    }
+
+    /**
+     * @return the configuration after the change
+     */
+    public Optional<T> getCurrent() {
+        return current;
+    }
+
+    /**
+     * @return the pointers of every changed value, in sorted order. The empty pointer means the whole document
+     * changed or the adapter could not tell which parts did.
+     */
+    public Set<String> getChangedPaths() {
+        return changedPaths;
+    }
+
+    /**
+     * @return the tree the configuration after the change was bound from, or null if the converter doesn't produce
+     * trees. Do not modify it.
+     */
+    public JsonNode getTree() {
+        return tree;
+    }
+
+    /**
+     * @param pointer a JSON pointer, for example {@code /limits/rateLimit}
+     * @return true if the value at pointer, anything below it, or anything containing it changed
+     */
+    public boolean isChanged(String pointer) {
+        for (String changedPath : changedPaths) {
+            if (changedPath.equals(pointer)
+                    || changedPath.startsWith(pointer + "/")
+                    || pointer.startsWith(changedPath + "/")
+                    || changedPath.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "ConfigDelta{changedPaths=" + changedPaths + "}";
+    }
+}
@@ -0,0 +1,74 @@
+package com.librato.watchconf;
+
+/**
+ * Receives measurements from a single {@link DynamicConfig}. Implementations should be cheap and non-blocking, since
+ * they are called on the thread watching for changes. Set one on an adapter with {@code setMetrics}; ready bindings
+ * for common registries are in {@code com.librato.watchconf.metrics}.
+ */
+public interface ConfigMetrics {
+
+    /**
+     * Discards every measurement. The default for all adapters.
+     */
+    ConfigMetrics NOOP = new ConfigMetrics() {
+        public void reloaded(int bytes) {
+        }
+
+        public void decoded(long nanos) {
+        }
+
+        public void decodeFailed() {
+        }
+
+        public void notified(long nanos) {
+        }
+
+        public void delivered(long lagMillis) {
+        }
+
+        public void applied(long version, long latencyMillis) {
+        }
+    };
+
+    /**
+     * A changed configuration was read from its source.
+     *
+     * @param bytes size of the serialized configuration
+     */
+    void reloaded(int bytes);
+
+    /**
+     * A configuration was converted.
+     *
+     * @param nanos time spent in the converter
+     */
+    void decoded(long nanos);
+
+    /**
+     * A configuration could not be converted and the previous configuration was kept.
+     */
+    void decodeFailed();
+
+    /**
+     * Listeners were notified of a change.
+     *
+     * @param nanos time spent notifying every listener
+     */
+    void notified(long nanos);
+
+    /**
+     * A change was delivered to listeners.
+     *
+     * @param lagMillis time from the source's modification time to delivery, as reported by the source
+     */
+    void delivered(long lagMillis);
+
+    /**
+     * A configuration stamped when it was pushed, see {@link com.librato.watchconf.converter.Stamp}, was applied and
+     * every listener has returned.
+     *
+     * @param version the stamped version
+     * @param latencyMillis time from the push to the listeners returning
+     */
+    void applied(long version, long latencyMillis);
+}
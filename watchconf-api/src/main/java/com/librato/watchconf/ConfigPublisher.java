@@ -0,0 +1,211 @@
+package com.librato.watchconf;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Reactive Streams {@link Publisher} of the values of a {@link DynamicConfig}: {@link Subscriber#onNext} is only
+ * called for values requested with {@link Subscription#request(long)}, and never concurrently for one subscriber.
+ * Each subscription holds at most one undelivered value; a change that arrives before the subscriber asks for more
+ * replaces it, so a slow subscriber skips intermediate versions and only ever receives the latest configuration.
+ * <p>
+ * A subscriber receives the current configuration first, if the config is started and has one, then each change.
+ * Absent configurations are not published, nor are decode errors, which leave the last good configuration in place
+ * as they do for {@link DynamicConfig#get()}. The publisher never completes; cancel the subscription to stop.
+ *
+ * @param <T> The type of configuration referred to by this publisher.
+ */
+public class ConfigPublisher<T> implements Publisher<T> {
+
+    private static final Logger log = LoggerFactory.getLogger(ConfigPublisher.class);
+    private static final Executor directExecutor = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+    private final DynamicConfig<T> dynamicConfig;
+    private final Executor executor;
+
+    /**
+     * Delivers values on the thread that notifies of a change or requests more, so a slow subscriber holds up the
+     * watcher thread of the config.
+     *
+     * @param dynamicConfig config to publish
+     */
+    public ConfigPublisher(DynamicConfig<T> dynamicConfig) {
+        this(dynamicConfig, directExecutor);
+    }
+
+    /**
+     * @param dynamicConfig config to publish
+     * @param executor executor to deliver values on, keeping slow subscribers off the watcher thread
+     */
+    public ConfigPublisher(DynamicConfig<T> dynamicConfig, Executor executor) {
+        Preconditions.checkArgument(dynamicConfig != null, "dynamicConfig cannot be null");
+        Preconditions.checkArgument(executor != null, "executor cannot be null");
+        this.dynamicConfig = dynamicConfig;
+        this.executor = executor;
+    }
+
+    public void subscribe(Subscriber<? super T> subscriber) {
+        Preconditions.checkNotNull(subscriber, "subscriber cannot be null");
+        ConflatingSubscription subscription = new ConflatingSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        subscription.listen();
+    }
+
+    private class ConflatingSubscription implements Subscription, DynamicConfig.ChangeListener<T>, Runnable {
+        private final Subscriber<? super T> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        /**
+         * number of drains requested, only the caller that moves it from 0 runs the drain
+         */
+        private final AtomicInteger pendingDrains = new AtomicInteger();
+        /**
+         * the single undelivered value, guarded by this
+         */
+        private T latest;
+        /**
+         * set once a change is received, so the current configuration read on subscribe cannot replace a newer one
+         */
+        private boolean changed;
+        private Throwable error;
+        private volatile boolean cancelled;
+
+        ConflatingSubscription(Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        void listen() {
+            if (cancelled) {
+                return;
+            }
+
+            try {
+                dynamicConfig.registerListener(this);
+            } catch (Exception ex) {
+                fail(ex);
+                return;
+            }
+
+            synchronized (this) {
+                if (!changed) {
+                    try {
+                        latest = dynamicConfig.get().orNull();
+                    } catch (Exception ex) {
+                        // not started yet, the first change will be published
+                    }
+                }
+            }
+            drain();
+        }
+
+        public void request(long n) {
+            if (n <= 0) {
+                fail(new IllegalArgumentException("request must be positive, was " + n));
+                return;
+            }
+
+            long current;
+            long next;
+            do {
+                current = demand.get();
+                next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            } while (!demand.compareAndSet(current, next));
+            drain();
+        }
+
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                dynamicConfig.removeListener(this);
+                synchronized (this) {
+                    latest = null;
+                }
+            }
+        }
+
+        public void onChange(Optional<T> t) {
+            if (!t.isPresent()) {
+                return;
+            }
+            synchronized (this) {
+                changed = true;
+                latest = t.get();
+            }
+            drain();
+        }
+
+        public void onError(Exception ex) {
+            // the last good configuration stays in place, as it does for get()
+        }
+
+        private void fail(Throwable throwable) {
+            synchronized (this) {
+                error = throwable;
+            }
+            dynamicConfig.removeListener(this);
+            drain();
+        }
+
+        private void drain() {
+            if (pendingDrains.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException ex) {
+                    pendingDrains.set(0);
+                    log.error("executor rejected config delivery", ex);
+                }
+            }
+        }
+
+        /**
+         * Delivers the pending value while there is demand, then any error. Repeats if drains were requested
+         * meanwhile, so a change or request never goes unnoticed.
+         */
+        public void run() {
+            int missed = 1;
+            do {
+                while (!cancelled) {
+                    T t = null;
+                    Throwable throwable;
+                    synchronized (this) {
+                        throwable = error;
+                        if (throwable == null && demand.get() > 0) {
+                            t = latest;
+                            latest = null;
+                        }
+                    }
+                    if (throwable != null) {
+                        cancelled = true;
+                        subscriber.onError(throwable);
+                        break;
+                    }
+                    if (t == null) {
+                        break;
+                    }
+                    if (demand.get() != Long.MAX_VALUE) {
+                        demand.decrementAndGet();
+                    }
+                    try {
+                        subscriber.onNext(t);
+                    } catch (RuntimeException ex) {
+                        log.error("error publishing config, cancelling subscription", ex);
+                        cancel();
+                    }
+                }
+                missed = pendingDrains.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.librato.watchconf;
+
+/**
+ * Notified with the previous and new configuration and the paths that changed between them, so a listener can
+ * rebuild only what depends on the changed parts.
+ *
+ * @param <T> The type of configuration referred to by this DeltaListener.
+ * @see com.librato.watchconf.converter.TreeConverter
+ */
+public interface DeltaListener<T> {
+    public void onDelta(ConfigDelta<T> delta);
+    public void onError(Exception ex);
+}
@@ -2,6 +2,9 @@ package com.librato.watchconf;
 
 import com.google.common.base.Optional;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
 /**
  * A base interface for a watchable configuration.
  *
@@ -36,6 +39,24 @@ public interface DynamicConfig<T> {
      */
     void registerListener(ChangeListener changeListener) throws Exception;
 
+    /**
+     * Register a {@link com.librato.watchconf.DynamicConfig.ChangeListener} to be notified on the given
+     * {@link java.util.concurrent.Executor} instead of the thread watching for changes, so a slow listener cannot
+     * delay other listeners or further changes. Changes that arrive while the listener is busy are coalesced and only
+     * the latest value is delivered. Any executor may be used, including a virtual thread per task executor.
+     * <p>
+     * The default implementation registers a wrapper around changeListener that equals changeListener, so
+     * {@link #removeListener} removes it given changeListener if it calls {@link Object#equals} on the registered
+     * listeners.
+     *
+     * @param changeListener {@link com.librato.watchconf.DynamicConfig.ChangeListener} to register.
+     * @param executor executor to deliver notifications on.
+     * @throws Exception cannot register listener
+     */
+    default void registerListener(ChangeListener changeListener, Executor executor) throws Exception {
+        registerListener(new ExecutorChangeListener(changeListener, executor));
+    }
+
     /**
      * Remove a {@link com.librato.watchconf.DynamicConfig.ChangeListener}
      *
@@ -48,6 +69,30 @@ public interface DynamicConfig<T> {
      */
     void start() throws Exception;
 
+    /**
+     * Start the adapter without blocking the caller. Use {@link DynamicConfigs#startAll} to start many adapters in
+     * parallel.
+     * <p>
+     * The default implementation runs {@link #start()} and {@link #get()} on a shared pool of daemon threads, so
+     * blocking starts neither occupy the common pool nor keep the JVM alive.
+     *
+     * @return completes with the configuration once the adapter is started, or exceptionally if it cannot start
+     */
+    default CompletableFuture<Optional<T>> startAsync() {
+        final CompletableFuture<Optional<T>> future = new CompletableFuture<Optional<T>>();
+        DynamicConfigs.startExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    start();
+                    future.complete(get());
+                } catch (Throwable ex) {
+                    future.completeExceptionally(ex);
+                }
+            }
+        });
+        return future;
+    }
+
     /**
      * Shutdown a dynamic configuration
      */
@@ -0,0 +1,309 @@
+package com.librato.watchconf;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.librato.watchconf.adapter.file.DynamicConfigFileAdapter;
+import com.librato.watchconf.adapter.redis.DynamicConfigRedisAdapter;
+import com.librato.watchconf.adapter.zookeeper.DynamicConfigZKAdapter;
+import com.librato.watchconf.converter.Converter;
+import org.apache.curator.framework.CuratorFramework;
+import redis.clients.jedis.JedisPool;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+/**
+ * Shares one adapter between every consumer of the same configuration, so a configuration read in several places is
+ * watched and decoded once and the result fanned out to all of them. Adapters are keyed by backend, path, type and
+ * converter; backends such as a {@link CuratorFramework} are compared by identity and converters by
+ * {@link Object#equals(Object)}.
+ * <p>
+ * Each consumer gets its own {@link DynamicConfig} handle. The shared adapter is started by the first handle to call
+ * {@link DynamicConfig#start()} or {@link DynamicConfig#startAsync()}, and {@link DynamicConfig#shutdown()} on a
+ * handle removes the listeners registered through it and releases it. Releasing the last handle shuts the adapter
+ * down, stopping its watch; a later acquire creates a new one.
+ */
+public class DynamicConfigRegistry {
+
+    private static final DynamicConfigRegistry defaultRegistry = new DynamicConfigRegistry();
+    private final Map<Key, Entry<?>> entries = new HashMap<Key, Entry<?>>();
+
+    /**
+     * Creates the adapter for a configuration the first time it is acquired.
+     *
+     * @param <T> the type of configuration
+     */
+    public interface Factory<T> {
+        /**
+         * @return a new, unstarted adapter
+         */
+        DynamicConfig<T> create() throws Exception;
+    }
+
+    /**
+     * @return a registry shared by the whole process
+     */
+    public static DynamicConfigRegistry getDefault() {
+        return defaultRegistry;
+    }
+
+    /**
+     * Acquire a handle to the configuration in a ZooKeeper znode, see
+     * {@link com.librato.watchconf.adapter.zookeeper.DynamicConfigZKAdapter}.
+     */
+    public <T> DynamicConfig<T> zookeeper(final CuratorFramework curatorFramework, final String path, final Class<T> clazz, final Converter<T, byte[]> converter) throws Exception {
+        return acquire(curatorFramework, path, clazz, converter, new Factory<T>() {
+            public DynamicConfig<T> create() throws Exception {
+                return new DynamicConfigZKAdapter<T>(clazz, path, curatorFramework, converter) {
+                };
+            }
+        });
+    }
+
+    /**
+     * Acquire a handle to the configuration in a Redis key, see
+     * {@link com.librato.watchconf.adapter.redis.DynamicConfigRedisAdapter}.
+     */
+    public <T> DynamicConfig<T> redis(final JedisPool jedisPool, final String key, final Class<T> clazz, final Converter<T, byte[]> converter) throws Exception {
+        return acquire(jedisPool, key, clazz, converter, new Factory<T>() {
+            public DynamicConfig<T> create() throws Exception {
+                return new DynamicConfigRedisAdapter<T>(clazz, key, jedisPool, converter) {
+                };
+            }
+        });
+    }
+
+    /**
+     * Acquire a handle to the configuration in a file, see
+     * {@link com.librato.watchconf.adapter.file.DynamicConfigFileAdapter}. Paths naming the same file, such as
+     * {@code conf/a.yml} and {@code ./conf/a.yml}, share an adapter.
+     */
+    public <T> DynamicConfig<T> file(final String path, final Class<T> clazz, final Converter<T, byte[]> converter) throws Exception {
+        Preconditions.checkArgument(path != null && !path.isEmpty(), "path cannot be null or blank");
+        String normalized = new File(path).getAbsoluteFile().toPath().normalize().toString();
+        return acquire(DynamicConfigFileAdapter.class, normalized, clazz, converter, new Factory<T>() {
+            public DynamicConfig<T> create() throws Exception {
+                return new DynamicConfigFileAdapter<T>(clazz, path, converter) {
+                };
+            }
+        });
+    }
+
+    /**
+     * Acquire a handle to a shared adapter, creating it with factory if there is none for this key. Use this for
+     * adapters that need configuring before they are started, such as one with a
+     * {@link com.librato.watchconf.adapter.SnapshotCache}; the configuration of the first acquire wins.
+     *
+     * @param backend client the adapter reads from, compared by identity
+     * @param path path of the configuration in backend
+     * @param clazz type of the configuration
+     * @param converter converter of the configuration
+     * @param factory creates the adapter if it is not shared yet
+     * @return a handle, shut it down to release it
+     */
+    public <T> DynamicConfig<T> acquire(Object backend, String path, Class<T> clazz, Converter<T, ?> converter, Factory<T> factory) throws Exception {
+        Preconditions.checkArgument(backend != null, "backend cannot be null");
+        Preconditions.checkArgument(path != null && !path.isEmpty(), "path cannot be null or blank");
+        Preconditions.checkArgument(clazz != null, "clazz cannot be null");
+        Preconditions.checkArgument(converter != null, "converter cannot be null");
+        Preconditions.checkArgument(factory != null, "factory cannot be null");
+
+        Key key = new Key(backend, path, clazz, converter);
+        synchronized (entries) {
+            Entry<T> entry = (Entry<T>) entries.get(key);
+            if (entry == null) {
+                DynamicConfig<T> dynamicConfig = factory.create();
+                Preconditions.checkArgument(dynamicConfig != null, "factory cannot return null");
+                entry = new Entry<T>(key, dynamicConfig);
+                entries.put(key, entry);
+            }
+            entry.references++;
+            return new Handle<T>(entry);
+        }
+    }
+
+    /**
+     * @return number of shared adapters
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private void release(Entry<?> entry) throws Exception {
+        synchronized (entries) {
+            if (--entry.references > 0) {
+                return;
+            }
+            entries.remove(entry.key);
+        }
+        entry.dynamicConfig.shutdown();
+    }
+
+    private static class Key {
+        private final Object backend;
+        private final String path;
+        private final Class<?> clazz;
+        private final Converter<?, ?> converter;
+
+        Key(Object backend, String path, Class<?> clazz, Converter<?, ?> converter) {
+            this.backend = backend;
+            this.path = path;
+            this.clazz = clazz;
+            this.converter = converter;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) o;
+            return backend == that.backend && path.equals(that.path) && clazz == that.clazz && converter.equals(that.converter);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(System.identityHashCode(backend), path, clazz, converter);
+        }
+    }
+
+    private static class Entry<T> {
+        private final Key key;
+        private final DynamicConfig<T> dynamicConfig;
+        /**
+         * guarded by the registry's entries
+         */
+        private int references;
+        /**
+         * completes once the adapter is started, null until a handle starts it or after a failed start
+         */
+        private CompletableFuture<Optional<T>> started;
+
+        Entry(Key key, DynamicConfig<T> dynamicConfig) {
+            this.key = key;
+            this.dynamicConfig = dynamicConfig;
+        }
+
+        synchronized CompletableFuture<Optional<T>> start() {
+            if (started == null) {
+                final CompletableFuture<Optional<T>> future = dynamicConfig.startAsync();
+                started = future;
+                future.whenComplete(new BiConsumer<Optional<T>, Throwable>() {
+                    public void accept(Optional<T> t, Throwable ex) {
+                        if (ex != null) {
+                            retry(future);
+                        }
+                    }
+                });
+            }
+            return started;
+        }
+
+        /**
+         * lets the next start try again after future failed
+         */
+        private synchronized void retry(CompletableFuture<Optional<T>> future) {
+            if (started == future) {
+                started = null;
+            }
+        }
+    }
+
+    private class Handle<T> implements DynamicConfig<T> {
+        private final Entry<T> entry;
+        private final List<ChangeListener> changeListeners = new CopyOnWriteArrayList<ChangeListener>();
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        Handle(Entry<T> entry) {
+            this.entry = entry;
+        }
+
+        public Optional<T> get() throws Exception {
+            checkNotReleased();
+            return entry.dynamicConfig.get();
+        }
+
+        public void registerListener(ChangeListener changeListener) throws Exception {
+            checkNotReleased();
+            entry.dynamicConfig.registerListener(changeListener);
+            changeListeners.add(changeListener);
+        }
+
+        public void registerListener(ChangeListener changeListener, Executor executor) throws Exception {
+            checkNotReleased();
+            entry.dynamicConfig.registerListener(changeListener, executor);
+            changeListeners.add(changeListener);
+        }
+
+        public void removeListener(ChangeListener changeListener) {
+            if (changeListeners.remove(changeListener)) {
+                entry.dynamicConfig.removeListener(changeListener);
+            }
+        }
+
+        public void start() throws Exception {
+            try {
+                startAsync().get();
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof Exception) {
+                    throw (Exception) ex.getCause();
+                }
+                throw ex;
+            }
+        }
+
+        /**
+         * @return completes with the current configuration when the shared adapter is started, the future is this
+         * handle's own so completing or cancelling it does not affect other handles
+         */
+        public CompletableFuture<Optional<T>> startAsync() {
+            checkNotReleased();
+            final CompletableFuture<Optional<T>> future = new CompletableFuture<Optional<T>>();
+            entry.start().whenComplete(new BiConsumer<Optional<T>, Throwable>() {
+                public void accept(Optional<T> t, Throwable ex) {
+                    if (ex != null) {
+                        future.completeExceptionally(ex);
+                        return;
+                    }
+                    // the shared future holds the configuration of the first start, which may have changed since
+                    try {
+                        future.complete(entry.dynamicConfig.get());
+                    } catch (Exception e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+            });
+            return future;
+        }
+
+        /**
+         * Removes the listeners registered through this handle and releases it, shutting the shared adapter down if
+         * this was the last handle. Releasing a handle again does nothing.
+         */
+        public void shutdown() throws Exception {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            for (ChangeListener changeListener : changeListeners) {
+                entry.dynamicConfig.removeListener(changeListener);
+            }
+            changeListeners.clear();
+            release(entry);
+        }
+
+        private void checkNotReleased() {
+            Preconditions.checkState(!released.get(), "handle has been released");
+        }
+    }
+}
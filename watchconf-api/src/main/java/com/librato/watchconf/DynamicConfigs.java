@@ -0,0 +1,44 @@
+package com.librato.watchconf;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Helpers for working with several {@link DynamicConfig}s.
+ */
+public final class DynamicConfigs {
+
+    /**
+     * runs blocking starts for {@link DynamicConfig#startAsync()}, threads are created on demand so starts never queue
+     */
+    static final Executor startExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+            .setNameFormat("watchconf-start-%d")
+            .setDaemon(true)
+            .build());
+
+    private DynamicConfigs() {
+    }
+
+    /**
+     * Starts every configuration in parallel, so reads of the backend, such as checking for and creating znodes and
+     * priming caches, overlap rather than running one after another.
+     *
+     * @param dynamicConfigs configurations to start
+     * @return completes once every configuration is started and has its first value, or exceptionally with the first
+     * failure once all of them have completed
+     */
+    public static CompletableFuture<Void> startAll(Iterable<? extends DynamicConfig<?>> dynamicConfigs) {
+        Preconditions.checkArgument(dynamicConfigs != null, "dynamicConfigs cannot be null");
+        List<CompletableFuture<?>> futures = new ArrayList<CompletableFuture<?>>();
+        for (DynamicConfig<?> dynamicConfig : dynamicConfigs) {
+            futures.add(dynamicConfig.startAsync());
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()]));
+    }
+}
@@ -0,0 +1,109 @@
+package com.librato.watchconf;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.librato.watchconf.DynamicConfig.ChangeListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A {@link ChangeListener} that hands notifications to a delegate on an {@link Executor} rather than on the
+ * watcher thread. Each listener holds at most one pending change and one pending error; a notification that
+ * arrives while the delegate is still busy replaces the pending one, so a slow delegate only ever sees the latest
+ * value. Notifications for a single delegate are never delivered concurrently.
+ * <p>
+ * The wrapper equals its delegate, so {@link DynamicConfig#removeListener} removes it when given the delegate, in
+ * implementations that call {@link Object#equals} on the registered listeners.
+ *
+ * @param <T> The type of configuration referred to by this ChangeListener
+ */
+class ExecutorChangeListener<T> implements ChangeListener<T>, Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(ExecutorChangeListener.class);
+    private final ChangeListener<T> delegate;
+    private final Executor executor;
+    private final AtomicReference<Optional<T>> pendingChange = new AtomicReference<Optional<T>>();
+    private final AtomicReference<Exception> pendingError = new AtomicReference<Exception>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    /**
+     * @param delegate listener to notify
+     * @param executor executor to notify delegate on
+     */
+    ExecutorChangeListener(ChangeListener<T> delegate, Executor executor) {
+        Preconditions.checkArgument(delegate != null, "changeListener cannot be null");
+        Preconditions.checkArgument(executor != null, "executor cannot be null");
+        this.delegate = delegate;
+        this.executor = executor;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof ExecutorChangeListener) {
+            return delegate.equals(((ExecutorChangeListener) o).delegate);
+        }
+        return delegate.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        return delegate.hashCode();
+    }
+
+    @Override
+    public void onChange(Optional<T> t) {
+        pendingChange.set(t);
+        schedule();
+    }
+
+    @Override
+    public void onError(Exception ex) {
+        pendingError.set(ex);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException ex) {
+                scheduled.set(false);
+                log.error("executor rejected change notification", ex);
+            }
+        }
+    }
+
+    /**
+     * Drains pending notifications. Errors are delivered ahead of a pending change so the delegate finishes on the
+     * latest value.
+     */
+    @Override
+    public void run() {
+        do {
+            Exception ex = pendingError.getAndSet(null);
+            if (ex != null) {
+                try {
+                    delegate.onError(ex);
+                } catch (RuntimeException e) {
+                    log.error("error notifying listener", e);
+                }
+            }
+
+            Optional<T> t = pendingChange.getAndSet(null);
+            if (t != null) {
+                try {
+                    delegate.onChange(t);
+                } catch (RuntimeException e) {
+                    log.error("error notifying listener", e);
+                }
+            }
+
+            scheduled.set(false);
+        } while ((pendingChange.get() != null || pendingError.get() != null) && scheduled.compareAndSet(false, true));
+    }
+}
@@ -1,73 +1,600 @@
 package com.librato.watchconf.adapter;
 
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
-import com.librato.watchconf.DynamicConfig;
+import com.librato.watchconf.ConfigDelta;
+import com.librato.watchconf.DeltaListener;
 import com.librato.watchconf.converter.Converter;
+import com.librato.watchconf.converter.JsonDiff;
+import com.librato.watchconf.converter.Stamp;
+import com.librato.watchconf.converter.StreamingConverter;
+import com.librato.watchconf.converter.TreeConverter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.lang.reflect.ParameterizedType;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicReference;
 
-public abstract class AbstractConfigAdapter<T, V> implements DynamicConfig<T> {
+public abstract class AbstractConfigAdapter<T, V> extends AbstractDynamicConfig<T> {
 
     private static final Logger log = LoggerFactory.getLogger(AbstractConfigAdapter.class);
-    protected final List<ChangeListener> changeListenerList = new ArrayList();
-    protected final AtomicReference<Optional<T>> config = new AtomicReference(Optional.absent());
+    private static final long MAX_RECONCILE_BACKOFF_MILLIS = 30000;
+    private static final Set<String> ROOT_CHANGED = Collections.singleton(JsonDiff.ROOT);
+    protected final ListenerRegistry<DeltaListener> deltaListeners = new ListenerRegistry<DeltaListener>(new DeltaListener[0]);
     protected final Converter<T, V> converter;
     protected final Class<T> clazz;
-    protected final AtomicBoolean started = new AtomicBoolean(false);
+    private final AtomicReference<ConfigDelta<T>> pendingDelta = new AtomicReference<ConfigDelta<T>>();
+    /**
+     * latest serialized configuration not yet decoded, a V or a ByteBuffer, only set when decoding lazily
+     */
+    private final AtomicReference<Object> pending = new AtomicReference<Object>();
+    /**
+     * backend version of pending, guarded by decodeLock
+     */
+    private long pendingVersion = -1;
+    /**
+     * configuration decoded lazily by a reader but not yet written to the {@link SnapshotCache}, guarded by
+     * decodeLock
+     */
+    private Object unsnapshotted;
+    /**
+     * backend version of unsnapshotted, guarded by decodeLock
+     */
+    private long unsnapshottedVersion = -1;
+    private final Object decodeLock = new Object();
+    private volatile boolean lazy;
+    /**
+     * stamp of the configuration set but not yet notified, null if it wasn't stamped
+     */
+    private final AtomicReference<Stamp> pendingStamp = new AtomicReference<Stamp>();
+    private volatile long appliedVersion = -1;
+    /**
+     * tree of the current config, kept only while there are delta listeners
+     */
+    private volatile JsonNode tree;
+    private volatile SnapshotCache snapshotCache;
+    private final Object snapshotLock = new Object();
+    /**
+     * backend version of the snapshot last written, guarded by snapshotLock
+     */
+    private long snapshotVersion = -1;
 
     protected AbstractConfigAdapter(Class<T> clazz, Converter<T, V> converter, Optional<ChangeListener<T>> changeListener) {
+        super(changeListener);
         Preconditions.checkArgument(converter != null, "converter cannot be null");
         this.clazz = clazz;
         this.converter = converter;
+    }
 
-        if (changeListener.isPresent()) {
-            registerListener(changeListener.get());
-        }
+    /**
+     * Decode lazily: keep only the latest serialized configuration when it changes, and decode it on the first
+     * {@link #get()} after the change. Concurrent callers wait for that single decode rather than decoding again.
+     * A change is still decoded immediately when listeners are registered, since they are handed the new value.
+     * Parse errors are reported to listeners on the get that decodes, and the previous configuration is kept.
+     *
+     * @param lazy true to decode on first read
+     */
+    public void setLazy(boolean lazy) {
+        this.lazy = lazy;
+    }
+
+    /**
+     * Keep the last successfully decoded configuration in a local {@link SnapshotCache}. Adapters that support it
+     * serve the snapshot from {@link #start()} without waiting on the backend, and reconcile with the backend in the
+     * background. Must be set before the adapter is started. When decoding {@link #setLazy lazily} the snapshot is
+     * written when the next change arrives, so it may lag the backend by a version until then.
+     *
+     * @param snapshotCache where to keep the snapshot, null to disable
+     */
+    public void setSnapshotCache(SnapshotCache snapshotCache) {
+        this.snapshotCache = snapshotCache;
     }
 
+    @Override
     public Optional<T> get() throws Exception {
         Preconditions.checkArgument(started.get(), "Adapter must be started before calling get");
+        if (pending.get() != null) {
+            decodePending();
+        }
         return config.get();
     }
 
-    protected void getAndSet(V v) {
+    /**
+     * @return version of the last {@link Stamp stamped} configuration applied, -1 if none has been
+     */
+    public long getAppliedVersion() {
+        return appliedVersion;
+    }
+
+    /**
+     * Converts the serialized configuration and publishes it as the current value, or, when decoding lazily and no
+     * delta listeners need the tree, keeps it to be converted on first read. A {@link Stamp} is stripped before
+     * converting and reported once listeners have been notified.
+     *
+     * @param v serialized configuration
+     * @return true if the configuration was converted and published or kept, false if conversion failed and the
+     * previous configuration was kept
+     */
+    protected boolean getAndSet(V v) {
+        return getAndSet(v, -1);
+    }
+
+    /**
+     * As {@link #getAndSet(Object)}, also recording the backend's version of the configuration in the
+     * {@link SnapshotCache} once it is decoded.
+     *
+     * @param v serialized configuration
+     * @param version backend version of v, -1 if the backend has none
+     * @return true if the configuration was converted and published or kept, false if conversion failed and the
+     * previous configuration was kept
+     */
+    protected boolean getAndSet(V v, long version) {
+        Stamp stamp = null;
+        if (v instanceof byte[]) {
+            stamp = Stamp.read((byte[]) v);
+            if (stamp != null) {
+                v = (V) Stamp.strip((byte[]) v);
+            }
+        }
+        return set(v, stamp, version);
+    }
+
+    /**
+     * As {@link #getAndSet(Object, long)} for a configuration serialized in a buffer, such as a memory-mapped file,
+     * which is converted in place by a {@link StreamingConverter} rather than copied to a V. The buffer is copied
+     * only to parse a tree for delta listeners or to write the {@link SnapshotCache}, and must not change until the
+     * next call, since decoding lazily may read it later.
+     *
+     * @param buffer serialized configuration, from its position to its limit
+     * @param version backend version of the buffer's content, -1 if the backend has none
+     * @return true if the configuration was converted and published or kept, false if conversion failed and the
+     * previous configuration was kept
+     */
+    protected boolean getAndSet(ByteBuffer buffer, long version) {
+        Preconditions.checkState(converter instanceof StreamingConverter, "buffers require a StreamingConverter");
+        Stamp stamp = Stamp.read(buffer);
+        ByteBuffer payload = buffer.duplicate();
+        if (stamp != null) {
+            payload.position(payload.position() + Stamp.HEADER_LENGTH);
+        }
+        return set(payload.slice(), stamp, version);
+    }
+
+    /**
+     * @param v serialized configuration without its stamp, a V or a ByteBuffer
+     */
+    private boolean set(Object v, Stamp stamp, long version) {
+        reloaded(v);
+        boolean set;
+        Object decoded;
+        long decodedVersion;
+        synchronized (decodeLock) {
+            if (lazy && deltaListeners.isEmpty()) {
+                pending.set(v);
+                pendingVersion = version;
+                set = true;
+                // a lazy decode happens on a reader's thread, so its snapshot is written here instead
+                decoded = unsnapshotted;
+                decodedVersion = unsnapshottedVersion;
+            } else {
+                pending.set(null);
+                set = decode(v);
+                decoded = set ? v : null;
+                decodedVersion = version;
+            }
+            unsnapshotted = null;
+        }
+
+        if (decoded != null) {
+            snapshot(decoded, decodedVersion);
+        }
+
+        if (set) {
+            stamped(stamp);
+        }
+        return set;
+    }
+
+    /**
+     * Records the stamp of a configuration that was just set, to be reported once listeners are notified.
+     *
+     * @param stamp the configuration's stamp, null if it wasn't stamped
+     */
+    protected void stamped(Stamp stamp) {
+        pendingStamp.set(stamp);
+    }
+
+    /**
+     * Reports a changed serialized configuration read from the source.
+     */
+    private void reloaded(Object v) {
+        if (v instanceof byte[]) {
+            metrics.reloaded(((byte[]) v).length);
+        } else if (v instanceof ByteBuffer) {
+            metrics.reloaded(((ByteBuffer) v).remaining());
+        }
+    }
+
+    /**
+     * Decodes the pending configuration, if any, into the current value.
+     *
+     * @return false if the pending configuration could not be converted
+     */
+    private boolean decodePending() {
+        synchronized (decodeLock) {
+            Object v = pending.get();
+            if (v == null) {
+                return true;
+            }
+
+            // cleared only once decoded, so concurrent readers wait on the lock rather than reading the old value
+            boolean decoded = decode(v);
+            if (decoded && snapshotCache != null) {
+                // written by the watcher thread with the next change, keeping file IO off the reader's thread
+                unsnapshotted = v;
+                unsnapshottedVersion = pendingVersion;
+            }
+            pending.set(null);
+            return decoded;
+        }
+    }
+
+    /**
+     * Records a successfully decoded configuration in the {@link SnapshotCache}, if there is one. Failing to write
+     * the snapshot only loses the fast start, so it is logged rather than reported to listeners. Written outside
+     * decodeLock, so an older version that loses a race with a newer one is skipped.
+     */
+    private void snapshot(Object v, long version) {
+        SnapshotCache cache = snapshotCache;
+        if (cache == null || !(v instanceof byte[] || v instanceof ByteBuffer)) {
+            return;
+        }
+
+        synchronized (snapshotLock) {
+            if (version != -1 && version < snapshotVersion) {
+                return;
+            }
+            try {
+                cache.write(v instanceof ByteBuffer ? bytes((ByteBuffer) v) : (byte[]) v, version);
+                snapshotVersion = version;
+            } catch (Exception ex) {
+                log.warn("unable to write snapshot", ex);
+            }
+        }
+    }
+
+    /**
+     * Decodes the {@link SnapshotCache}'s snapshot, if there is one, into the current value without notifying
+     * listeners.
+     *
+     * @return the snapshot served, null if there is no cache, no snapshot, or it could not be decoded
+     */
+    protected SnapshotCache.Snapshot restoreSnapshot() {
+        SnapshotCache cache = snapshotCache;
+        SnapshotCache.Snapshot snapshot = cache == null ? null : cache.read();
+        if (snapshot == null) {
+            return null;
+        }
+
+        synchronized (decodeLock) {
+            pending.set(null);
+            if (!decode(snapshot.getBytes())) {
+                return null;
+            }
+        }
+
+        log.info("serving snapshot version {} until the backend is reconciled", snapshot.getVersion());
+        return snapshot;
+    }
+
+    /**
+     * Runs reconciliation with the backend on a daemon thread, retrying with backoff until it succeeds. Errors are
+     * reported to listeners, which keep the snapshot configuration meanwhile.
+     *
+     * @param name thread name
+     * @param reconcile connects to the backend and publishes its configuration
+     */
+    protected void reconcileAsync(String name, final Callable<?> reconcile) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                long backoffMillis = 100;
+                while (started.get()) {
+                    try {
+                        reconcile.call();
+                        return;
+                    } catch (InterruptedException ex) {
+                        return;
+                    } catch (Exception ex) {
+                        log.error("unable to reconcile snapshot with backend, retrying in " + backoffMillis + "ms", ex);
+                        notifyListenersOnError(ex);
+                    }
+
+                    try {
+                        Thread.sleep(backoffMillis);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    backoffMillis = Math.min(backoffMillis * 2, MAX_RECONCILE_BACKOFF_MILLIS);
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @param v serialized configuration, a V or a ByteBuffer
+     */
+    private boolean decode(Object v) {
         try {
-            config.set(Optional.of(converter.toDomain(v, clazz)));
+            long start = System.nanoTime();
+            T t;
+            JsonNode node = null;
+            if (!deltaListeners.isEmpty() && converter instanceof TreeConverter) {
+                // delta listeners need the tree, which is only parsed from a byte[]
+                TreeConverter<T> treeConverter = (TreeConverter<T>) converter;
+                node = treeConverter.toTree(v instanceof ByteBuffer ? bytes((ByteBuffer) v) : (byte[]) v);
+                t = treeConverter.fromTree(node, clazz);
+            } else if (v instanceof ByteBuffer) {
+                t = ((StreamingConverter<T>) converter).toDomain(((ByteBuffer) v).duplicate(), clazz);
+            } else {
+                t = converter.toDomain((V) v, clazz);
+            }
+            metrics.decoded(System.nanoTime() - start);
+            publish(t, node);
+            return true;
         } catch (Exception ex) {
             log.error("unable to parse config", ex);
+            metrics.decodeFailed();
             notifyListenersOnError(ex);
+            return false;
         }
     }
 
-    public void registerListener(ChangeListener changeListener) {
-        changeListenerList.add(changeListener);
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Binds a tree, such as the current configuration with a patch applied, and publishes it as the current value.
+     * Requires a {@link TreeConverter}.
+     *
+     * @param node tree of the new configuration
+     * @return false if the tree could not be bound and the previous configuration was kept
+     */
+    protected boolean setTree(JsonNode node) {
+        synchronized (decodeLock) {
+            pending.set(null);
+            try {
+                long start = System.nanoTime();
+                T t = ((TreeConverter<T>) converter).fromTree(node, clazz);
+                metrics.decoded(System.nanoTime() - start);
+                publish(t, node);
+                return true;
+            } catch (Exception ex) {
+                log.error("unable to bind config", ex);
+                metrics.decodeFailed();
+                notifyListenersOnError(ex);
+                return false;
+            }
+        }
     }
 
+    /**
+     * Publishes a converted configuration as the current value, recording the delta from the previous value for
+     * {@link DeltaListener}s. Without both trees the whole document is reported as changed. A delta not yet notified,
+     * such as that of a snapshot published just before a patch, is merged with this one rather than replaced, so its
+     * changed paths are not lost. The first configuration, which listeners are not notified of, records no delta.
+     *
+     * @param t converted configuration
+     * @param node tree t was bound from, or null if the converter doesn't produce trees
+     */
+    protected void publish(T t, JsonNode node) {
+        Optional<T> previous = config.getAndSet(Optional.of(t));
+        JsonNode previousNode = tree;
+        if (deltaListeners.isEmpty()) {
+            tree = null;
+            return;
+        }
+
+        tree = node;
+        if (!previous.isPresent()) {
+            pendingDelta.set(null);
+            return;
+        }
+
+        Set<String> changedPaths = previousNode != null && node != null ? JsonDiff.changedPaths(previousNode, node) : ROOT_CHANGED;
+        ConfigDelta<T> unnotified;
+        ConfigDelta<T> delta;
+        do {
+            unnotified = pendingDelta.get();
+            delta = unnotified == null
+                    ? new ConfigDelta<T>(previous, Optional.of(t), changedPaths, node)
+                    : new ConfigDelta<T>(unnotified.getPrevious(), Optional.of(t), union(unnotified.getChangedPaths(), changedPaths), node);
+        } while (!pendingDelta.compareAndSet(unnotified, delta));
+    }
+
+    private static Set<String> union(Set<String> a, Set<String> b) {
+        if (a.contains(JsonDiff.ROOT) || b.contains(JsonDiff.ROOT)) {
+            return ROOT_CHANGED;
+        }
+        Set<String> union = new TreeSet<String>(a);
+        union.addAll(b);
+        return union;
+    }
+
+    /**
+     * Register a {@link DeltaListener} to be notified of the previous and new configuration and the paths that
+     * changed. Paths are computed only if the converter is a {@link TreeConverter}, otherwise every delta reports
+     * the whole document as changed.
+     *
+     * @param deltaListener {@link DeltaListener} to register.
+     */
+    public void registerDeltaListener(DeltaListener<T> deltaListener) {
+        Preconditions.checkArgument(deltaListener != null, "deltaListener cannot be null");
+        deltaListeners.add(deltaListener);
+    }
+
+    public void removeDeltaListener(DeltaListener<T> deltaListener) {
+        deltaListeners.remove(deltaListener);
+    }
+
+    /**
+     * Register a {@link com.librato.watchconf.DynamicConfig.ChangeListener} notified only when the part of the
+     * configuration at a JSON pointer changes. Only that part is bound to clazz, and only when it changes. The
+     * listener receives absent if nothing is at the pointer. Requires a {@link TreeConverter}.
+     *
+     * @param pointer JSON pointer, for example {@code /limits/rateLimit}
+     * @param clazz class to bind the part at pointer to
+     * @param changeListener {@link com.librato.watchconf.DynamicConfig.ChangeListener} to register.
+     * @param <P> type of the part at pointer
+     */
+    public <P> void registerListener(String pointer, Class<P> clazz, ChangeListener<P> changeListener) {
+        Preconditions.checkArgument(changeListener != null, "changeListener cannot be null");
+        Preconditions.checkArgument(converter instanceof TreeConverter, "path listeners require a TreeConverter");
+        deltaListeners.add(new PointerChangeListener<P>(JsonPointer.compile(pointer), clazz, changeListener));
+    }
+
+    /**
+     * Register a {@link com.librato.watchconf.DynamicConfig.ChangeListener} notified only when a projection of the
+     * configuration, such as a getter, returns a value that is not equal to the one it returned before the change.
+     *
+     * @param projection function from the configuration to the value of interest
+     * @param changeListener {@link com.librato.watchconf.DynamicConfig.ChangeListener} to register.
+     * @param <P> type of the projected value
+     */
+    public <P> void registerListener(Function<T, P> projection, ChangeListener<P> changeListener) {
+        Preconditions.checkArgument(changeListener != null, "changeListener cannot be null");
+        Preconditions.checkArgument(projection != null, "projection cannot be null");
+        deltaListeners.add(new ProjectionChangeListener<P>(projection, changeListener));
+    }
+
+    @Override
     public void removeListener(ChangeListener changeListener) {
-        changeListenerList.remove(changeListener);
+        super.removeListener(changeListener);
+        for (DeltaListener registered : deltaListeners.snapshot()) {
+            if (registered instanceof ScopedChangeListener && ((ScopedChangeListener) registered).delegate.equals(changeListener)) {
+                deltaListeners.remove(registered);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Notifies listeners of the current configuration, decoding it first if it is pending. Leaves a pending
+     * configuration undecoded if there are no listeners.
+     */
+    protected void notifyListeners() {
+        if (!changeListenerList.isEmpty() || !deltaListeners.isEmpty()) {
+            if (!decodePending()) {
+                return;
+            }
+
+            long start = System.nanoTime();
+            notifyListeners(config.get());
+            metrics.notified(System.nanoTime() - start);
+        }
+
+        Stamp stamp = pendingStamp.getAndSet(null);
+        if (stamp != null) {
+            appliedVersion = stamp.getVersion();
+            metrics.applied(stamp.getVersion(), System.currentTimeMillis() - stamp.getTimestampMillis());
+        }
     }
 
+    @Override
     protected void notifyListeners(Optional<T> t) {
-        for (ChangeListener changeListener : changeListenerList) {
-            changeListener.onChange(t);
+        super.notifyListeners(t);
+        ConfigDelta<T> delta = pendingDelta.getAndSet(null);
+        if (delta == null || delta.getChangedPaths().isEmpty()) {
+            return;
+        }
+
+        for (DeltaListener deltaListener : deltaListeners.snapshot()) {
+            deltaListener.onDelta(delta);
         }
     }
 
+    @Override
     protected void notifyListenersOnError(Exception ex) {
-        for (ChangeListener changeListener : changeListenerList) {
-            changeListener.onError(ex);
+        super.notifyListenersOnError(ex);
+        for (DeltaListener deltaListener : deltaListeners.snapshot()) {
+            deltaListener.onError(ex);
         }
     }
 
-    @Override
-    public void shutdown() throws Exception {
-        // NO-OP
+    /**
+     * Adapts a {@link com.librato.watchconf.DynamicConfig.ChangeListener} on part of the configuration to the
+     * deltas of the whole.
+     */
+    private abstract class ScopedChangeListener<P> implements DeltaListener<T> {
+        protected final ChangeListener<P> delegate;
+
+        ScopedChangeListener(ChangeListener<P> delegate) {
+            this.delegate = delegate;
+        }
+
+        public void onError(Exception ex) {
+            delegate.onError(ex);
+        }
+    }
+
+    private class PointerChangeListener<P> extends ScopedChangeListener<P> {
+        private final JsonPointer pointer;
+        private final Class<P> clazz;
+
+        PointerChangeListener(JsonPointer pointer, Class<P> clazz, ChangeListener<P> delegate) {
+            super(delegate);
+            this.pointer = pointer;
+            this.clazz = clazz;
+        }
+
+        public void onDelta(ConfigDelta<T> delta) {
+            if (!delta.isChanged(pointer.toString())) {
+                return;
+            }
+
+            // the tree the delta was computed from, a later publish may have replaced the adapter's tree already
+            JsonNode current = delta.getTree();
+            JsonNode node = current == null ? null : current.at(pointer);
+            if (node == null || node.isMissingNode()) {
+                delegate.onChange(Optional.<P>absent());
+                return;
+            }
+
+            try {
+                delegate.onChange(Optional.fromNullable(((TreeConverter<T>) converter).fromTree(node, clazz)));
+            } catch (Exception ex) {
+                log.error("unable to parse config at " + pointer, ex);
+                delegate.onError(ex);
+            }
+        }
+    }
+
+    private class ProjectionChangeListener<P> extends ScopedChangeListener<P> {
+        private final Function<T, P> projection;
+
+        ProjectionChangeListener(Function<T, P> projection, ChangeListener<P> delegate) {
+            super(delegate);
+            this.projection = projection;
+        }
+
+        public void onDelta(ConfigDelta<T> delta) {
+            P previous = delta.getPrevious().isPresent() ? projection.apply(delta.getPrevious().get()) : null;
+            P current = delta.getCurrent().isPresent() ? projection.apply(delta.getCurrent().get()) : null;
+            if (!Objects.equal(previous, current)) {
+                delegate.onChange(Optional.fromNullable(current));
+            }
+        }
     }
 }
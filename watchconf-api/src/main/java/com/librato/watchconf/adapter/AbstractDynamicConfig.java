@@ -0,0 +1,104 @@
+package com.librato.watchconf.adapter;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.librato.watchconf.ConfigMetrics;
+import com.librato.watchconf.DynamicConfig;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the current value and the registered listeners of a {@link DynamicConfig}, independent of how the value is
+ * read and decoded.
+ *
+ * @param <T> The type of configuration referred to by this DynamicConfig.
+ */
+public abstract class AbstractDynamicConfig<T> implements DynamicConfig<T> {
+
+    protected final ListenerRegistry<ChangeListener> changeListenerList = new ListenerRegistry<ChangeListener>(new ChangeListener[0]);
+    protected final AtomicReference<Optional<T>> config = new AtomicReference(Optional.absent());
+    protected final AtomicBoolean started = new AtomicBoolean(false);
+    protected volatile ConfigMetrics metrics = ConfigMetrics.NOOP;
+
+    protected AbstractDynamicConfig(Optional<ChangeListener<T>> changeListener) {
+        if (changeListener.isPresent()) {
+            registerListener(changeListener.get());
+        }
+    }
+
+    public Optional<T> get() throws Exception {
+        Preconditions.checkArgument(started.get(), "Adapter must be started before calling get");
+        return config.get();
+    }
+
+    /**
+     * Start the adapter on the given {@link Executor}.
+     *
+     * @param executor executor to run {@link #start()} on
+     * @return completes with the configuration once the adapter is started, or exceptionally if it cannot start
+     */
+    public CompletableFuture<Optional<T>> startAsync(Executor executor) {
+        Preconditions.checkArgument(executor != null, "executor cannot be null");
+        final CompletableFuture<Optional<T>> future = new CompletableFuture<Optional<T>>();
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    start();
+                    future.complete(get());
+                } catch (Throwable ex) {
+                    future.completeExceptionally(ex);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Report reloads, decoding, listener notification and delivery lag to metrics.
+     *
+     * @param metrics where to report measurements for this configuration
+     */
+    public void setMetrics(ConfigMetrics metrics) {
+        Preconditions.checkArgument(metrics != null, "metrics cannot be null");
+        this.metrics = metrics;
+    }
+
+    public void registerListener(ChangeListener changeListener) {
+        Preconditions.checkArgument(changeListener != null, "changeListener cannot be null");
+        changeListenerList.add(changeListener);
+    }
+
+    public void registerListener(ChangeListener changeListener, Executor executor) {
+        try {
+            DynamicConfig.super.registerListener(changeListener, executor);
+        } catch (Exception ex) {
+            // only registerListener(ChangeListener) is called, which does not throw checked exceptions
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    public void removeListener(ChangeListener changeListener) {
+        changeListenerList.remove(changeListener);
+    }
+
+    protected void notifyListeners(Optional<T> t) {
+        for (ChangeListener changeListener : changeListenerList.snapshot()) {
+            changeListener.onChange(t);
+        }
+    }
+
+    protected void notifyListenersOnError(Exception ex) {
+        for (ChangeListener changeListener : changeListenerList.snapshot()) {
+            changeListener.onError(ex);
+        }
+    }
+
+    @Override
+    public void shutdown() throws Exception {
+        // NO-OP
+    }
+}
@@ -0,0 +1,55 @@
+package com.librato.watchconf.adapter;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Remembers the SHA-256 of the last payload seen so adapters can skip parsing and notification when a source
+ * reports a change but the content is identical. Not thread safe; callers serialize access.
+ */
+public class ContentDigest {
+
+    private byte[] lastDigest;
+
+    /**
+     * Record data as the latest content.
+     *
+     * @param data payload
+     * @return true if data differs from the previously recorded content
+     */
+    public boolean update(byte[] data) {
+        MessageDigest messageDigest = newDigest();
+        messageDigest.update(data);
+        return record(messageDigest.digest());
+    }
+
+    /**
+     * Record the remaining bytes of a buffer as the latest content. The buffer's position is not changed.
+     *
+     * @param buffer payload
+     * @return true if the buffer differs from the previously recorded content
+     */
+    public boolean update(ByteBuffer buffer) {
+        MessageDigest messageDigest = newDigest();
+        messageDigest.update(buffer.duplicate());
+        return record(messageDigest.digest());
+    }
+
+    private boolean record(byte[] digest) {
+        if (Arrays.equals(digest, lastDigest)) {
+            return false;
+        }
+        lastDigest = digest;
+        return true;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 unavailable", ex);
+        }
+    }
+}
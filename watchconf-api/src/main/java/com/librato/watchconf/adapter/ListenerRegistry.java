@@ -0,0 +1,91 @@
+package com.librato.watchconf.adapter;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A lock-free, copy-on-write set of listeners. Registration and removal may happen from any thread and replace the
+ * backing array with compare-and-set; notification reads a single immutable snapshot and iterates it without
+ * allocating. Iterating the registry iterates a snapshot, as {@code for} loops over the list it replaced did.
+ *
+ * @param <L> the listener type
+ */
+public class ListenerRegistry<L> implements Iterable<L> {
+
+    private final AtomicReference<L[]> listeners;
+
+    /**
+     * @param empty an empty array of the listener type, used as the initial snapshot
+     */
+    public ListenerRegistry(L[] empty) {
+        this.listeners = new AtomicReference<L[]>(Arrays.copyOf(empty, 0));
+    }
+
+    /**
+     * Add a listener. A listener added more than once is notified once per registration.
+     *
+     * @param listener the listener to add
+     */
+    public void add(L listener) {
+        while (true) {
+            L[] current = listeners.get();
+            L[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = listener;
+            if (listeners.compareAndSet(current, updated)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Remove the first registration of a listener.
+     *
+     * @param listener the listener to remove
+     * @return true if the listener was registered
+     */
+    public boolean remove(Object listener) {
+        while (true) {
+            L[] current = listeners.get();
+            int index = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i].equals(listener)) {
+                    index = i;
+                    break;
+                }
+            }
+
+            if (index < 0) {
+                return false;
+            }
+
+            L[] updated = Arrays.copyOf(current, current.length - 1);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+            if (listeners.compareAndSet(current, updated)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * The listeners registered at the time of the call. The returned array must not be modified.
+     *
+     * @return the current snapshot of listeners
+     */
+    public L[] snapshot() {
+        return listeners.get();
+    }
+
+    /**
+     * @return an iterator over the current snapshot of listeners, which does not support removal
+     */
+    @Override
+    public Iterator<L> iterator() {
+        return Collections.unmodifiableList(Arrays.asList(listeners.get())).iterator();
+    }
+
+    public boolean isEmpty() {
+        return listeners.get().length == 0;
+    }
+}
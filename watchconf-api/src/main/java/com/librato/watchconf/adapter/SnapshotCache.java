@@ -0,0 +1,144 @@
+package com.librato.watchconf.adapter;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the last successfully decoded configuration of an adapter on local disk, so the adapter can start from it
+ * without waiting on its backend. Each write replaces the whole file by atomic rename and the content is
+ * checksummed, so a crash mid-write leaves the previous snapshot, and a damaged file is ignored rather than served.
+ */
+public class SnapshotCache {
+
+    private static final Logger log = LoggerFactory.getLogger(SnapshotCache.class);
+    private static final int MAGIC = 0x77637363;
+    private final File file;
+
+    /**
+     * A serialized configuration and the backend's version of it.
+     */
+    public static class Snapshot {
+        private final byte[] bytes;
+        private final long version;
+
+        public Snapshot(byte[] bytes, long version) {
+            this.bytes = bytes;
+            this.version = version;
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return the backend's version, for example a znode's mzxid, -1 if the backend has none
+         */
+        public long getVersion() {
+            return version;
+        }
+    }
+
+    /**
+     * @param file where to keep the snapshot, one file per configuration. Parent directories are created on write.
+     */
+    public SnapshotCache(File file) {
+        Preconditions.checkArgument(file != null, "file cannot be null");
+        this.file = file;
+    }
+
+    /**
+     * @return the snapshot, null if there is none or it could not be read
+     */
+    public Snapshot read() {
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("not a snapshot");
+                }
+
+                long version = in.readLong();
+                int length = in.readInt();
+                if (length < 0 || length > file.length()) {
+                    throw new IOException("corrupt snapshot");
+                }
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                if (in.readLong() != crc.getValue()) {
+                    throw new IOException("checksum mismatch");
+                }
+                return new Snapshot(bytes, version);
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            log.warn("ignoring unreadable snapshot " + file, ex);
+            return null;
+        } catch (RuntimeException ex) {
+            log.warn("ignoring unreadable snapshot " + file, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Atomically replaces the snapshot.
+     *
+     * @param bytes serialized configuration
+     * @param version the backend's version of bytes, -1 if it has none
+     * @throws IOException unable to write the snapshot, the previous snapshot is left in place
+     */
+    public void write(byte[] bytes, long version) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("unable to create " + dir);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        File tmp = File.createTempFile("." + file.getName(), ".tmp", dir);
+        try {
+            FileOutputStream fileOutputStream = new FileOutputStream(tmp);
+            try {
+                DataOutputStream out = new DataOutputStream(fileOutputStream);
+                out.writeInt(MAGIC);
+                out.writeLong(version);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                out.writeLong(crc.getValue());
+                out.flush();
+                fileOutputStream.getFD().sync();
+            } finally {
+                fileOutputStream.close();
+            }
+
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            if (tmp.exists() && !tmp.delete()) {
+                log.warn("unable to delete {}", tmp);
+            }
+        }
+    }
+}
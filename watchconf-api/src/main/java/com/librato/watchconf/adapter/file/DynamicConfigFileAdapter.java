@@ -3,24 +3,68 @@ package com.librato.watchconf.adapter.file;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.librato.watchconf.adapter.AbstractConfigAdapter;
+import com.librato.watchconf.adapter.ContentDigest;
 import com.librato.watchconf.converter.Converter;
+import com.librato.watchconf.converter.StreamingConverter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.file.*;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Watches a file for configuration changes.
+ * <p>
+ * Editors and config management tools usually produce several create, modify and delete events for a single save,
+ * sometimes while the file is only partially written. Events are debounced: the file is reloaded once no further
+ * events have arrived within the debounce window, so an atomic rename or a burst of writes is a single update.
+ * Reloads whose content is identical to the last loaded content are skipped without parsing or notifying listeners.
+ * If the file is missing when the window closes the last configuration is kept; if it is missing when the adapter
+ * starts, listeners are notified of the error and the file is loaded once it is created.
+ * <p>
+ * With {@link ReadMode#MAPPED} the file is memory-mapped and parsed in place by a
+ * {@link com.librato.watchconf.converter.StreamingConverter}, avoiding a heap copy of large files on every reload.
+ * The mapping is only valid while the file is not truncated, so use this mode for files that are replaced by
+ * atomic rename rather than rewritten in place. While delta or path listeners are registered the mapped content is
+ * copied and parsed to a tree, since they need one.
+ *
+ * @param <T> The type of configuration referred to by this adapter.
+ */
 public abstract class DynamicConfigFileAdapter<T> extends AbstractConfigAdapter<T, byte[]> {
 
+    public enum ReadMode {
+        /**
+         * read the file into a byte[] and convert it with {@link Converter#toDomain}
+         */
+        HEAP,
+        /**
+         * memory-map the file and convert it with {@link StreamingConverter#toDomain(java.nio.ByteBuffer, Class)}
+         */
+        MAPPED
+    }
+
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 100;
     private static final Logger log = LoggerFactory.getLogger(DynamicConfigFileAdapter.class);
-    private final Executor fileWatchExecutor = Executors.newSingleThreadExecutor();
     private final String path;
     private final File file;
+    private FileWatchService fileWatchService;
+    private volatile long debounceMillis = DEFAULT_DEBOUNCE_MILLIS;
+    private volatile ReadMode readMode = ReadMode.HEAP;
+    private final AtomicReference<ScheduledFuture<?>> pendingReload = new AtomicReference<ScheduledFuture<?>>();
+    private final ContentDigest contentDigest = new ContentDigest();
+    private final Runnable reload = new Runnable() {
+        public void run() {
+            reload();
+        }
+    };
 
     public DynamicConfigFileAdapter(Class<T> clazz, String path, Converter<T, byte[]> converter, ChangeListener<T> changeListener) throws IOException, InterruptedException {
         super(clazz, converter, Optional.fromNullable(changeListener));
@@ -37,12 +81,113 @@ public abstract class DynamicConfigFileAdapter<T> extends AbstractConfigAdapter<
     @Override
     public void start() throws Exception {
         started.set(true);
-        getAndSet(readFile());
-        WatchService watcher = FileSystems.getDefault().newWatchService();
-        Path dir = Paths.get(path.substring(0, path.lastIndexOf("/")));
-        WatchQueueReader fileWatcher = new WatchQueueReader(watcher, path.substring(path.lastIndexOf("/") + 1), this);
-        dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
-        fileWatchExecutor.execute(fileWatcher);
+        load();
+        fileWatchService = FileWatchService.getDefault();
+        fileWatchService.register(watchedPath(), this);
+    }
+
+    /**
+     * Stops watching the file and cancels a pending reload, so listeners are not notified after shutdown.
+     */
+    @Override
+    public void shutdown() throws Exception {
+        started.set(false);
+        if (fileWatchService != null) {
+            fileWatchService.unregister(watchedPath(), this);
+        }
+        ScheduledFuture<?> pending = pendingReload.getAndSet(null);
+        if (pending != null) {
+            pending.cancel(false);
+        }
+    }
+
+    private Path watchedPath() {
+        return file.getAbsoluteFile().toPath().normalize();
+    }
+
+    /**
+     * Set how long to wait after the last file event before reloading. Zero reloads on every event.
+     *
+     * @param duration debounce window
+     * @param unit unit of duration
+     */
+    public void setDebounce(long duration, TimeUnit unit) {
+        Preconditions.checkArgument(duration >= 0, "debounce cannot be negative");
+        this.debounceMillis = unit.toMillis(duration);
+    }
+
+    /**
+     * Set how the file is read. {@link ReadMode#MAPPED} requires a {@link StreamingConverter}.
+     *
+     * @param readMode how to read the file
+     */
+    public void setReadMode(ReadMode readMode) {
+        Preconditions.checkArgument(readMode != null, "readMode cannot be null");
+        Preconditions.checkArgument(readMode == ReadMode.HEAP || converter instanceof StreamingConverter,
+                "ReadMode.MAPPED requires a StreamingConverter");
+        this.readMode = readMode;
+    }
+
+    /**
+     * Called by {@link FileWatchService} when the watched file is created, modified or deleted. Restarts the
+     * debounce window.
+     */
+    void fileChanged() {
+        ScheduledFuture<?> previous = pendingReload.getAndSet(fileWatchService.schedule(reload, debounceMillis));
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+
+    private void reload() {
+        // an event delivered while shutting down can still schedule a reload
+        if (!started.get()) {
+            return;
+        }
+
+        if (!file.exists()) {
+            log.info("{} does not exist, keeping last configuration", file);
+            return;
+        }
+
+        if (load()) {
+            notifyListeners();
+            metrics.delivered(System.currentTimeMillis() - file.lastModified());
+        }
+    }
+
+    /**
+     * Parse and publish the file unless its content is identical to the last content loaded. A file that cannot be
+     * read is reported to listeners.
+     *
+     * @return true if new configuration was published
+     */
+    private synchronized boolean load() {
+        try {
+            return readMode == ReadMode.MAPPED ? loadMapped() : loadHeap();
+        } catch (IOException ex) {
+            log.error("error reading file", ex);
+            notifyListenersOnError(ex);
+            return false;
+        }
+    }
+
+    private boolean loadHeap() throws IOException {
+        byte[] data = Files.readAllBytes(file.toPath());
+        if (!contentDigest.update(data)) {
+            return false;
+        }
+
+        return getAndSet(data);
+    }
+
+    private boolean loadMapped() throws IOException {
+        MappedByteBuffer buffer = map();
+        if (!contentDigest.update(buffer)) {
+            return false;
+        }
+
+        return getAndSet(buffer, -1);
     }
 
     private String stripSlash(String path) {
@@ -53,83 +198,40 @@ public abstract class DynamicConfigFileAdapter<T> extends AbstractConfigAdapter<
     }
 
     public byte[] readFile() {
-        FileInputStream fileInputStream = null;
-
         try {
-            fileInputStream = new FileInputStream(file);
-            byte[] data = new byte[(int) file.length()];
-            fileInputStream.read(data);
-            return data;
+            return Files.readAllBytes(file.toPath());
         } catch (Exception ex) {
             log.error("error reading file", ex);
-        } finally {
-            if (fileInputStream != null)
-                try {
-                    fileInputStream.close();
-                } catch (IOException ex) {
-                    log.error("error closing FileInputStream", ex);
-                }
         }
 
         return null;
     }
 
-    private static class WatchQueueReader implements Runnable {
-
-        private final String fileName;
-        private final DynamicConfigFileAdapter adapter;
-        /**
-         * the watchService that is passed in from above
-         */
-        private WatchService watcher;
-
-        public WatchQueueReader(WatchService watcher, String fileName, DynamicConfigFileAdapter adapter) {
-            this.watcher = watcher;
-            this.fileName = fileName;
-            this.adapter = adapter;
+    /**
+     * Memory-map the file read-only. The mapping stays valid after the channel is closed.
+     *
+     * @return the mapped file, null if it could not be mapped
+     */
+    public MappedByteBuffer mapFile() {
+        try {
+            return map();
+        } catch (Exception ex) {
+            log.error("error mapping file", ex);
         }
 
-        /**
-         * In order to implement a file watcher, we loop forever
-         * ensuring requesting to take the next item from the file
-         * watchers queue.
-         */
-        @Override
-        public void run() {
-            while (true) {
-                WatchKey key = null;
-                // wait for a key to be available
-                try {
-                    key = watcher.poll(500, TimeUnit.MILLISECONDS);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-
-
-                if (key != null) {
-
-                    for (WatchEvent<?> event : key.pollEvents()) {
-                        WatchEvent<Path> ev = (WatchEvent<Path>) event;
-                        Path fileName = ev.context();
-                        if (this.fileName.equals(fileName.toString())) {
-                            adapter.getAndSet(adapter.readFile());
-                            try {
-                                adapter.notifyListeners(adapter.get());
-                            } catch (Exception ex) {
-                                log.error("unable to notify listeners", ex);
-                                adapter.notifyListenersOnError(ex);
-                            }
-                        }
-                    }
-
-                    // IMPORTANT: The key must be reset after processed
-                    boolean valid = key.reset();
-                    if (!valid) {
-                        break;
-                    }
-                }
+        return null;
+    }
+
+    private MappedByteBuffer map() throws IOException {
+        FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            return fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+        } finally {
+            try {
+                fileChannel.close();
+            } catch (IOException ex) {
+                log.error("error closing FileChannel", ex);
             }
         }
     }
 }
-
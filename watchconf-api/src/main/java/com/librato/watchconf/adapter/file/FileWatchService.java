@@ -0,0 +1,198 @@
+package com.librato.watchconf.adapter.file;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches files on behalf of any number of {@link DynamicConfigFileAdapter}s with a single {@link WatchService}
+ * and a single thread. Each directory is registered once and events are routed to adapters by file name, so the
+ * thread and watch count stay constant regardless of how many files are watched. Reloads triggered by events run on
+ * a second shared thread so a slow parse never delays event delivery for other files.
+ */
+class FileWatchService implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(FileWatchService.class);
+    private static FileWatchService defaultInstance;
+
+    private final WatchService watchService;
+    private final ScheduledExecutorService reloadExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "watchconf-file-reloader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final Map<Path, WatchKey> keys = new HashMap<Path, WatchKey>();
+    private final Map<WatchKey, WatchedDirectory> directories = new ConcurrentHashMap<WatchKey, WatchedDirectory>();
+
+    private static class WatchedDirectory {
+        private final Path dir;
+        private final Map<String, List<DynamicConfigFileAdapter>> adapters = new ConcurrentHashMap<String, List<DynamicConfigFileAdapter>>();
+
+        WatchedDirectory(Path dir) {
+            this.dir = dir;
+        }
+    }
+
+    FileWatchService() throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+        Thread thread = new Thread(this, "watchconf-file-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the instance shared by all adapters in this JVM
+     * @throws IOException unable to create the underlying WatchService
+     */
+    static synchronized FileWatchService getDefault() throws IOException {
+        if (defaultInstance == null) {
+            defaultInstance = new FileWatchService();
+        }
+        return defaultInstance;
+    }
+
+    /**
+     * Schedule a reload on the shared reload thread.
+     *
+     * @param reload the reload to run
+     * @param delayMillis delay before running it
+     * @return a future that can be used to cancel the reload
+     */
+    ScheduledFuture<?> schedule(Runnable reload, long delayMillis) {
+        return reloadExecutor.schedule(reload, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start routing events for a file to an adapter, registering the file's directory if it isn't watched yet.
+     *
+     * @param file absolute path of the watched file
+     * @param adapter adapter to notify
+     * @throws IOException unable to register the directory
+     */
+    synchronized void register(Path file, DynamicConfigFileAdapter adapter) throws IOException {
+        Path dir = file.getParent();
+        WatchKey key = keys.get(dir);
+        if (key == null) {
+            key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            keys.put(dir, key);
+            directories.put(key, new WatchedDirectory(dir));
+        }
+
+        WatchedDirectory watchedDirectory = directories.get(key);
+        String fileName = file.getFileName().toString();
+        List<DynamicConfigFileAdapter> fileAdapters = watchedDirectory.adapters.get(fileName);
+        if (fileAdapters == null) {
+            fileAdapters = new CopyOnWriteArrayList<DynamicConfigFileAdapter>();
+            watchedDirectory.adapters.put(fileName, fileAdapters);
+        }
+        fileAdapters.add(adapter);
+    }
+
+    /**
+     * Stop routing events for a file to an adapter, cancelling the directory's watch if nothing else in it is watched.
+     *
+     * @param file absolute path of the watched file
+     * @param adapter adapter to stop notifying
+     */
+    synchronized void unregister(Path file, DynamicConfigFileAdapter adapter) {
+        Path dir = file.getParent();
+        WatchKey key = keys.get(dir);
+        if (key == null) {
+            return;
+        }
+
+        WatchedDirectory watchedDirectory = directories.get(key);
+        String fileName = file.getFileName().toString();
+        List<DynamicConfigFileAdapter> fileAdapters = watchedDirectory.adapters.get(fileName);
+        if (fileAdapters != null) {
+            fileAdapters.remove(adapter);
+            if (fileAdapters.isEmpty()) {
+                watchedDirectory.adapters.remove(fileName);
+            }
+        }
+
+        if (watchedDirectory.adapters.isEmpty()) {
+            key.cancel();
+            keys.remove(dir);
+            directories.remove(key);
+        }
+    }
+
+    /**
+     * Blocks on the WatchService and dispatches events until the WatchService is closed.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException ex) {
+                log.info("file watcher interrupted, exiting");
+                return;
+            } catch (ClosedWatchServiceException ex) {
+                return;
+            }
+
+            WatchedDirectory watchedDirectory = directories.get(key);
+            if (watchedDirectory != null) {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        log.warn("file watch events overflowed for {}, reloading all files", watchedDirectory.dir);
+                        for (List<DynamicConfigFileAdapter> fileAdapters : watchedDirectory.adapters.values()) {
+                            dispatch(fileAdapters);
+                        }
+                        continue;
+                    }
+
+                    Path fileName = (Path) event.context();
+                    List<DynamicConfigFileAdapter> fileAdapters = watchedDirectory.adapters.get(fileName.toString());
+                    if (fileAdapters != null) {
+                        dispatch(fileAdapters);
+                    }
+                }
+            }
+
+            // IMPORTANT: The key must be reset after processed
+            if (!key.reset()) {
+                synchronized (this) {
+                    WatchedDirectory removed = directories.remove(key);
+                    if (removed != null) {
+                        keys.remove(removed.dir);
+                        log.warn("directory {} is no longer watched", removed.dir);
+                    }
+                }
+            }
+        }
+    }
+
+    private void dispatch(List<DynamicConfigFileAdapter> fileAdapters) {
+        for (DynamicConfigFileAdapter adapter : fileAdapters) {
+            try {
+                adapter.fileChanged();
+            } catch (RuntimeException ex) {
+                log.error("error handling file change", ex);
+            }
+        }
+    }
+}
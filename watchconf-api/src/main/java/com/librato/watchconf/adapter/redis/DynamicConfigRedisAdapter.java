@@ -1,24 +1,65 @@
 package com.librato.watchconf.adapter.redis;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.librato.watchconf.adapter.AbstractConfigAdapter;
+import com.librato.watchconf.adapter.ContentDigest;
+import com.librato.watchconf.adapter.SnapshotCache;
 import com.librato.watchconf.converter.Converter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.JedisPubSub;
-
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Watches a Redis key for configuration changes using keyspace notifications.
+ * <p>
+ * On start the adapter adds only the notification classes it needs to the server's {@code notify-keyspace-events}
+ * setting ({@code K} for keyspace channels, {@code $} for string commands and {@code g} for generic commands such as
+ * DEL and RENAME), preserving any flags already enabled, and subscribes to the key's exact keyspace channel. A
+ * notification whose value is byte-for-byte identical to the last one read is not parsed and does not notify
+ * listeners.
+ * <p>
+ * Connections are borrowed from the {@link JedisPool} only for the duration of each command. Notifications for all
+ * adapters sharing a pool arrive over a single pub/sub connection, see {@link RedisKeyspaceSubscriber}. The pool is
+ * owned by the caller and is not closed by {@link #shutdown()}.
+ *
+ * @param <T> The type of configuration referred to by this adapter.
+ */
 public abstract class DynamicConfigRedisAdapter<T> extends AbstractConfigAdapter<T, byte[]> {
 
     private final Logger log = LoggerFactory.getLogger(DynamicConfigRedisAdapter.class);
     private final JedisPool jedisPool;
-    private final ExecutorService redisExecutor = Executors.newSingleThreadExecutor();
+    private static final String NOTIFY_KEYSPACE_EVENTS = "notify-keyspace-events";
+    private static final String REQUIRED_EVENT_CLASSES = "$g";
+
     private final String path;
+    private final ContentDigest contentDigest = new ContentDigest();
+    private volatile RedisKeyspaceSubscriber subscriber;
+    private volatile String channel;
+    private final AtomicInteger pendingReloads = new AtomicInteger();
+    private final Runnable reload = new Runnable() {
+        public void run() {
+            int missed = 1;
+            do {
+                try {
+                    if (started.get() && load()) {
+                        notifyListeners();
+                    }
+                } catch (RuntimeException ex) {
+                    log.error("error handling keyspace notification", ex);
+                }
+                missed = pendingReloads.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    };
 
     public DynamicConfigRedisAdapter(Class<T> clazz, String path, JedisPool jedisPool, Converter<T, byte[]> converter) throws Exception {
         this(clazz, path, jedisPool, converter, null);
@@ -27,74 +68,132 @@ public abstract class DynamicConfigRedisAdapter<T> extends AbstractConfigAdapter
     public DynamicConfigRedisAdapter(final Class<T> clazz, final String path, final JedisPool jedisPool, Converter<T, byte[]> converter, ChangeListener<T> changeListener) throws Exception {
         super(clazz, converter, Optional.fromNullable(changeListener));
         Preconditions.checkArgument(path != null && !path.isEmpty(), "path cannot be null or blank");
+        Preconditions.checkNotNull(jedisPool, "JedisPool cannot be null");
         this.jedisPool = jedisPool;
         this.path = path;
     }
 
+    /**
+     * Starts watching the key. With a {@link SnapshotCache} holding a snapshot, the snapshot is served immediately
+     * and the key is read and subscribed to in the background, notifying listeners if it differs.
+     */
     public void start() throws Exception {
         started.set(true);
-        getAndSet(jedisPool.getResource().get(path).getBytes());
-
-        jedisPool.getResource().configSet("notify-keyspace-events", "AKE");
-        redisExecutor.execute(new Runnable() {
-
-            @Override
-            public void run() {
-                jedisPool.getResource().psubscribe(new JedisPubSub() {
-
-                    @Override
-                    public void onMessage(String s, String s1) {
+        SnapshotCache.Snapshot snapshot = restoreSnapshot();
+        if (snapshot == null) {
+            load();
+            subscribe();
+            return;
+        }
 
-                    }
+        synchronized (this) {
+            contentDigest.update(snapshot.getBytes());
+        }
+        reconcileAsync("watchconf-redis-reconcile " + path, new Callable<Void>() {
+            public Void call() throws Exception {
+                if (load()) {
+                    notifyListeners();
+                }
+                subscribe();
+                return null;
+            }
+        });
+    }
 
-                    @Override
-                    public void onPMessage(String s, String s1, String s2) {
-                        String value = jedisPool.getResource().get(path);
-                        if (value != null) {
-                            getAndSet(value.getBytes());
-                            try {
-                                notifyListeners(get());
-                            } catch (Exception ex) {
-                                log.error("unable to notify listeners", ex);
-                                notifyListenersOnError(ex);
-                            }
-                        }
+    private void subscribe() throws InterruptedException {
+        Jedis jedis = jedisPool.getResource();
+        try {
+            enableKeyspaceEvents(jedis);
+            channel = RedisKeyspaceSubscriber.channel(jedis.getDB(), path);
+        } finally {
+            jedis.close();
+        }
 
-                    }
+        subscriber = RedisKeyspaceSubscriber.register(jedisPool, channel, this);
+        // a shutdown while subscribing may have missed the subscriber
+        if (!started.get()) {
+            subscriber.unregister(channel, this);
+        }
+    }
 
-                    @Override
-                    public void onSubscribe(String s, int i) {
-                    }
+    private void enableKeyspaceEvents(Jedis jedis) {
+        try {
+            List<String> current = jedis.configGet(NOTIFY_KEYSPACE_EVENTS);
+            String flags = current.size() > 1 ? current.get(1) : "";
+            String merged = mergeEventFlags(flags);
+            if (!merged.equals(flags)) {
+                jedis.configSet(NOTIFY_KEYSPACE_EVENTS, merged);
+            }
+        } catch (Exception ex) {
+            log.warn("unable to configure " + NOTIFY_KEYSPACE_EVENTS + ", changes will not be seen unless the server enables K" + REQUIRED_EVENT_CLASSES, ex);
+        }
+    }
 
-                    @Override
-                    public void onUnsubscribe(String s, int i) {
+    /**
+     * @param flags current {@code notify-keyspace-events} value
+     * @return flags with keyspace notifications and the event classes this adapter needs added
+     */
+    static String mergeEventFlags(String flags) {
+        StringBuilder merged = new StringBuilder(flags);
+        if (flags.indexOf('K') < 0) {
+            merged.append('K');
+        }
 
-                    }
+        // A is an alias for every event class
+        if (flags.indexOf('A') < 0) {
+            for (char eventClass : REQUIRED_EVENT_CLASSES.toCharArray()) {
+                if (flags.indexOf(eventClass) < 0) {
+                    merged.append(eventClass);
+                }
+            }
+        }
+        return merged.toString();
+    }
 
-                    @Override
-                    public void onPUnsubscribe(String s, int i) {
+    /**
+     * Called by {@link RedisKeyspaceSubscriber} when the key changes or the subscription was re-established. The key
+     * is re-read on executor; notifications that arrive while a read is pending or running are coalesced into one
+     * more read.
+     *
+     * @param executor executor to re-read the key on
+     */
+    void keyChanged(Executor executor) {
+        if (pendingReloads.getAndIncrement() == 0) {
+            try {
+                executor.execute(reload);
+            } catch (RejectedExecutionException ex) {
+                pendingReloads.set(0);
+                log.error("reload executor rejected keyspace notification", ex);
+            }
+        }
+    }
 
-                    }
+    private synchronized boolean load() {
+        byte[] value;
+        Jedis jedis = jedisPool.getResource();
+        try {
+            value = jedis.get(path.getBytes(Charsets.UTF_8));
+        } catch (Exception ex) {
+            log.error("unable to read config", ex);
+            notifyListenersOnError(ex);
+            return false;
+        } finally {
+            jedis.close();
+        }
 
-                    @Override
-                    public void onPSubscribe(String s, int i) {
+        if (value == null || !contentDigest.update(value)) {
+            return false;
+        }
 
-                    }
-                }, "__key*__:" + path);
-            }
-        });
+        return getAndSet(value);
     }
 
     public void shutdown() throws Exception {
-        redisExecutor.shutdown();
-        log.info("Waiting for redisExecutor to stop in 10s");
-        if (!redisExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
-            log.error("redisExecutor did not stop after waiting for 10s");
-            redisExecutor.shutdownNow();
-        } else {
-            log.info("redisExecutor stopped");
+        started.set(false);
+        // channel is assigned before subscriber, so it is visible whenever subscriber is
+        RedisKeyspaceSubscriber current = subscriber;
+        if (current != null) {
+            current.unregister(channel, this);
         }
-
-        jedisPool.close();
     }
 }
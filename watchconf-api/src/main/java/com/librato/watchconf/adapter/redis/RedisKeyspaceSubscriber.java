@@ -0,0 +1,312 @@
+package com.librato.watchconf.adapter.redis;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPubSub;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Listens for keyspace notifications on behalf of every {@link DynamicConfigRedisAdapter} sharing a
+ * {@link JedisPool}, over a single pub/sub connection and thread per pool. Each watched key is subscribed by its
+ * exact keyspace channel, {@code __keyspace@<db>__:<key>}, so Redis only publishes to this connection for watched keys
+ * rather than every keyspace event matching a pattern. Notifications are routed to adapters by channel. If the connection is lost it is re-established and every adapter re-reads its key, since notifications sent
+ * while disconnected are not delivered.
+ * <p>
+ * Adapters re-read their key on a reload executor rather than on the pub/sub thread, so a slow read, decode or
+ * listener does not hold up notifications for other keys. The subscription holds one of the pool's connections and
+ * each reload borrows another. Once the last adapter of a pool unregisters, the subscriber unsubscribes, stops its
+ * threads and is discarded.
+ */
+class RedisKeyspaceSubscriber implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(RedisKeyspaceSubscriber.class);
+    private static final Map<JedisPool, RedisKeyspaceSubscriber> subscribers = new ConcurrentHashMap<JedisPool, RedisKeyspaceSubscriber>();
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+    private static final long SUBSCRIBE_TIMEOUT_SECONDS = 10;
+
+    private final JedisPool jedisPool;
+    private final Map<String, List<DynamicConfigRedisAdapter>> adapters = new ConcurrentHashMap<String, List<DynamicConfigRedisAdapter>>();
+    private final Object lock = new Object();
+    private final ExecutorService reloadExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+            .setNameFormat("watchconf-redis-reloader-%d")
+            .setDaemon(true)
+            .build());
+    private volatile KeyspacePubSub pubSub;
+    private Thread thread;
+    /**
+     * set once the last adapter unregisters, guarded by lock
+     */
+    private boolean closed;
+
+    private RedisKeyspaceSubscriber(JedisPool jedisPool) {
+        this.jedisPool = jedisPool;
+    }
+
+    /**
+     * Route notifications for a channel to an adapter through the subscriber of its pool, creating the subscriber if
+     * the pool has none. Returns once the subscription is active.
+     *
+     * @param jedisPool the pool to subscribe through
+     * @param channel keyspace channel to watch, see {@link #channel(long, String)}
+     * @param adapter adapter to notify
+     * @return the subscriber shared by all adapters using jedisPool, to {@link #unregister} from
+     * @throws InterruptedException interrupted waiting for the subscription
+     */
+    static RedisKeyspaceSubscriber register(JedisPool jedisPool, String channel, DynamicConfigRedisAdapter adapter) throws InterruptedException {
+        while (true) {
+            RedisKeyspaceSubscriber subscriber = forPool(jedisPool);
+            // a subscriber closed meanwhile has been removed, so the next lookup creates a new one
+            if (subscriber.register(channel, adapter)) {
+                return subscriber;
+            }
+        }
+    }
+
+    private static RedisKeyspaceSubscriber forPool(JedisPool jedisPool) {
+        synchronized (subscribers) {
+            RedisKeyspaceSubscriber subscriber = subscribers.get(jedisPool);
+            if (subscriber == null) {
+                subscriber = new RedisKeyspaceSubscriber(jedisPool);
+                subscribers.put(jedisPool, subscriber);
+            }
+            return subscriber;
+        }
+    }
+
+    /**
+     * @param db database index of the key
+     * @param key watched key
+     * @return the keyspace channel Redis publishes to when key is modified
+     */
+    static String channel(long db, String key) {
+        return "__keyspace@" + db + "__:" + key;
+    }
+
+    /**
+     * Route notifications for a channel to an adapter, subscribing to the channel if it isn't subscribed yet.
+     *
+     * @return false if this subscriber is closed
+     */
+    private boolean register(String channel, DynamicConfigRedisAdapter adapter) throws InterruptedException {
+        synchronized (lock) {
+            if (closed) {
+                return false;
+            }
+
+            List<DynamicConfigRedisAdapter> keyAdapters = adapters.get(channel);
+            if (keyAdapters != null) {
+                keyAdapters.add(adapter);
+                return true;
+            }
+
+            keyAdapters = new CopyOnWriteArrayList<DynamicConfigRedisAdapter>();
+            keyAdapters.add(adapter);
+            adapters.put(channel, keyAdapters);
+
+            if (thread == null) {
+                thread = new Thread(this, "watchconf-redis-subscriber");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        awaitSubscribed();
+
+        // the connection may have subscribed before this channel was added
+        synchronized (lock) {
+            KeyspacePubSub current = pubSub;
+            if (current != null && current.isSubscribed() && current.channels.add(channel)) {
+                current.subscribe(channel);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stop routing notifications for a channel to an adapter, unsubscribing from the channel if no other adapter
+     * watches it. Once no channels are watched the pub/sub connection is closed, the threads are
+     * stopped and the subscriber is discarded.
+     *
+     * @param channel watched keyspace channel
+     * @param adapter adapter to stop notifying
+     */
+    void unregister(String channel, DynamicConfigRedisAdapter adapter) {
+        synchronized (lock) {
+            List<DynamicConfigRedisAdapter> keyAdapters = adapters.get(channel);
+            if (keyAdapters == null || !keyAdapters.remove(adapter) || !keyAdapters.isEmpty()) {
+                return;
+            }
+
+            adapters.remove(channel);
+            KeyspacePubSub current = pubSub;
+            if (adapters.isEmpty()) {
+                close(current);
+            } else if (current != null && current.isSubscribed() && current.channels.remove(channel)) {
+                current.unsubscribe(channel);
+            }
+        }
+    }
+
+    /**
+     * Called with lock held once no channels are watched.
+     */
+    private void close(KeyspacePubSub current) {
+        closed = true;
+        synchronized (subscribers) {
+            if (subscribers.get(jedisPool) == this) {
+                subscribers.remove(jedisPool);
+            }
+        }
+
+        Thread subscriberThread = thread;
+        thread = null;
+        pubSub = null;
+        if (current != null) {
+            current.unsubscribeOnce();
+        }
+        if (subscriberThread != null) {
+            // wakes it from a reconnect delay, it returns once it sees it is no longer the subscriber thread
+            subscriberThread.interrupt();
+        }
+        reloadExecutor.shutdown();
+    }
+
+    private void awaitSubscribed() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(SUBSCRIBE_TIMEOUT_SECONDS);
+        KeyspacePubSub current = pubSub;
+        while (current == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            current = pubSub;
+        }
+
+        if (current == null || !current.subscribed.await(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+            log.warn("timed out waiting for keyspace subscription, notifications may be missed until it is established");
+        }
+    }
+
+    /**
+     * Holds the pub/sub connection, reconnecting until no channels are watched.
+     */
+    @Override
+    public void run() {
+        boolean reconnecting = false;
+        while (true) {
+            KeyspacePubSub current;
+            String[] channels;
+            synchronized (lock) {
+                if (thread != Thread.currentThread()) {
+                    return;
+                }
+
+                Set<String> keyChannels = new HashSet<String>(adapters.keySet());
+                channels = keyChannels.toArray(new String[keyChannels.size()]);
+                current = new KeyspacePubSub(keyChannels);
+                pubSub = current;
+            }
+
+            if (reconnecting) {
+                refreshAll();
+            }
+
+            Jedis jedis = null;
+            try {
+                jedis = jedisPool.getResource();
+                jedis.subscribe(current, channels);
+                reconnecting = false;
+            } catch (Exception ex) {
+                log.error("keyspace subscription failed, reconnecting", ex);
+                reconnecting = true;
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            } finally {
+                if (jedis != null) {
+                    // a connection that has been subscribed is not reused, it may still carry pub/sub replies
+                    jedisPool.returnBrokenResource(jedis);
+                }
+            }
+        }
+    }
+
+    private void refreshAll() {
+        for (List<DynamicConfigRedisAdapter> keyAdapters : adapters.values()) {
+            dispatch(keyAdapters);
+        }
+    }
+
+    private void dispatch(List<DynamicConfigRedisAdapter> keyAdapters) {
+        for (DynamicConfigRedisAdapter adapter : keyAdapters) {
+            adapter.keyChanged(reloadExecutor);
+        }
+    }
+
+    private class KeyspacePubSub extends JedisPubSub {
+
+        private final CountDownLatch subscribed = new CountDownLatch(1);
+        private final AtomicBoolean unsubscribed = new AtomicBoolean(false);
+        private final Set<String> channels;
+
+        KeyspacePubSub(Set<String> channels) {
+            this.channels = channels;
+        }
+
+        /**
+         * Unsubscribes from every channel, at most once. A second UNSUBSCRIBE would leave its reply unread on the
+         * connection when it is returned to the pool.
+         */
+        void unsubscribeOnce() {
+            if (isSubscribed() && unsubscribed.compareAndSet(false, true)) {
+                unsubscribe();
+            }
+        }
+
+        @Override
+        public void onMessage(String channel, String message) {
+            List<DynamicConfigRedisAdapter> keyAdapters = adapters.get(channel);
+            if (keyAdapters != null) {
+                dispatch(keyAdapters);
+            }
+        }
+
+        @Override
+        public void onPMessage(String pattern, String channel, String message) {
+        }
+
+        @Override
+        public void onSubscribe(String channel, int subscribedChannels) {
+            subscribed.countDown();
+            if (pubSub != this) {
+                // all channels were unregistered while this connection was subscribing
+                unsubscribeOnce();
+            }
+        }
+
+        @Override
+        public void onUnsubscribe(String channel, int subscribedChannels) {
+        }
+
+        @Override
+        public void onPUnsubscribe(String pattern, int subscribedChannels) {
+        }
+
+        @Override
+        public void onPSubscribe(String pattern, int subscribedChannels) {
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.librato.watchconf.adapter.zookeeper;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.librato.watchconf.converter.Stamp;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.utils.ZKPaths;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reassembles {@link ChunkedPayload}s read from a znode. The chunks of the last payload are kept, so a new manifest
+ * only fetches the chunks whose hashes changed, and those are fetched in parallel. Fetched chunks are checked
+ * against their hashes.
+ */
+class ChunkCache {
+
+    private static final ExecutorService fetchExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+            .setNameFormat("watchconf-chunk-fetch-%d")
+            .setDaemon(true)
+            .build());
+    private final CuratorFramework curatorFramework;
+    private final String path;
+    private Map<String, byte[]> chunks = Collections.emptyMap();
+
+    ChunkCache(CuratorFramework curatorFramework, String path) {
+        this.curatorFramework = curatorFramework;
+        this.path = path;
+    }
+
+    /**
+     * @param data znode data
+     * @return the configuration, reassembled from its chunks if data is a manifest, otherwise data itself
+     * @throws Exception a chunk could not be fetched, for example because a newer push deleted it, or is corrupt
+     */
+    synchronized byte[] resolve(byte[] data) throws Exception {
+        if (!ChunkedPayload.isManifest(data)) {
+            chunks = Collections.emptyMap();
+            return data;
+        }
+
+        List<String> hashes = ChunkedPayload.readManifest(data);
+        Map<String, byte[]> resolved = new HashMap<String, byte[]>();
+        Map<String, Future<byte[]>> fetches = new LinkedHashMap<String, Future<byte[]>>();
+        for (final String hash : hashes) {
+            if (resolved.containsKey(hash) || fetches.containsKey(hash)) {
+                continue;
+            }
+
+            byte[] cached = chunks.get(hash);
+            if (cached != null) {
+                resolved.put(hash, cached);
+            } else {
+                fetches.put(hash, fetchExecutor.submit(new Callable<byte[]>() {
+                    public byte[] call() throws Exception {
+                        return curatorFramework.getData().forPath(ZKPaths.makePath(path, hash));
+                    }
+                }));
+            }
+        }
+
+        for (Map.Entry<String, Future<byte[]>> fetch : fetches.entrySet()) {
+            byte[] chunk;
+            try {
+                chunk = fetch.getValue().get();
+            } catch (ExecutionException ex) {
+                throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+            }
+
+            if (!ChunkedPayload.hash(chunk).equals(fetch.getKey())) {
+                throw new IOException("chunk " + fetch.getKey() + " of " + path + " does not match its hash");
+            }
+            resolved.put(fetch.getKey(), chunk);
+        }
+
+        Stamp stamp = Stamp.read(data);
+        ByteBuffer payload = ByteBuffer.allocate((stamp == null ? 0 : Stamp.HEADER_LENGTH) + ChunkedPayload.readLength(data));
+        if (stamp != null) {
+            payload.put(data, 0, Stamp.HEADER_LENGTH);
+        }
+        for (String hash : hashes) {
+            byte[] chunk = resolved.get(hash);
+            if (chunk.length > payload.remaining()) {
+                throw new IOException("chunks of " + path + " are longer than its manifest");
+            }
+            payload.put(chunk);
+        }
+        if (payload.hasRemaining()) {
+            throw new IOException("chunks of " + path + " are shorter than its manifest");
+        }
+
+        chunks = resolved;
+        return payload.array();
+    }
+}
@@ -0,0 +1,194 @@
+package com.librato.watchconf.adapter.zookeeper;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.librato.watchconf.converter.Stamp;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A configuration too large for one znode, stored as a manifest in the configuration's znode and content-addressed
+ * chunks in its children, each named by the SHA-256 of its content. Chunks are immutable, so a push writes the
+ * chunks it is missing and then replaces the manifest in a single write, which readers see atomically. Chunks no
+ * longer referenced are deleted afterwards.
+ * <p>
+ * The manifest begins with a zero byte like a {@link Stamp}, so it cannot be mistaken for a serialized
+ * configuration. A stamp on the configuration is moved to the manifest and restored when the chunks are
+ * reassembled, so pushing identical content twice produces identical chunks.
+ */
+public class ChunkedPayload {
+
+    public static final int DEFAULT_CHUNK_SIZE = 512 * 1024;
+    private static final byte[] MAGIC = {0x00, 'w', 'c', 'm'};
+    private static final int HASH_LENGTH = 32;
+    private static final Pattern CHUNK_NAME = Pattern.compile("[0-9a-f]{64}");
+
+    private final List<String> hashes;
+    private final Map<String, byte[]> chunks;
+    private final byte[] manifest;
+
+    private ChunkedPayload(List<String> hashes, Map<String, byte[]> chunks, byte[] manifest) {
+        this.hashes = hashes;
+        this.chunks = chunks;
+        this.manifest = manifest;
+    }
+
+    /**
+     * @param payload serialized configuration, optionally stamped
+     * @param chunkSize maximum size of a chunk
+     * @return payload split into chunks
+     */
+    public static ChunkedPayload split(byte[] payload, int chunkSize) {
+        Preconditions.checkArgument(chunkSize > 0, "chunkSize must be positive");
+        Stamp stamp = Stamp.read(payload);
+        byte[] body = Stamp.strip(payload);
+
+        List<String> hashes = new ArrayList<String>();
+        Map<String, byte[]> chunks = new LinkedHashMap<String, byte[]>();
+        for (int offset = 0; offset < body.length; offset += chunkSize) {
+            byte[] chunk = Arrays.copyOfRange(body, offset, Math.min(body.length, offset + chunkSize));
+            String hash = hash(chunk);
+            hashes.add(hash);
+            chunks.put(hash, chunk);
+        }
+
+        ByteBuffer manifest = ByteBuffer.allocate(MAGIC.length + 8 + hashes.size() * HASH_LENGTH)
+                .put(MAGIC)
+                .putInt(body.length)
+                .putInt(hashes.size());
+        for (String hash : hashes) {
+            manifest.put(HashCode.fromString(hash).asBytes());
+        }
+        byte[] manifestBytes = manifest.array();
+        return new ChunkedPayload(hashes, chunks, stamp == null ? manifestBytes : stamp.apply(manifestBytes));
+    }
+
+    /**
+     * @return the manifest to store in the configuration's znode
+     */
+    public byte[] getManifest() {
+        return manifest;
+    }
+
+    /**
+     * @return names of the chunks, in payload order
+     */
+    public List<String> getHashes() {
+        return Collections.unmodifiableList(hashes);
+    }
+
+    /**
+     * Creates the chunks missing under path, creating path with an empty configuration first if needed, the way
+     * adapters do. Does not change path's data.
+     *
+     * @param framework started client
+     * @param path the configuration's znode
+     */
+    public void writeChunks(CuratorFramework framework, String path) throws Exception {
+        if (framework.checkExists().forPath(path) == null) {
+            try {
+                framework.create().creatingParentsIfNeeded().forPath(path, "{}".getBytes());
+            } catch (KeeperException.NodeExistsException ex) {
+                // created concurrently
+            }
+        }
+
+        List<String> existing = framework.getChildren().forPath(path);
+        for (Map.Entry<String, byte[]> chunk : chunks.entrySet()) {
+            if (existing.contains(chunk.getKey())) {
+                continue;
+            }
+
+            try {
+                framework.create().forPath(ZKPaths.makePath(path, chunk.getKey()), chunk.getValue());
+            } catch (KeeperException.NodeExistsException ex) {
+                // content-addressed, so an existing chunk is this chunk
+            }
+        }
+    }
+
+    /**
+     * Deletes the chunks under path that the given manifest does not reference. Call after the manifest has been
+     * written.
+     *
+     * @param framework started client
+     * @param path the configuration's znode
+     * @param data the data written to path, a manifest or an unchunked configuration that references no chunks
+     */
+    public static void deleteUnreferenced(CuratorFramework framework, String path, byte[] data) throws Exception {
+        List<String> referenced = isManifest(data) ? readManifest(data) : Collections.<String>emptyList();
+        for (String child : framework.getChildren().forPath(path)) {
+            if (CHUNK_NAME.matcher(child).matches() && !referenced.contains(child)) {
+                try {
+                    framework.delete().forPath(ZKPaths.makePath(path, child));
+                } catch (KeeperException.NoNodeException ex) {
+                    // deleted concurrently
+                }
+            }
+        }
+    }
+
+    /**
+     * @param data znode data, optionally stamped
+     * @return true if data is a manifest
+     */
+    public static boolean isManifest(byte[] data) {
+        byte[] body = Stamp.strip(data);
+        if (body.length < MAGIC.length + 8) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (body[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param data a manifest, optionally stamped
+     * @return names of the chunks it references, in payload order
+     * @throws IOException data is not a valid manifest
+     */
+    static List<String> readManifest(byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Stamp.strip(data));
+        buffer.position(MAGIC.length);
+        buffer.getInt();
+        int count = buffer.getInt();
+        if (count < 0 || buffer.remaining() != count * HASH_LENGTH) {
+            throw new IOException("corrupt chunk manifest");
+        }
+
+        List<String> hashes = new ArrayList<String>(count);
+        byte[] hash = new byte[HASH_LENGTH];
+        for (int i = 0; i < count; i++) {
+            buffer.get(hash);
+            hashes.add(HashCode.fromBytes(hash).toString());
+        }
+        return hashes;
+    }
+
+    /**
+     * @param data a manifest, optionally stamped
+     * @return length of the payload it describes, without any stamp
+     */
+    static int readLength(byte[] data) {
+        return ByteBuffer.wrap(Stamp.strip(data), MAGIC.length, 4).getInt();
+    }
+
+    static String hash(byte[] chunk) {
+        return Hashing.sha256().hashBytes(chunk).toString();
+    }
+}
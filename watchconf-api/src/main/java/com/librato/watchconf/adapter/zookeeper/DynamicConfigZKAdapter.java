@@ -1,18 +1,38 @@
 package com.librato.watchconf.adapter.zookeeper;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.librato.watchconf.DynamicConfig;
 import com.librato.watchconf.adapter.AbstractConfigAdapter;
+import com.librato.watchconf.adapter.SnapshotCache;
 import com.librato.watchconf.converter.Converter;
+import com.librato.watchconf.converter.JsonPatch;
+import com.librato.watchconf.converter.Stamp;
+import com.librato.watchconf.converter.TreeConverter;
 import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorWatcher;
 import org.apache.curator.framework.imps.CuratorFrameworkState;
+import org.apache.curator.framework.recipes.cache.ChildData;
 import org.apache.curator.framework.recipes.cache.NodeCache;
 import org.apache.curator.framework.recipes.cache.NodeCacheListener;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
 public abstract class DynamicConfigZKAdapter<T> extends AbstractConfigAdapter<T, byte[]> {
 
     private final CuratorFramework curatorFramework;
@@ -20,6 +40,46 @@ public abstract class DynamicConfigZKAdapter<T> extends AbstractConfigAdapter<T,
     private Logger log = LoggerFactory.getLogger(DynamicConfig.class);
     private NodeCacheListener nodeCacheListener;
     private NodeCache nodeCache;
+    private final ChunkCache chunkCache;
+    private boolean followPatches;
+    private CuratorWatcher childrenWatcher;
+    private ConnectionStateListener connectionStateListener;
+    /**
+     * names of the patch children of the znode, as last listed
+     */
+    private volatile Set<String> patchNames = Collections.emptySet();
+    /**
+     * the decoded snapshot with the patches applied so far, null until a patch is applied
+     */
+    private JsonNode patchedTree;
+    /**
+     * mzxid of the snapshot patchedTree and patchSeq refer to
+     */
+    private long patchBase = -1;
+    /**
+     * sequence of the last patch applied to the snapshot, -1 if the patches no longer apply
+     */
+    private int patchSeq;
+    /**
+     * patches of the current snapshot fetched but not yet applicable, by sequence
+     */
+    private final SortedMap<Integer, JsonPatchLog.Patch> pendingPatches = new TreeMap<Integer, JsonPatchLog.Patch>();
+    /**
+     * names of the patch znodes already fetched
+     */
+    private final Set<String> fetchedPatches = new HashSet<String>();
+    /**
+     * mzxid of the znode version last decoded into config, -1 if nothing has been decoded yet
+     */
+    private long decodedMzxid = -1;
+    /**
+     * true if the znode version at decodedMzxid could not be decoded, so its patches are not applied
+     */
+    private boolean decodeFailed;
+    /**
+     * mtime of the znode version last decoded into config
+     */
+    private long decodedMtime;
 
     public DynamicConfigZKAdapter(final Class<T> clazz,
                                   final String path,
@@ -34,10 +94,54 @@ public abstract class DynamicConfigZKAdapter<T> extends AbstractConfigAdapter<T,
         this.curatorFramework = curatorFramework;
         this.path = path;
         this.nodeCache = new NodeCache(curatorFramework, path);
+        this.chunkCache = new ChunkCache(curatorFramework, path);
+    }
+
+    /**
+     * Follow the {@link JsonPatchLog patches} published against the znode's snapshot, applying each to the cached
+     * configuration as it is written. Off by default, since it watches the znode's children. Must be set before the
+     * adapter is started.
+     *
+     * @param followPatches true to apply patches
+     */
+    public void setFollowPatches(boolean followPatches) {
+        this.followPatches = followPatches;
     }
 
+    /**
+     * Starts watching the znode. With a {@link com.librato.watchconf.adapter.SnapshotCache} holding a snapshot, the
+     * snapshot is served immediately and the znode is read in the background, notifying listeners if it differs.
+     */
     public void start() throws Exception {
         started.set(true);
+        SnapshotCache.Snapshot snapshot = restoreSnapshot();
+        if (snapshot == null) {
+            connect();
+            refresh();
+            applyPatches();
+            return;
+        }
+
+        synchronized (this) {
+            decodedMzxid = snapshot.getVersion();
+            decodeFailed = false;
+        }
+        reconcileAsync("watchconf-zk-reconcile " + path, new Callable<Void>() {
+            public Void call() throws Exception {
+                connect();
+                if (refresh() | applyPatches()) {
+                    notifyListeners();
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Creates the znode if missing, starts the cache of the znode and, when following patches, lists them. Safe to
+     * retry: a cache started by a failed attempt is rebuilt rather than started again.
+     */
+    private void connect() throws Exception {
         if (curatorFramework.checkExists().forPath(path) == null) {
             try {
                 curatorFramework.create().creatingParentsIfNeeded().forPath(path, "{}".getBytes());
@@ -46,19 +150,214 @@ public abstract class DynamicConfigZKAdapter<T> extends AbstractConfigAdapter<T,
             }
         }
 
-        this.nodeCacheListener = new NodeCacheListener() {
-            public void nodeChanged() throws Exception {
-                notifyListeners(get());
+        if (nodeCacheListener != null) {
+            nodeCache.rebuild();
+        } else {
+            this.nodeCacheListener = new NodeCacheListener() {
+                public void nodeChanged() throws Exception {
+                    if (refresh()) {
+                        applyPatches();
+                        notifyListeners();
+                        metrics.delivered(System.currentTimeMillis() - decodedMtime);
+                    } else if (applyPatches()) {
+                        notifyListeners();
+                    }
+                }
+            };
+
+            this.nodeCache.getListenable().addListener(nodeCacheListener);
+            this.nodeCache.start(true);
+        }
+
+        if (followPatches) {
+            watchPatches();
+        }
+    }
+
+    /**
+     * Lists the patches of the znode and watches its children for more. Only the children's names are read, so
+     * chunks and other children are neither fetched nor watched.
+     */
+    private void watchPatches() throws Exception {
+        if (childrenWatcher == null) {
+            this.childrenWatcher = new CuratorWatcher() {
+                public void process(WatchedEvent event) throws Exception {
+                    if (event.getType() == Watcher.Event.EventType.NodeChildrenChanged && started.get()) {
+                        patchesChanged();
+                    }
+                }
+            };
+            this.connectionStateListener = new ConnectionStateListener() {
+                public void stateChanged(CuratorFramework client, ConnectionState newState) {
+                    // the watch is lost if the session expired
+                    if (newState == ConnectionState.RECONNECTED && started.get()) {
+                        patchesChanged();
+                    }
+                }
+            };
+            curatorFramework.getConnectionStateListenable().addListener(connectionStateListener);
+        }
+        listPatches();
+    }
+
+    private void listPatches() throws Exception {
+        Set<String> names = new HashSet<String>();
+        for (String child : curatorFramework.getChildren().usingWatcher(childrenWatcher).forPath(path)) {
+            if (JsonPatchLog.isPatch(child)) {
+                names.add(child);
             }
-        };
+        }
+        patchNames = names;
+    }
 
-        this.nodeCache.getListenable().addListener(nodeCacheListener);
-        this.nodeCache.start(true);
+    private void patchesChanged() {
+        try {
+            listPatches();
+        } catch (Exception ex) {
+            // watched again on reconnect
+            log.error("unable to list patches of " + path, ex);
+            return;
+        }
+        if (applyPatches()) {
+            notifyListeners();
+        }
+    }
+
+    /**
+     * Stops watching the znode and its patches, and stops a pending reconcile with a snapshot.
+     */
+    @Override
+    public void shutdown() throws Exception {
+        started.set(false);
+        nodeCache.close();
+        if (connectionStateListener != null) {
+            curatorFramework.getConnectionStateListenable().removeListener(connectionStateListener);
+        }
     }
 
-    public Optional<T> get() throws Exception {
-        Preconditions.checkArgument(started.get(), "Adapter must be started before calling get");
-        return Optional.of(converter.toDomain(nodeCache.getCurrentData().getData(), clazz));
+    /**
+     * Decodes the cached znode into config, once per znode version. The mzxid is used rather than
+     * the data version since it stays unique if the znode is deleted and re-created. A znode holding a
+     * {@link ChunkedPayload} manifest is reassembled from its chunks first. A deleted znode is reported to listeners
+     * and the last configuration is kept.
+     *
+     * @return true if a new version was decoded and published
+     */
+    private synchronized boolean refresh() {
+        ChildData childData = nodeCache.getCurrentData();
+        if (childData == null || childData.getStat() == null) {
+            log.error("{} was deleted, keeping last configuration", path);
+            notifyListenersOnError(new KeeperException.NoNodeException(path));
+            return false;
+        }
+
+        long mzxid = childData.getStat().getMzxid();
+        if (mzxid == decodedMzxid) {
+            return false;
+        }
+
+        byte[] data;
+        try {
+            data = chunkCache.resolve(childData.getData());
+        } catch (Exception ex) {
+            // left undecoded, the push that removed a chunk changes the manifest again
+            log.error("unable to read chunked config", ex);
+            notifyListenersOnError(ex);
+            return false;
+        }
+
+        decodedMzxid = mzxid;
+        decodedMtime = childData.getStat().getMtime();
+        decodeFailed = !getAndSet(data, mzxid);
+        return !decodeFailed;
+    }
+
+    /**
+     * Applies the {@link JsonPatchLog patches} published against the decoded snapshot that have not been applied
+     * yet, in sequence, to the snapshot's tree, and publishes the result. The tree is kept once a patch has been
+     * applied so later patches only bind, rather than fetch and parse, the whole configuration. If a patch is
+     * missing from the sequence or fails to apply, later patches are ignored until a new snapshot is written. Patches
+     * of a snapshot that failed to decode are not applied, since the snapshot's error has already been reported.
+     *
+     * @return true if a patched configuration was published
+     */
+    private synchronized boolean applyPatches() {
+        ChildData snapshot = nodeCache.getCurrentData();
+        if (snapshot == null || snapshot.getStat() == null || snapshot.getStat().getMzxid() != decodedMzxid || decodeFailed) {
+            return false;
+        }
+
+        long base = decodedMzxid;
+        if (base != patchBase) {
+            patchBase = base;
+            patchSeq = 0;
+            patchedTree = null;
+            pendingPatches.clear();
+        }
+
+        Set<String> children = patchNames;
+        List<String> names = new ArrayList<String>();
+        for (String name : children) {
+            if (!fetchedPatches.contains(name)) {
+                names.add(name);
+            }
+        }
+        fetchedPatches.retainAll(children);
+        if (names.isEmpty() || patchSeq < 0) {
+            return false;
+        }
+
+        try {
+            for (JsonPatchLog.Patch patch : JsonPatchLog.read(curatorFramework, path, names)) {
+                // a patch of a snapshot not seen yet is fetched again once it is
+                if (patch.base <= base) {
+                    fetchedPatches.add(patch.name);
+                }
+                if (patch.base == base && patch.seq > patchSeq) {
+                    pendingPatches.put(patch.seq, patch);
+                }
+            }
+
+            if (pendingPatches.isEmpty() || pendingPatches.firstKey() != patchSeq + 1) {
+                if (!pendingPatches.isEmpty()) {
+                    log.warn("patch {} of {} is missing, waiting for a new snapshot", patchSeq + 1, path);
+                }
+                return false;
+            }
+
+            if (!(converter instanceof TreeConverter)) {
+                throw new IllegalStateException("patches require a TreeConverter");
+            }
+
+            JsonNode tree = patchedTree;
+            if (tree == null) {
+                tree = ((TreeConverter<T>) converter).toTree(Stamp.strip(chunkCache.resolve(snapshot.getData())));
+            }
+
+            Stamp stamp = null;
+            int size = 0;
+            while (!pendingPatches.isEmpty() && pendingPatches.firstKey() == patchSeq + 1) {
+                JsonPatchLog.Patch patch = pendingPatches.remove(pendingPatches.firstKey());
+                tree = JsonPatch.apply(tree, patch.operations);
+                patchSeq = patch.seq;
+                stamp = patch.stamp;
+                size += patch.size;
+            }
+
+            metrics.reloaded(size);
+            patchedTree = tree;
+            if (!setTree(tree)) {
+                patchSeq = -1;
+                return false;
+            }
+            stamped(stamp);
+            return true;
+        } catch (Exception ex) {
+            log.error("unable to apply patches to " + path + ", waiting for a new snapshot", ex);
+            patchSeq = -1;
+            notifyListenersOnError(ex);
+            return false;
+        }
     }
 
     public DynamicConfigZKAdapter(Class<T> clazz, String path, CuratorFramework curatorFramework, Converter converter) throws Exception {
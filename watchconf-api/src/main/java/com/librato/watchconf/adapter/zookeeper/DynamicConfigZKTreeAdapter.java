@@ -0,0 +1,306 @@
+package com.librato.watchconf.adapter.zookeeper;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.librato.watchconf.adapter.AbstractDynamicConfig;
+import com.librato.watchconf.adapter.ListenerRegistry;
+import com.librato.watchconf.converter.Converter;
+import com.librato.watchconf.converter.Stamp;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.imps.CuratorFrameworkState;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.TreeCache;
+import org.apache.curator.framework.recipes.cache.TreeCacheEvent;
+import org.apache.curator.framework.recipes.cache.TreeCacheListener;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches every child of a znode with a single {@link TreeCache}, exposing them as one configuration keyed by child
+ * name. This replaces one {@link DynamicConfigZKAdapter}, and its watch, per znode when there are many configurations
+ * of the same type, for example one per tenant.
+ * <p>
+ * {@link #get()} returns an immutable snapshot of the children, rebuilt after a change. Children are decoded when the
+ * first snapshot is built, and a child is decoded again only after it changes, so an update to one child never
+ * re-parses the others. While listeners are registered a changed child is decoded as it arrives instead, and a
+ * decode error is reported to them once, from the watcher thread. If a child cannot be decoded its last good value
+ * is kept; a child that has never decoded, or has no data, is left out of the snapshot.
+ * <p>
+ * {@link EntryListener}s receive a delta per changed child. {@link com.librato.watchconf.DynamicConfig.ChangeListener}s
+ * receive a new snapshot on every change; only the changed child is decoded.
+ *
+ * @param <T> The type of each child configuration.
+ */
+public abstract class DynamicConfigZKTreeAdapter<T> extends AbstractDynamicConfig<Map<String, T>> {
+
+    /**
+     * Notified of changes to individual children.
+     *
+     * @param <T> The type of each child configuration.
+     */
+    public interface EntryListener<T> {
+        /**
+         * @param key name of the child that changed
+         * @param t its new value, absent if the child was removed
+         */
+        void onEntryChange(String key, Optional<T> t);
+
+        /**
+         * @param key name of the child that could not be decoded
+         * @param ex decoding error
+         */
+        void onEntryError(String key, Exception ex);
+    }
+
+    private static final long INITIALIZE_TIMEOUT_SECONDS = 30;
+
+    private final Logger log = LoggerFactory.getLogger(DynamicConfigZKTreeAdapter.class);
+    private final CuratorFramework curatorFramework;
+    private final String path;
+    private final Class<T> clazz;
+    private final Converter<T, byte[]> converter;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final ListenerRegistry<EntryListener> entryListeners = new ListenerRegistry<EntryListener>(new EntryListener[0]);
+    private final CountDownLatch initialized = new CountDownLatch(1);
+    private final TreeCache treeCache;
+    /**
+     * set when a child changes, so the next read rebuilds the snapshot held in config
+     */
+    private volatile boolean stale = true;
+
+    public DynamicConfigZKTreeAdapter(Class<T> clazz, String path, CuratorFramework curatorFramework, Converter<T, byte[]> converter) throws Exception {
+        this(clazz, path, curatorFramework, converter, null);
+    }
+
+    public DynamicConfigZKTreeAdapter(final Class<T> clazz,
+                                      final String path,
+                                      final CuratorFramework curatorFramework,
+                                      Converter<T, byte[]> converter,
+                                      ChangeListener<Map<String, T>> changeListener) throws Exception {
+        super(Optional.fromNullable(changeListener));
+        Preconditions.checkArgument(converter != null, "converter cannot be null");
+        Preconditions.checkNotNull(curatorFramework, "CuratorFramework cannot be null");
+        Preconditions.checkArgument(curatorFramework.getState() == CuratorFrameworkState.STARTED, "CuratorFramework must be started");
+        Preconditions.checkArgument(path != null && !"".equals(path), "path cannot be null or blank");
+
+        this.clazz = clazz;
+        this.converter = converter;
+        this.curatorFramework = curatorFramework;
+        this.path = path;
+        this.treeCache = TreeCache.newBuilder(curatorFramework, path).setMaxDepth(1).build();
+    }
+
+    @Override
+    public Optional<Map<String, T>> get() throws Exception {
+        Preconditions.checkArgument(started.get(), "Adapter must be started before calling get");
+        return Optional.of(snapshot());
+    }
+
+    /**
+     * Start watching, returning once the current children have been read. Children are not decoded until read.
+     */
+    public void start() throws Exception {
+        started.set(true);
+        if (curatorFramework.checkExists().forPath(path) == null) {
+            try {
+                curatorFramework.create().creatingParentsIfNeeded().forPath(path);
+            } catch (KeeperException.NodeExistsException ex) {
+                log.info("Node exists on create, continuing");
+            }
+        }
+
+        treeCache.getListenable().addListener(new TreeCacheListener() {
+            public void childEvent(CuratorFramework client, TreeCacheEvent event) throws Exception {
+                switch (event.getType()) {
+                    case NODE_ADDED:
+                    case NODE_UPDATED:
+                        if (!isRoot(event.getData())) {
+                            childChanged(event.getData());
+                        }
+                        break;
+                    case NODE_REMOVED:
+                        if (!isRoot(event.getData())) {
+                            childRemoved(event.getData());
+                        }
+                        break;
+                    case INITIALIZED:
+                        initialized.countDown();
+                        break;
+                    default:
+                        break;
+                }
+            }
+        });
+        treeCache.start();
+
+        if (!initialized.await(INITIALIZE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            log.warn("timed out reading children of " + path + ", continuing with a partial view");
+        }
+    }
+
+    public void registerEntryListener(EntryListener<T> entryListener) {
+        Preconditions.checkArgument(entryListener != null, "entryListener cannot be null");
+        entryListeners.add(entryListener);
+    }
+
+    public void removeEntryListener(EntryListener<T> entryListener) {
+        entryListeners.remove(entryListener);
+    }
+
+    public void shutdown() throws Exception {
+        started.set(false);
+        treeCache.close();
+    }
+
+    private boolean isRoot(ChildData childData) {
+        return childData == null || childData.getPath().equals(path);
+    }
+
+    private boolean isInitialized() {
+        return initialized.getCount() == 0;
+    }
+
+    private void childChanged(ChildData childData) {
+        String key = ZKPaths.getNodeFromPath(childData.getPath());
+        Entry previous = entries.get(key);
+        if (previous != null && previous.mzxid == childData.getStat().getMzxid()) {
+            return;
+        }
+
+        Entry entry = new Entry(key, childData, previous);
+        entries.put(key, entry);
+        stale = true;
+        if (childData.getData() != null) {
+            metrics.reloaded(childData.getData().length);
+        }
+        if (!isInitialized()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        if (!entryListeners.isEmpty() || !changeListenerList.isEmpty()) {
+            // decoded on arrival so a decode error reaches listeners from this thread, rather than a reader's
+            T t = entry.value();
+            if (entry.error != null) {
+                for (EntryListener entryListener : entryListeners.snapshot()) {
+                    entryListener.onEntryError(key, entry.error);
+                }
+                notifyListenersOnError(entry.error);
+            } else {
+                for (EntryListener entryListener : entryListeners.snapshot()) {
+                    entryListener.onEntryChange(key, Optional.fromNullable(t));
+                }
+            }
+        }
+        if (!changeListenerList.isEmpty()) {
+            notifyListeners(Optional.of(snapshot()));
+        }
+        metrics.notified(System.nanoTime() - start);
+        metrics.delivered(System.currentTimeMillis() - childData.getStat().getMtime());
+    }
+
+    private void childRemoved(ChildData childData) {
+        String key = ZKPaths.getNodeFromPath(childData.getPath());
+        if (entries.remove(key) == null) {
+            return;
+        }
+        stale = true;
+        if (!isInitialized()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        for (EntryListener entryListener : entryListeners.snapshot()) {
+            entryListener.onEntryChange(key, Optional.absent());
+        }
+        if (!changeListenerList.isEmpty()) {
+            notifyListeners(Optional.of(snapshot()));
+        }
+        metrics.notified(System.nanoTime() - start);
+    }
+
+    /**
+     * @return the current children, rebuilt if any changed since the last snapshot, decoding those not yet decoded
+     */
+    private synchronized Map<String, T> snapshot() {
+        if (stale) {
+            stale = false;
+            ImmutableMap.Builder<String, T> builder = ImmutableMap.builder();
+            for (Entry entry : entries.values()) {
+                T t = entry.value();
+                if (t != null) {
+                    builder.put(entry.key, t);
+                }
+            }
+            config.set(Optional.<Map<String, T>>of(builder.build()));
+        }
+        return config.get().get();
+    }
+
+    /**
+     * One version of a child, decoded at most once on first read. A failed decode is recorded, not retried.
+     */
+    private class Entry {
+        private final String key;
+        private final long mzxid;
+        private ChildData childData;
+        private Entry lastGood;
+        private T value;
+        /**
+         * why this version could not be decoded, null if it was or has not been decoded yet
+         */
+        private Exception error;
+        private volatile boolean decoded;
+
+        Entry(String key, ChildData childData, Entry previous) {
+            this.key = key;
+            this.mzxid = childData.getStat().getMzxid();
+            this.childData = childData;
+            this.lastGood = previous == null ? null : previous.lastGood();
+        }
+
+        T value() {
+            if (!decoded) {
+                decode();
+            }
+            return value;
+        }
+
+        /**
+         * @return this entry if it has been decoded, otherwise the entry whose value it would fall back to
+         */
+        private synchronized Entry lastGood() {
+            return decoded ? this : lastGood;
+        }
+
+        private synchronized void decode() {
+            if (decoded) {
+                return;
+            }
+
+            try {
+                byte[] data = childData.getData() == null ? null : Stamp.strip(childData.getData());
+                long start = System.nanoTime();
+                value = data == null ? null : converter.toDomain(data, clazz);
+                metrics.decoded(System.nanoTime() - start);
+            } catch (Exception ex) {
+                log.error("unable to parse config " + childData.getPath(), ex);
+                metrics.decodeFailed();
+                error = ex;
+                value = lastGood == null ? null : lastGood.value();
+            }
+
+            childData = null;
+            lastGood = null;
+            decoded = true;
+        }
+    }
+}
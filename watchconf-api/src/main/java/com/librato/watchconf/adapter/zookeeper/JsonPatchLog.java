@@ -0,0 +1,216 @@
+package com.librato.watchconf.adapter.zookeeper;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.librato.watchconf.converter.Compression;
+import com.librato.watchconf.converter.Format;
+import com.librato.watchconf.converter.JsonPatch;
+import com.librato.watchconf.converter.Stamp;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Small changes to a large configuration published as {@link JsonPatch}es rather than a new copy of the whole
+ * document. The configuration's znode keeps a full snapshot, and each change is a persistent sequential child
+ * {@code patch-<sequence>} holding a patch against the snapshot with all earlier patches applied:
+ * <pre>
+ * {"base": &lt;mzxid of the snapshot&gt;, "seq": &lt;1, 2, ...&gt;, "patch": [&lt;JSON Patch operations&gt;]}
+ * </pre>
+ * Writing a new snapshot changes its mzxid, which retires every earlier patch at once, so the patches can be
+ * deleted afterwards at leisure. A reader that finds a gap in the sequence waits for the next snapshot, and a
+ * publisher that finds one writes a snapshot instead of a patch. Patches assume a single publisher per znode.
+ */
+public class JsonPatchLog {
+
+    public static final String PATCH_PREFIX = "patch-";
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    public enum Result {
+        /**
+         * the configuration already has this content
+         */
+        UNCHANGED,
+        /**
+         * the change was published as a patch
+         */
+        PATCHED,
+        /**
+         * the change must be written as a full snapshot: there is no snapshot, the content cannot be patched, the
+         * patch sequence has a gap or is at its limit, or the patch would not be smaller than the snapshot
+         */
+        SNAPSHOT_REQUIRED
+    }
+
+    static class Patch {
+        final String name;
+        final long base;
+        final int seq;
+        final JsonNode operations;
+        final Stamp stamp;
+        final int size;
+
+        Patch(String name, long base, int seq, JsonNode operations, Stamp stamp, int size) {
+            this.name = name;
+            this.base = base;
+            this.seq = seq;
+            this.operations = operations;
+            this.stamp = stamp;
+            this.size = size;
+        }
+    }
+
+    private JsonPatchLog() {
+    }
+
+    /**
+     * @param name child znode name
+     * @return true if name is a patch
+     */
+    public static boolean isPatch(String name) {
+        return name.startsWith(PATCH_PREFIX);
+    }
+
+    /**
+     * Publishes payload to path as a patch against the current configuration if possible.
+     *
+     * @param framework started client
+     * @param path the configuration's znode
+     * @param payload serialized configuration, optionally stamped, the stamp is moved to the patch
+     * @param maxPatches most patches to keep against one snapshot
+     * @return what was published, the caller writes a snapshot on {@link Result#SNAPSHOT_REQUIRED} and then
+     * {@link #deletePatches deletes the patches}
+     */
+    public static Result publish(CuratorFramework framework, String path, byte[] payload, int maxPatches) throws Exception {
+        Stat stat = new Stat();
+        byte[] current;
+        try {
+            current = framework.getData().storingStatIn(stat).forPath(path);
+        } catch (KeeperException.NoNodeException ex) {
+            return Result.SNAPSHOT_REQUIRED;
+        }
+
+        JsonNode target = parse(payload);
+        JsonNode tree = current == null ? null : parse(new ChunkCache(framework, path).resolve(current));
+        if (target == null || tree == null) {
+            return Result.SNAPSHOT_REQUIRED;
+        }
+
+        int seq = 0;
+        List<String> children = stat.getNumChildren() > 0 ? framework.getChildren().forPath(path) : Collections.<String>emptyList();
+        for (Patch patch : read(framework, path, children)) {
+            if (patch.base != stat.getMzxid()) {
+                continue;
+            }
+            if (patch.seq != seq + 1) {
+                return Result.SNAPSHOT_REQUIRED;
+            }
+            tree = JsonPatch.apply(tree, patch.operations);
+            seq++;
+        }
+
+        JsonNode operations = JsonPatch.diff(tree, target);
+        if (operations.size() == 0) {
+            return Result.UNCHANGED;
+        }
+
+        byte[] patch = encode(stat.getMzxid(), seq + 1, operations, Stamp.read(payload));
+        if (seq >= maxPatches || patch.length >= payload.length) {
+            return Result.SNAPSHOT_REQUIRED;
+        }
+
+        // the check fails the patch if the snapshot is replaced meanwhile
+        framework.transaction().forOperations(
+                framework.transactionOp().check().withVersion(stat.getVersion()).forPath(path),
+                framework.transactionOp().create().withMode(CreateMode.PERSISTENT_SEQUENTIAL).forPath(ZKPaths.makePath(path, PATCH_PREFIX), patch));
+        return Result.PATCHED;
+    }
+
+    /**
+     * Deletes the patches under path. Call after writing a snapshot, which has already retired them.
+     *
+     * @param framework started client
+     * @param path the configuration's znode
+     */
+    public static void deletePatches(CuratorFramework framework, String path) throws Exception {
+        for (String child : framework.getChildren().forPath(path)) {
+            if (isPatch(child)) {
+                try {
+                    framework.delete().forPath(ZKPaths.makePath(path, child));
+                } catch (KeeperException.NoNodeException ex) {
+                    // deleted concurrently
+                }
+            }
+        }
+    }
+
+    /**
+     * Fetches the patches among children, skipping other children and patches deleted meanwhile.
+     *
+     * @return the patches in base then sequence order
+     */
+    static List<Patch> read(CuratorFramework framework, String path, List<String> children) throws Exception {
+        List<Patch> patches = new ArrayList<Patch>();
+        for (String child : children) {
+            if (!isPatch(child)) {
+                continue;
+            }
+
+            try {
+                patches.add(decode(child, framework.getData().forPath(ZKPaths.makePath(path, child))));
+            } catch (KeeperException.NoNodeException ex) {
+                // retired by a snapshot and deleted
+            }
+        }
+
+        Collections.sort(patches, new Comparator<Patch>() {
+            public int compare(Patch left, Patch right) {
+                if (left.base != right.base) {
+                    return left.base < right.base ? -1 : 1;
+                }
+                return left.seq < right.seq ? -1 : left.seq == right.seq ? 0 : 1;
+            }
+        });
+        return patches;
+    }
+
+    static byte[] encode(long base, int seq, JsonNode operations, Stamp stamp) throws IOException {
+        ObjectNode patch = objectMapper.createObjectNode();
+        patch.put("base", base);
+        patch.put("seq", seq);
+        patch.set("patch", operations);
+        byte[] bytes = objectMapper.writeValueAsBytes(patch);
+        return stamp == null ? bytes : stamp.apply(bytes);
+    }
+
+    static Patch decode(String name, byte[] data) throws IOException {
+        JsonNode patch = objectMapper.readTree(Stamp.strip(data));
+        if (patch == null || !patch.path("base").canConvertToLong() || !patch.path("seq").canConvertToInt() || !patch.path("patch").isArray()) {
+            throw new IOException("malformed patch " + name);
+        }
+        return new Patch(name, patch.get("base").asLong(), patch.get("seq").asInt(), patch.get("patch"), Stamp.read(data), data.length);
+    }
+
+    /**
+     * @return the tree of a serialized configuration, null if it is compressed or empty and cannot be patched
+     */
+    private static JsonNode parse(byte[] payload) throws IOException {
+        byte[] body = Stamp.strip(payload);
+        if (Compression.detect(body) != Compression.NONE) {
+            return null;
+        }
+        if (body.length == 0) {
+            return null;
+        }
+        return Format.detect(body).newObjectMapper().readTree(body);
+    }
+}
@@ -0,0 +1,132 @@
+package com.librato.watchconf.converter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A base for {@link com.librato.watchconf.converter.StreamingConverter}s and
+ * {@link com.librato.watchconf.converter.TreeConverter}s backed by a Jackson
+ * {@link com.fasterxml.jackson.databind.ObjectMapper}. An {@link com.fasterxml.jackson.databind.ObjectReader} and
+ * {@link com.fasterxml.jackson.databind.ObjectWriter} are built once per class and reused, so deserializers and
+ * serializers are not looked up on every conversion.
+ *
+ * @param <T> the type referenced by this converter
+ */
+public abstract class AbstractJacksonConverter<T> implements StreamingConverter<T>, TreeConverter<T> {
+
+    private final ObjectMapper objectMapper;
+    private final ConcurrentMap<Class<?>, ObjectReader> readers = new ConcurrentHashMap<Class<?>, ObjectReader>();
+    private final ConcurrentMap<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<Class<?>, ObjectWriter>();
+
+    protected AbstractJacksonConverter(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    protected ObjectMapper getObjectMapper() {
+        return objectMapper;
+    }
+
+    /**
+     * @param clazz the class to read
+     * @return the cached reader for clazz
+     */
+    protected ObjectReader reader(Class<?> clazz) {
+        ObjectReader reader = readers.get(clazz);
+        if (reader == null) {
+            reader = objectMapper.reader(clazz);
+            ObjectReader existing = readers.putIfAbsent(clazz, reader);
+            if (existing != null) {
+                reader = existing;
+            }
+        }
+        return reader;
+    }
+
+    /**
+     * @param clazz the class to write
+     * @return the cached writer for clazz
+     */
+    protected ObjectWriter writer(Class<?> clazz) {
+        ObjectWriter writer = writers.get(clazz);
+        if (writer == null) {
+            writer = objectMapper.writerWithType(clazz);
+            ObjectWriter existing = writers.putIfAbsent(clazz, writer);
+            if (existing != null) {
+                writer = existing;
+            }
+        }
+        return writer;
+    }
+
+    @Override
+    public T toDomain(byte[] bytes, Class<T> clazz) throws IOException {
+        return reader(clazz).readValue(bytes);
+    }
+
+    /**
+     * Parsers close their source when done ({@link com.fasterxml.jackson.core.JsonParser.Feature#AUTO_CLOSE_SOURCE}),
+     * and the YAML factory decides that when it creates the parser, so inputStream is shielded from the close instead.
+     */
+    @Override
+    public T toDomain(InputStream inputStream, Class<T> clazz) throws IOException {
+        return reader(clazz).readValue(new FilterInputStream(inputStream) {
+            @Override
+            public void close() {
+                // left open for the caller
+            }
+        });
+    }
+
+    @Override
+    public T toDomain(ByteBuffer buffer, Class<T> clazz) throws IOException {
+        if (buffer.hasArray()) {
+            return reader(clazz).readValue(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        return reader(clazz).readValue(new ByteBufferBackedInputStream(buffer.duplicate()));
+    }
+
+    @Override
+    public JsonNode toTree(byte[] bytes) throws IOException {
+        return objectMapper.readTree(bytes);
+    }
+
+    @Override
+    public <R> R fromTree(JsonNode node, Class<R> clazz) throws IOException {
+        return reader(clazz).readValue(node);
+    }
+
+    @Override
+    public byte[] fromDomain(T t) throws IOException {
+        return writer(t.getClass()).writeValueAsBytes(t);
+    }
+
+    /**
+     * Converters are equal if they are of the same class and share an {@link ObjectMapper}, so they read and write
+     * alike.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        return objectMapper == ((AbstractJacksonConverter<?>) o).objectMapper;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * getClass().hashCode() + System.identityHashCode(objectMapper);
+    }
+}
@@ -0,0 +1,18 @@
+package com.librato.watchconf.converter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+/**
+ * An implementation of {@link com.librato.watchconf.converter.Converter} that serializes and de-serializes
+ * CBOR (RFC 7049).
+ * @param <T> the type referenced by this converter
+ */
+public class CBORConverter<T> extends AbstractJacksonConverter<T> {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper(new CBORFactory());
+
+    public CBORConverter() {
+        super(objectMapper);
+    }
+}
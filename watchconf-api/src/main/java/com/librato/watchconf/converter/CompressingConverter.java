@@ -0,0 +1,137 @@
+package com.librato.watchconf.converter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import com.google.common.base.Preconditions;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Wraps a {@link com.librato.watchconf.converter.Converter} to compress the payloads it writes. Payloads are
+ * decompressed on read only if they carry a compression header, so readers handle both compressed and plain
+ * payloads while writers are migrated.
+ * <p>
+ * If the wrapped converter is a {@link com.librato.watchconf.converter.StreamingConverter}, compressed payloads are
+ * decompressed as they are parsed rather than into an intermediate byte[]. The tree methods of
+ * {@link com.librato.watchconf.converter.TreeConverter}, used for deltas, patches and path listeners, decompress and
+ * delegate to the wrapped converter, which must then be a TreeConverter itself.
+ *
+ * @param <T> the type referenced by this converter
+ */
+public class CompressingConverter<T> implements StreamingConverter<T>, TreeConverter<T> {
+
+    private final Converter<T, byte[]> converter;
+    private final Compression compression;
+
+    /**
+     * @param converter converter for the uncompressed payload
+     * @param compression codec used by {@link #fromDomain(Object)}; NONE writes plain payloads but still reads
+     *                    compressed ones
+     */
+    public CompressingConverter(Converter<T, byte[]> converter, Compression compression) {
+        Preconditions.checkArgument(converter != null, "converter cannot be null");
+        Preconditions.checkArgument(compression != null, "compression cannot be null");
+        this.converter = converter;
+        this.compression = compression;
+    }
+
+    public CompressingConverter(Converter<T, byte[]> converter) {
+        this(converter, Compression.GZIP);
+    }
+
+    @Override
+    public T toDomain(byte[] bytes, Class<T> clazz) throws Exception {
+        Compression detected = Compression.detect(bytes);
+        if (detected == Compression.NONE) {
+            return converter.toDomain(bytes, clazz);
+        }
+
+        if (converter instanceof StreamingConverter) {
+            return ((StreamingConverter<T>) converter).toDomain(detected.decompress(new ByteArrayInputStream(bytes)), clazz);
+        }
+        return converter.toDomain(detected.decompress(bytes), clazz);
+    }
+
+    @Override
+    public T toDomain(ByteBuffer buffer, Class<T> clazz) throws Exception {
+        Compression detected = Compression.detect(buffer);
+        if (detected == Compression.NONE && converter instanceof StreamingConverter) {
+            return ((StreamingConverter<T>) converter).toDomain(buffer, clazz);
+        }
+        return toDomain(new ByteBufferBackedInputStream(buffer.duplicate()), clazz);
+    }
+
+    @Override
+    public T toDomain(InputStream inputStream, Class<T> clazz) throws Exception {
+        InputStream markable = inputStream.markSupported() ? inputStream : new BufferedInputStream(inputStream);
+        markable.mark(2);
+        byte[] head = new byte[2];
+        int length = 0;
+        int read;
+        while (length < head.length && (read = markable.read(head, length, head.length - length)) > 0) {
+            length += read;
+        }
+        markable.reset();
+
+        InputStream decompressed = Compression.detect(ByteBuffer.wrap(head, 0, length)).decompress(markable);
+        if (converter instanceof StreamingConverter) {
+            return ((StreamingConverter<T>) converter).toDomain(decompressed, clazz);
+        }
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        while ((read = decompressed.read(buffer)) > 0) {
+            outputStream.write(buffer, 0, read);
+        }
+        return converter.toDomain(outputStream.toByteArray(), clazz);
+    }
+
+    /**
+     * @throws UnsupportedOperationException if the wrapped converter is not a TreeConverter
+     */
+    @Override
+    public JsonNode toTree(byte[] bytes) throws Exception {
+        return treeConverter().toTree(Compression.detect(bytes).decompress(bytes));
+    }
+
+    /**
+     * @throws UnsupportedOperationException if the wrapped converter is not a TreeConverter
+     */
+    @Override
+    public <R> R fromTree(JsonNode node, Class<R> clazz) throws Exception {
+        return treeConverter().fromTree(node, clazz);
+    }
+
+    private TreeConverter<T> treeConverter() {
+        if (!(converter instanceof TreeConverter)) {
+            throw new UnsupportedOperationException(converter.getClass().getName() + " is not a TreeConverter");
+        }
+        return (TreeConverter<T>) converter;
+    }
+
+    @Override
+    public byte[] fromDomain(T t) throws Exception {
+        return compression.compress(converter.fromDomain(t));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        CompressingConverter<?> that = (CompressingConverter<?>) o;
+        return compression == that.compression && converter.equals(that.converter);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * converter.hashCode() + compression.hashCode();
+    }
+}
@@ -0,0 +1,113 @@
+package com.librato.watchconf.converter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression codecs for stored configuration. A compressed payload is identified by the codec's header bytes, which
+ * never begin a JSON, YAML, Smile or CBOR document, so compressed and plain payloads can be told apart on read.
+ */
+public enum Compression {
+    NONE,
+    /**
+     * gzip (RFC 1952), identified by its 0x1f 0x8b header
+     */
+    GZIP;
+
+    private static final int GZIP_MAGIC_0 = 0x1f;
+    private static final int GZIP_MAGIC_1 = 0x8b;
+
+    /**
+     * Look up a codec by its lower case name, as used on the command line.
+     *
+     * @param name none or gzip
+     * @return the codec, or null if the name is unknown
+     */
+    public static Compression fromName(String name) {
+        for (Compression compression : values()) {
+            if (compression.name().equalsIgnoreCase(name)) {
+                return compression;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param buffer payload, inspected from its position without changing it
+     * @return the codec the payload is compressed with, NONE if it is not compressed
+     */
+    public static Compression detect(ByteBuffer buffer) {
+        int position = buffer.position();
+        if (buffer.remaining() >= 2
+                && (buffer.get(position) & 0xFF) == GZIP_MAGIC_0
+                && (buffer.get(position + 1) & 0xFF) == GZIP_MAGIC_1) {
+            return GZIP;
+        }
+        return NONE;
+    }
+
+    public static Compression detect(byte[] bytes) {
+        return detect(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * @param bytes data to compress
+     * @return bytes compressed with this codec
+     * @throws IOException unable to compress
+     */
+    public byte[] compress(byte[] bytes) throws IOException {
+        if (this == NONE) {
+            return bytes;
+        }
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream);
+        try {
+            gzipOutputStream.write(bytes);
+        } finally {
+            gzipOutputStream.close();
+        }
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * @param inputStream stream of data compressed with this codec
+     * @return a stream of the decompressed data
+     * @throws IOException unable to read the codec's header
+     */
+    public InputStream decompress(InputStream inputStream) throws IOException {
+        if (this == NONE) {
+            return inputStream;
+        }
+        return new GZIPInputStream(inputStream, 8192);
+    }
+
+    /**
+     * @param bytes data compressed with this codec
+     * @return the decompressed data
+     * @throws IOException unable to decompress
+     */
+    public byte[] decompress(byte[] bytes) throws IOException {
+        if (this == NONE) {
+            return bytes;
+        }
+
+        InputStream inputStream = decompress(new ByteArrayInputStream(bytes));
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(bytes.length * 4);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = inputStream.read(buffer)) > 0) {
+                outputStream.write(buffer, 0, read);
+            }
+            return outputStream.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+}
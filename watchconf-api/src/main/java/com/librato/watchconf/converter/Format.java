@@ -0,0 +1,144 @@
+package com.librato.watchconf.converter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Serialization formats supported by watchconf, and detection of the format of a payload from its leading bytes.
+ */
+public enum Format {
+    JSON,
+    YAML,
+    SMILE,
+    CBOR;
+
+    private static final byte[] SMILE_HEADER = {':', ')', '\n'};
+
+    /**
+     * @return a new {@link com.fasterxml.jackson.databind.ObjectMapper} for this format
+     */
+    public ObjectMapper newObjectMapper() {
+        switch (this) {
+            case YAML:
+                return new ObjectMapper(new YAMLFactory());
+            case SMILE:
+                return new ObjectMapper(new SmileFactory());
+            case CBOR:
+                return new ObjectMapper(new CBORFactory());
+            default:
+                return new ObjectMapper();
+        }
+    }
+
+    /**
+     * @param <T> the type referenced by the converter
+     * @return a new converter for this format
+     */
+    public <T> AbstractJacksonConverter<T> newConverter() {
+        switch (this) {
+            case YAML:
+                return new YAMLConverter<T>();
+            case SMILE:
+                return new SmileConverter<T>();
+            case CBOR:
+                return new CBORConverter<T>();
+            default:
+                return new JsonConverter<T>();
+        }
+    }
+
+    /**
+     * Look up a format by its lower case name, as used on the command line.
+     *
+     * @param name json, yaml, smile or cbor
+     * @return the format, or null if the name is unknown
+     */
+    public static Format fromName(String name) {
+        for (Format format : values()) {
+            if (format.name().equalsIgnoreCase(name)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Detects the format of a payload. Smile is recognized by its ":)\n" header; CBOR by the self-describe tag or a
+     * leading array or map, neither of which can begin a UTF-8 text document. A leading object is JSON if its first
+     * key is quoted or it is empty, and a leading array is JSON if its first element is a string, number, object or
+     * array or it is empty. Anything else, including flow-style YAML such as {@code {id: 1}} or {@code [a, b]}, is
+     * treated as YAML, which also parses JSON.
+     * <p>
+     * Detection only looks at the first token, so flow-style YAML that starts like JSON, for example
+     * {@code {"id": one}}, is detected as JSON, and CBOR or Smile documents holding a single scalar are not
+     * recognized.
+     *
+     * @param buffer payload, inspected from its position without changing it
+     * @return the detected format
+     */
+    public static Format detect(ByteBuffer buffer) {
+        int position = buffer.position();
+        int limit = buffer.limit();
+
+        if (limit - position >= SMILE_HEADER.length
+                && buffer.get(position) == SMILE_HEADER[0]
+                && buffer.get(position + 1) == SMILE_HEADER[1]
+                && buffer.get(position + 2) == SMILE_HEADER[2]) {
+            return SMILE;
+        }
+
+        if (position < limit) {
+            int first = buffer.get(position) & 0xFF;
+            // self-describe tag 55799 (0xD9D9F7), major type 4 (array) or major type 5 (map)
+            if (first == 0xD9 || (first >= 0x80 && first <= 0xBF)) {
+                return CBOR;
+            }
+        }
+
+        int start = skipWhitespace(buffer, position, limit);
+        if (start == limit) {
+            return JSON;
+        }
+
+        byte b = buffer.get(start);
+        if (b != '{' && b != '[') {
+            return YAML;
+        }
+
+        int next = skipWhitespace(buffer, start + 1, limit);
+        if (next == limit) {
+            return YAML;
+        }
+
+        byte c = buffer.get(next);
+        if (b == '{') {
+            return c == '"' || c == '}' ? JSON : YAML;
+        }
+        return c == '"' || c == '{' || c == '[' || c == ']' || c == '-' || (c >= '0' && c <= '9') ? JSON : YAML;
+    }
+
+    private static int skipWhitespace(ByteBuffer buffer, int from, int limit) {
+        int i = from;
+        while (i < limit) {
+            byte b = buffer.get(i);
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @param bytes payload
+     * @return the detected format
+     * @see #detect(java.nio.ByteBuffer)
+     */
+    public static Format detect(byte[] bytes) {
+        return detect(ByteBuffer.wrap(bytes));
+    }
+}
@@ -0,0 +1,94 @@
+package com.librato.watchconf.converter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * A {@link com.librato.watchconf.converter.StreamingConverter} and {@link com.librato.watchconf.converter.TreeConverter}
+ * that detects the format of each payload from its leading bytes, so a config can be migrated between JSON, YAML,
+ * Smile and CBOR without redeploying readers. Configurations are serialized in the output format given at
+ * construction.
+ *
+ * @param <T> the type referenced by this converter
+ * @see com.librato.watchconf.converter.Format#detect(java.nio.ByteBuffer)
+ */
+public class FormatDetectingConverter<T> implements StreamingConverter<T>, TreeConverter<T> {
+
+    private static final int DETECT_LIMIT = 64;
+    private final Map<Format, AbstractJacksonConverter<T>> converters = new EnumMap<Format, AbstractJacksonConverter<T>>(Format.class);
+    private final Format outputFormat;
+
+    public FormatDetectingConverter() {
+        this(Format.JSON);
+    }
+
+    /**
+     * @param outputFormat format used by {@link #fromDomain(Object)}
+     */
+    public FormatDetectingConverter(Format outputFormat) {
+        this.outputFormat = outputFormat;
+        for (Format format : Format.values()) {
+            converters.put(format, format.<T>newConverter());
+        }
+    }
+
+    @Override
+    public T toDomain(byte[] bytes, Class<T> clazz) throws Exception {
+        return converters.get(Format.detect(bytes)).toDomain(bytes, clazz);
+    }
+
+    @Override
+    public T toDomain(ByteBuffer buffer, Class<T> clazz) throws Exception {
+        return converters.get(Format.detect(buffer)).toDomain(buffer, clazz);
+    }
+
+    @Override
+    public T toDomain(InputStream inputStream, Class<T> clazz) throws Exception {
+        InputStream markable = inputStream.markSupported() ? inputStream : new BufferedInputStream(inputStream);
+        markable.mark(DETECT_LIMIT);
+        byte[] head = new byte[DETECT_LIMIT];
+        int length = 0;
+        int read;
+        while (length < head.length && (read = markable.read(head, length, head.length - length)) > 0) {
+            length += read;
+        }
+        markable.reset();
+        return converters.get(Format.detect(ByteBuffer.wrap(head, 0, length))).toDomain(markable, clazz);
+    }
+
+    @Override
+    public JsonNode toTree(byte[] bytes) throws Exception {
+        return converters.get(Format.detect(bytes)).toTree(bytes);
+    }
+
+    @Override
+    public <R> R fromTree(JsonNode node, Class<R> clazz) throws Exception {
+        return converters.get(outputFormat).fromTree(node, clazz);
+    }
+
+    @Override
+    public byte[] fromDomain(T t) throws Exception {
+        return converters.get(outputFormat).fromDomain(t);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        return outputFormat == ((FormatDetectingConverter<?>) o).outputFormat;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * getClass().hashCode() + outputFormat.hashCode();
+    }
+}
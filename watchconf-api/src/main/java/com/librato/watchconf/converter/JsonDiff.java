@@ -0,0 +1,74 @@
+package com.librato.watchconf.converter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Computes the structural difference between two {@link com.fasterxml.jackson.databind.JsonNode} trees as a set of
+ * <a href="https://tools.ietf.org/html/rfc6901">JSON pointers</a>. Objects are compared field by field and arrays of
+ * equal length element by element; any other difference is reported at the deepest path that contains it, so an
+ * array that grew or shrank is reported as a whole.
+ */
+public final class JsonDiff {
+
+    /**
+     * The pointer to the whole document.
+     */
+    public static final String ROOT = "";
+
+    private JsonDiff() {
+    }
+
+    /**
+     * @param previous previous tree, may be null
+     * @param current current tree, may be null
+     * @return the sorted pointers of every changed value, empty if the trees are equal
+     */
+    public static Set<String> changedPaths(JsonNode previous, JsonNode current) {
+        Set<String> changedPaths = new TreeSet<String>();
+        diff(ROOT, previous, current, changedPaths);
+        return changedPaths;
+    }
+
+    /**
+     * @param name an object field name
+     * @return name escaped for use as a JSON pointer segment
+     */
+    public static String escape(String name) {
+        return name.replace("~", "~0").replace("/", "~1");
+    }
+
+    private static void diff(String path, JsonNode previous, JsonNode current, Set<String> changedPaths) {
+        if (previous == null || current == null) {
+            if (previous != current) {
+                changedPaths.add(path);
+            }
+            return;
+        }
+
+        if (previous.isObject() && current.isObject()) {
+            Iterator<String> names = previous.fieldNames();
+            while (names.hasNext()) {
+                String name = names.next();
+                diff(path + "/" + escape(name), previous.get(name), current.get(name), changedPaths);
+            }
+
+            names = current.fieldNames();
+            while (names.hasNext()) {
+                String name = names.next();
+                if (!previous.has(name)) {
+                    changedPaths.add(path + "/" + escape(name));
+                }
+            }
+        } else if (previous.isArray() && current.isArray() && previous.size() == current.size()) {
+            for (int i = 0; i < previous.size(); i++) {
+                diff(path + "/" + i, previous.get(i), current.get(i), changedPaths);
+            }
+        } else if (!previous.equals(current)) {
+            changedPaths.add(path);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.librato.watchconf.converter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Computes and applies <a href="https://tools.ietf.org/html/rfc6902">JSON Patch</a> documents using the add, remove
+ * and replace operations. Patches are applied copy-on-write: only the containers on the path of each operation are
+ * copied, so the patched tree shares every untouched subtree with the original and the original is unchanged.
+ */
+public final class JsonPatch {
+
+    private static final JsonNodeFactory nodeFactory = JsonNodeFactory.instance;
+
+    private JsonPatch() {
+    }
+
+    /**
+     * @param source tree to patch
+     * @param target tree the patch should produce
+     * @return a patch that turns source into target, empty if they are equal
+     */
+    public static ArrayNode diff(JsonNode source, JsonNode target) {
+        ArrayNode patch = nodeFactory.arrayNode();
+        diff(JsonDiff.ROOT, source, target, patch);
+        return patch;
+    }
+
+    private static void diff(String path, JsonNode source, JsonNode target, ArrayNode patch) {
+        if (source.equals(target)) {
+            return;
+        }
+
+        if (source.isObject() && target.isObject()) {
+            Iterator<String> names = source.fieldNames();
+            while (names.hasNext()) {
+                String name = names.next();
+                String fieldPath = path + "/" + JsonDiff.escape(name);
+                if (target.has(name)) {
+                    diff(fieldPath, source.get(name), target.get(name), patch);
+                } else {
+                    patch.add(operation("remove", fieldPath, null));
+                }
+            }
+
+            names = target.fieldNames();
+            while (names.hasNext()) {
+                String name = names.next();
+                if (!source.has(name)) {
+                    patch.add(operation("add", path + "/" + JsonDiff.escape(name), target.get(name)));
+                }
+            }
+        } else if (source.isArray() && target.isArray()) {
+            int common = Math.min(source.size(), target.size());
+            for (int i = 0; i < common; i++) {
+                diff(path + "/" + i, source.get(i), target.get(i), patch);
+            }
+            // remove from the end so earlier indices stay valid
+            for (int i = source.size() - 1; i >= common; i--) {
+                patch.add(operation("remove", path + "/" + i, null));
+            }
+            for (int i = common; i < target.size(); i++) {
+                patch.add(operation("add", path + "/" + i, target.get(i)));
+            }
+        } else {
+            patch.add(operation("replace", path, target));
+        }
+    }
+
+    private static ObjectNode operation(String op, String path, JsonNode value) {
+        ObjectNode operation = nodeFactory.objectNode();
+        operation.put("op", op);
+        operation.put("path", path);
+        if (value != null) {
+            operation.set("value", value);
+        }
+        return operation;
+    }
+
+    /**
+     * @param tree tree to patch, not modified
+     * @param patch patch to apply
+     * @return the patched tree
+     * @throws IOException the patch is malformed, uses an unsupported operation, or does not apply to tree
+     */
+    public static JsonNode apply(JsonNode tree, JsonNode patch) throws IOException {
+        if (!patch.isArray()) {
+            throw new IOException("patch must be an array of operations");
+        }
+
+        JsonNode patched = tree;
+        for (JsonNode operation : patch) {
+            String op = operation.path("op").asText();
+            JsonNode path = operation.get("path");
+            JsonNode value = operation.get("value");
+            if (path == null || !path.isTextual()) {
+                throw new IOException("operation has no path: " + operation);
+            }
+            if (!"remove".equals(op) && value == null) {
+                throw new IOException("operation has no value: " + operation);
+            }
+            if (!"add".equals(op) && !"remove".equals(op) && !"replace".equals(op)) {
+                throw new IOException("unsupported operation: " + operation);
+            }
+
+            patched = apply(patched, parse(path.asText()), 0, op, value);
+        }
+        return patched;
+    }
+
+    private static JsonNode apply(JsonNode node, List<String> tokens, int index, String op, JsonNode value) throws IOException {
+        if (index == tokens.size()) {
+            if ("remove".equals(op)) {
+                throw new IOException("cannot remove the whole document");
+            }
+            return value;
+        }
+
+        String token = tokens.get(index);
+        boolean last = index == tokens.size() - 1;
+        if (node.isObject()) {
+            ObjectNode copy = nodeFactory.objectNode();
+            copy.setAll((ObjectNode) node);
+            if (!last) {
+                copy.set(token, apply(child(node.get(token), token), tokens, index + 1, op, value));
+            } else if ("add".equals(op)) {
+                copy.set(token, value);
+            } else {
+                child(node.get(token), token);
+                if ("remove".equals(op)) {
+                    copy.remove(token);
+                } else {
+                    copy.set(token, value);
+                }
+            }
+            return copy;
+        }
+
+        if (node.isArray()) {
+            ArrayNode copy = nodeFactory.arrayNode();
+            copy.addAll((ArrayNode) node);
+            if (last && "add".equals(op)) {
+                int position = "-".equals(token) ? node.size() : arrayIndex(token, node.size() + 1);
+                copy.insert(position, value);
+                return copy;
+            }
+
+            int position = arrayIndex(token, node.size());
+            if (!last) {
+                copy.set(position, apply(node.get(position), tokens, index + 1, op, value));
+            } else if ("remove".equals(op)) {
+                copy.remove(position);
+            } else {
+                copy.set(position, value);
+            }
+            return copy;
+        }
+
+        throw new IOException("cannot traverse into " + node.getNodeType() + " at " + token);
+    }
+
+    private static JsonNode child(JsonNode child, String token) throws IOException {
+        if (child == null) {
+            throw new IOException("no value at " + token);
+        }
+        return child;
+    }
+
+    private static int arrayIndex(String token, int bound) throws IOException {
+        try {
+            int position = Integer.parseInt(token);
+            if (position >= 0 && position < bound) {
+                return position;
+            }
+        } catch (NumberFormatException ex) {
+            // reported below
+        }
+        throw new IOException("invalid array index " + token);
+    }
+
+    private static List<String> parse(String pointer) throws IOException {
+        List<String> tokens = new ArrayList<String>();
+        if (pointer.isEmpty()) {
+            return tokens;
+        }
+        if (pointer.charAt(0) != '/') {
+            throw new IOException("invalid JSON pointer " + pointer);
+        }
+
+        for (String token : pointer.substring(1).split("/", -1)) {
+            tokens.add(token.replace("~1", "/").replace("~0", "~"));
+        }
+        return tokens;
+    }
+}
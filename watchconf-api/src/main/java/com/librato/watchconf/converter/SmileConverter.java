@@ -0,0 +1,18 @@
+package com.librato.watchconf.converter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * An implementation of {@link com.librato.watchconf.converter.Converter} that serializes and de-serializes
+ * Smile, Jackson's binary JSON format. Smile payloads are smaller than JSON and faster to decode.
+ * @param <T> the type referenced by this converter
+ */
+public class SmileConverter<T> extends AbstractJacksonConverter<T> {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper(new SmileFactory());
+
+    public SmileConverter() {
+        super(objectMapper);
+    }
+}
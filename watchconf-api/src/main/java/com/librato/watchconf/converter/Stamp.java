@@ -0,0 +1,85 @@
+package com.librato.watchconf.converter;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A version and push time prepended to a stored configuration so readers can measure how long a change took to
+ * reach them. The header begins with a zero byte, which never begins a JSON, YAML, Smile, CBOR or gzip payload, so
+ * stamped and unstamped payloads can be told apart on read. Adapters strip the header before converting.
+ */
+public class Stamp {
+
+    /**
+     * Length of the header: 4 magic bytes, an 8 byte version and an 8 byte timestamp, big-endian.
+     */
+    public static final int HEADER_LENGTH = 20;
+    private static final byte[] MAGIC = {0x00, 'w', 'c', 's'};
+
+    private final long version;
+    private final long timestampMillis;
+
+    public Stamp(long version, long timestampMillis) {
+        this.version = version;
+        this.timestampMillis = timestampMillis;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return time the configuration was pushed, in milliseconds since the epoch
+     */
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    /**
+     * @param payload serialized configuration
+     * @return payload prefixed with this stamp's header
+     */
+    public byte[] apply(byte[] payload) {
+        return ByteBuffer.allocate(HEADER_LENGTH + payload.length)
+                .put(MAGIC)
+                .putLong(version)
+                .putLong(timestampMillis)
+                .put(payload)
+                .array();
+    }
+
+    /**
+     * @param buffer payload, inspected from its position without changing it
+     * @return the payload's stamp, null if it is not stamped
+     */
+    public static Stamp read(ByteBuffer buffer) {
+        int position = buffer.position();
+        if (buffer.remaining() < HEADER_LENGTH) {
+            return null;
+        }
+
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(position + i) != MAGIC[i]) {
+                return null;
+            }
+        }
+        return new Stamp(buffer.getLong(position + MAGIC.length), buffer.getLong(position + MAGIC.length + 8));
+    }
+
+    public static Stamp read(byte[] bytes) {
+        return read(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * @param bytes payload
+     * @return the payload without its stamp, or bytes itself if it is not stamped
+     */
+    public static byte[] strip(byte[] bytes) {
+        return read(bytes) == null ? bytes : Arrays.copyOfRange(bytes, HEADER_LENGTH, bytes.length);
+    }
+
+    @Override
+    public String toString() {
+        return "Stamp{version=" + version + ", timestampMillis=" + timestampMillis + "}";
+    }
+}
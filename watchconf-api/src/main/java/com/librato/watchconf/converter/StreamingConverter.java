@@ -0,0 +1,34 @@
+package com.librato.watchconf.converter;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link com.librato.watchconf.converter.Converter} that can also de-serialize directly from a stream or buffer,
+ * so callers don't need to materialize the serialized form in a byte[] first.
+ *
+ * @param <T> The type of object this converter converts.
+ */
+public interface StreamingConverter<T> extends Converter<T, byte[]> {
+
+    /**
+     * Converts serialized data read from an InputStream to an instance of T. The stream is not closed.
+     *
+     * @param inputStream stream of serialized data
+     * @param clazz The class of type T
+     * @return a deserialized instance of T
+     * @throws Exception unable to convert to T
+     */
+    T toDomain(InputStream inputStream, Class<T> clazz) throws Exception;
+
+    /**
+     * Converts the remaining bytes of a buffer, from its position to its limit, to an instance of T. The buffer's
+     * position is not changed.
+     *
+     * @param buffer serialized data
+     * @param clazz The class of type T
+     * @return a deserialized instance of T
+     * @throws Exception unable to convert to T
+     */
+    T toDomain(ByteBuffer buffer, Class<T> clazz) throws Exception;
+}
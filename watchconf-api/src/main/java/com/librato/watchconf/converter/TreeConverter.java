@@ -0,0 +1,33 @@
+package com.librato.watchconf.converter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * A {@link com.librato.watchconf.converter.Converter} that can parse serialized data to a
+ * {@link com.fasterxml.jackson.databind.JsonNode} tree and bind a tree, or any part of one, to an object. Adapters
+ * use the tree to work out which parts of a configuration changed.
+ *
+ * @param <T> The type of object this converter converts.
+ */
+public interface TreeConverter<T> extends Converter<T, byte[]> {
+
+    /**
+     * Parses serialized data to a tree.
+     *
+     * @param bytes serialized data
+     * @return the parsed tree
+     * @throws Exception unable to parse
+     */
+    JsonNode toTree(byte[] bytes) throws Exception;
+
+    /**
+     * Binds a tree to an instance of clazz.
+     *
+     * @param node tree, or a subtree, returned by {@link #toTree(byte[])}
+     * @param clazz class to bind to
+     * @param <R> type to bind to
+     * @return a deserialized instance of R
+     * @throws Exception unable to bind to R
+     */
+    <R> R fromTree(JsonNode node, Class<R> clazz) throws Exception;
+}
@@ -0,0 +1,83 @@
+package com.librato.watchconf.metrics;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Preconditions;
+import com.librato.watchconf.ConfigMetrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reports a configuration's measurements to a Dropwizard {@link MetricRegistry}, under
+ * {@code watchconf.<name>.reloads}, {@code .payload-bytes}, {@code .decode}, {@code .decode-failures},
+ * {@code .notify}, {@code .delivery-lag}, {@code .propagation} and the gauge {@code .applied-version}, -1 until a
+ * stamped configuration is applied. Metrics are registered at construction; the counters and timers of an
+ * earlier instance with the same name are shared, and its gauge is replaced.
+ */
+public class DropwizardConfigMetrics implements ConfigMetrics {
+
+    private final Counter reloads;
+    private final Histogram payloadBytes;
+    private final Timer decode;
+    private final Counter decodeFailures;
+    private final Timer notify;
+    private final Timer deliveryLag;
+    private final Timer propagation;
+    private final AtomicLong appliedVersion = new AtomicLong(-1);
+
+    /**
+     * @param registry registry to report to
+     * @param name name of the configuration, for example its path
+     */
+    public DropwizardConfigMetrics(MetricRegistry registry, String name) {
+        Preconditions.checkArgument(registry != null, "registry cannot be null");
+        Preconditions.checkArgument(name != null && !name.isEmpty(), "name cannot be null or blank");
+        this.reloads = registry.counter(MetricRegistry.name("watchconf", name, "reloads"));
+        this.payloadBytes = registry.histogram(MetricRegistry.name("watchconf", name, "payload-bytes"));
+        this.decode = registry.timer(MetricRegistry.name("watchconf", name, "decode"));
+        this.decodeFailures = registry.counter(MetricRegistry.name("watchconf", name, "decode-failures"));
+        this.notify = registry.timer(MetricRegistry.name("watchconf", name, "notify"));
+        this.deliveryLag = registry.timer(MetricRegistry.name("watchconf", name, "delivery-lag"));
+        this.propagation = registry.timer(MetricRegistry.name("watchconf", name, "propagation"));
+        String appliedVersionName = MetricRegistry.name("watchconf", name, "applied-version");
+        synchronized (registry) {
+            // replaces the gauge of an earlier adapter of the same name, which would otherwise fail registration
+            registry.remove(appliedVersionName);
+            registry.register(appliedVersionName, new Gauge<Long>() {
+                public Long getValue() {
+                    return appliedVersion.get();
+                }
+            });
+        }
+    }
+
+    public void reloaded(int bytes) {
+        reloads.inc();
+        payloadBytes.update(bytes);
+    }
+
+    public void decoded(long nanos) {
+        decode.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void decodeFailed() {
+        decodeFailures.inc();
+    }
+
+    public void notified(long nanos) {
+        notify.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void delivered(long lagMillis) {
+        deliveryLag.update(Math.max(0, lagMillis), TimeUnit.MILLISECONDS);
+    }
+
+    public void applied(long version, long latencyMillis) {
+        appliedVersion.set(version);
+        propagation.update(Math.max(0, latencyMillis), TimeUnit.MILLISECONDS);
+    }
+}
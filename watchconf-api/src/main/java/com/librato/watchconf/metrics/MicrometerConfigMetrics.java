@@ -0,0 +1,88 @@
+package com.librato.watchconf.metrics;
+
+import com.google.common.base.Preconditions;
+import com.librato.watchconf.ConfigMetrics;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Reports a configuration's measurements to a Micrometer {@link MeterRegistry}, as {@code watchconf.reloads},
+ * {@code watchconf.payload.size}, {@code watchconf.decode}, {@code watchconf.decode.failures},
+ * {@code watchconf.notify}, {@code watchconf.delivery.lag}, {@code watchconf.propagation} and the gauge
+ * {@code watchconf.applied.version}, -1 until a stamped configuration is applied, each tagged with
+ * {@code config=<name>}. Meters are registered at construction; the counters and timers of an earlier instance with
+ * the same name are shared, and its gauge is replaced.
+ */
+public class MicrometerConfigMetrics implements ConfigMetrics {
+
+    private static final String CONFIG_TAG = "config";
+    private final Counter reloads;
+    private final DistributionSummary payloadSize;
+    private final Timer decode;
+    private final Counter decodeFailures;
+    private final Timer notify;
+    private final Timer deliveryLag;
+    private final Timer propagation;
+    private final AtomicLong appliedVersion = new AtomicLong(-1);
+
+    /**
+     * @param registry registry to report to
+     * @param name name of the configuration, for example its path
+     */
+    public MicrometerConfigMetrics(MeterRegistry registry, String name) {
+        Preconditions.checkArgument(registry != null, "registry cannot be null");
+        Preconditions.checkArgument(name != null && !name.isEmpty(), "name cannot be null or blank");
+        this.reloads = Counter.builder("watchconf.reloads").tag(CONFIG_TAG, name).register(registry);
+        this.payloadSize = DistributionSummary.builder("watchconf.payload.size").baseUnit("bytes").tag(CONFIG_TAG, name).register(registry);
+        this.decode = Timer.builder("watchconf.decode").tag(CONFIG_TAG, name).register(registry);
+        this.decodeFailures = Counter.builder("watchconf.decode.failures").tag(CONFIG_TAG, name).register(registry);
+        this.notify = Timer.builder("watchconf.notify").tag(CONFIG_TAG, name).register(registry);
+        this.deliveryLag = Timer.builder("watchconf.delivery.lag").tag(CONFIG_TAG, name).register(registry);
+        this.propagation = Timer.builder("watchconf.propagation").tag(CONFIG_TAG, name).publishPercentileHistogram().register(registry);
+        synchronized (registry) {
+            // the registry would return the gauge of an earlier adapter of the same name, reading its version
+            Gauge existing = registry.find("watchconf.applied.version").tag(CONFIG_TAG, name).gauge();
+            if (existing != null) {
+                registry.remove(existing);
+            }
+            Gauge.builder("watchconf.applied.version", appliedVersion, new ToDoubleFunction<AtomicLong>() {
+                public double applyAsDouble(AtomicLong value) {
+                    return value.get();
+                }
+            }).tag(CONFIG_TAG, name).register(registry);
+        }
+    }
+
+    public void reloaded(int bytes) {
+        reloads.increment();
+        payloadSize.record(bytes);
+    }
+
+    public void decoded(long nanos) {
+        decode.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void decodeFailed() {
+        decodeFailures.increment();
+    }
+
+    public void notified(long nanos) {
+        notify.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void delivered(long lagMillis) {
+        deliveryLag.record(Math.max(0, lagMillis), TimeUnit.MILLISECONDS);
+    }
+
+    public void applied(long version, long latencyMillis) {
+        appliedVersion.set(version);
+        propagation.record(Math.max(0, latencyMillis), TimeUnit.MILLISECONDS);
+    }
+}
@@ -9,6 +9,20 @@ public class ExampleConfig {
     public String name;
     public List<Thing> things = new ArrayList();
 
+    /**
+     * @param things number of things to add
+     * @return a config with id 1, name ray and things named thing1 onwards
+     */
+    public static ExampleConfig example(int things) {
+        ExampleConfig exampleConfig = new ExampleConfig();
+        exampleConfig.id = 1;
+        exampleConfig.name = "ray";
+        for (int i = 1; i <= things; i++) {
+            exampleConfig.things.add(new Thing("thing" + i));
+        }
+        return exampleConfig;
+    }
+
     public static class Thing {
         public String name;
 
@@ -0,0 +1,171 @@
+package com.librato.watchconf;
+
+import com.google.common.base.Optional;
+import com.librato.watchconf.adapter.AbstractDynamicConfig;
+import org.junit.Before;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.*;
+
+public class ConfigPublisherTest {
+
+    private StubConfig dynamicConfig;
+
+    private static class StubConfig extends AbstractDynamicConfig<String> {
+        StubConfig() {
+            super(Optional.<ChangeListener<String>>absent());
+        }
+
+        public void start() {
+            started.set(true);
+        }
+
+        void set(String value) {
+            config.set(Optional.fromNullable(value));
+            notifyListeners(config.get());
+        }
+
+        int listeners() {
+            return changeListenerList.snapshot().length;
+        }
+    }
+
+    private static class RecordingSubscriber implements Subscriber<String> {
+        final List<String> values = new ArrayList<String>();
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        Subscription subscription;
+
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        public void onNext(String s) {
+            values.add(s);
+        }
+
+        public void onError(Throwable throwable) {
+            errors.add(throwable);
+        }
+
+        public void onComplete() {
+        }
+    }
+
+    @Before
+    public void before() {
+        dynamicConfig = new StubConfig();
+        dynamicConfig.start();
+        dynamicConfig.set("v1");
+    }
+
+    @Test
+    public void testDeliversOnlyOnDemand() {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        new ConfigPublisher<String>(dynamicConfig).subscribe(subscriber);
+        assertTrue(subscriber.values.isEmpty());
+
+        subscriber.subscription.request(1);
+        assertEquals(1, subscriber.values.size());
+        assertEquals("v1", subscriber.values.get(0));
+
+        dynamicConfig.set("v2");
+        assertEquals(1, subscriber.values.size());
+        subscriber.subscription.request(1);
+        assertEquals("v2", subscriber.values.get(1));
+    }
+
+    @Test
+    public void testConflatesToLatest() {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        new ConfigPublisher<String>(dynamicConfig).subscribe(subscriber);
+        for (int i = 2; i <= 1000; i++) {
+            dynamicConfig.set("v" + i);
+        }
+
+        subscriber.subscription.request(10);
+        assertEquals(1, subscriber.values.size());
+        assertEquals("v1000", subscriber.values.get(0));
+
+        // outstanding demand is used by later changes
+        dynamicConfig.set("v1001");
+        dynamicConfig.set(null);
+        dynamicConfig.set("v1002");
+        assertEquals(3, subscriber.values.size());
+        assertEquals("v1002", subscriber.values.get(2));
+    }
+
+    @Test
+    public void testCancelRemovesListener() {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        new ConfigPublisher<String>(dynamicConfig).subscribe(subscriber);
+        assertEquals(1, dynamicConfig.listeners());
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        subscriber.subscription.cancel();
+        assertEquals(0, dynamicConfig.listeners());
+        dynamicConfig.set("v2");
+        assertEquals(1, subscriber.values.size());
+    }
+
+    @Test
+    public void testNonPositiveRequestFails() {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        new ConfigPublisher<String>(dynamicConfig).subscribe(subscriber);
+        subscriber.subscription.request(0);
+        assertEquals(1, subscriber.errors.size());
+        assertTrue(subscriber.errors.get(0) instanceof IllegalArgumentException);
+        assertEquals(0, dynamicConfig.listeners());
+
+        subscriber.subscription.request(1);
+        assertTrue(subscriber.values.isEmpty());
+    }
+
+    @Test
+    public void testSlowSubscriberOnExecutor() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        final CountDownLatch first = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch last = new CountDownLatch(1);
+        final List<String> delivered = new ArrayList<String>();
+        new ConfigPublisher<String>(dynamicConfig, executor).subscribe(new RecordingSubscriber() {
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(String s) {
+                delivered.add(s);
+                first.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                if ("v100".equals(s)) {
+                    last.countDown();
+                }
+            }
+        });
+
+        // changes made while the subscriber is busy do not block the caller and are conflated
+        assertTrue(first.await(10, TimeUnit.SECONDS));
+        for (int i = 2; i <= 100; i++) {
+            dynamicConfig.set("v" + i);
+        }
+        release.countDown();
+        assertTrue(last.await(10, TimeUnit.SECONDS));
+        assertEquals(2, delivered.size());
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,183 @@
+package com.librato.watchconf;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
+import com.librato.ExampleConfig;
+import com.librato.watchconf.converter.CompressingConverter;
+import com.librato.watchconf.converter.Compression;
+import com.librato.watchconf.converter.JsonConverter;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.*;
+
+public class DynamicConfigRegistryTest {
+    private static final String TEST_PATH = "/test/config";
+    private static final AtomicInteger decodes = new AtomicInteger();
+    private TestingServer server;
+    private CuratorFramework curatorFramework;
+    private DynamicConfigRegistry registry;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class CountingConverter extends JsonConverter<ExampleConfig> {
+        @Override
+        public ExampleConfig toDomain(byte[] bytes, Class<ExampleConfig> clazz) throws IOException {
+            decodes.incrementAndGet();
+            return super.toDomain(bytes, clazz);
+        }
+    }
+
+    private static class QueueingListener implements DynamicConfig.ChangeListener<ExampleConfig> {
+        final BlockingQueue<String> names = new LinkedBlockingQueue<String>();
+
+        public void onChange(Optional<ExampleConfig> t) {
+            names.add(t.get().name);
+        }
+
+        public void onError(Exception ex) {
+        }
+    }
+
+    @Before
+    public void before() throws Exception {
+        server = new TestingServer();
+        curatorFramework = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryOneTime(1));
+        curatorFramework.start();
+        curatorFramework.create().creatingParentContainersIfNeeded().forPath(TEST_PATH, getExampleBytes("ray"));
+        registry = new DynamicConfigRegistry();
+        decodes.set(0);
+    }
+
+    @After
+    public void after() throws Exception {
+        curatorFramework.close();
+        server.close();
+    }
+
+    private byte[] getExampleBytes(String name) throws Exception {
+        ExampleConfig exampleConfig = new ExampleConfig();
+        exampleConfig.name = name;
+        return new ObjectMapper().writeValueAsBytes(exampleConfig);
+    }
+
+    @Test
+    public void testSharesOneAdapter() throws Exception {
+        DynamicConfig<ExampleConfig> first = registry.zookeeper(curatorFramework, TEST_PATH, ExampleConfig.class, new CountingConverter());
+        DynamicConfig<ExampleConfig> second = registry.zookeeper(curatorFramework, TEST_PATH, ExampleConfig.class, new CountingConverter());
+        assertNotSame(first, second);
+        assertEquals(1, registry.size());
+
+        QueueingListener firstListener = new QueueingListener();
+        QueueingListener secondListener = new QueueingListener();
+        first.registerListener(firstListener);
+        second.registerListener(secondListener);
+        first.start();
+        assertEquals("ray", second.startAsync().get(30, TimeUnit.SECONDS).get().name);
+        assertSame(first.get().get(), second.get().get());
+        assertEquals(1, decodes.get());
+
+        curatorFramework.setData().forPath(TEST_PATH, getExampleBytes("bob"));
+        assertEquals("bob", firstListener.names.poll(20, TimeUnit.SECONDS));
+        assertEquals("bob", secondListener.names.poll(20, TimeUnit.SECONDS));
+        assertEquals(2, decodes.get());
+    }
+
+    @Test
+    public void testKeyedByConverter() throws Exception {
+        DynamicConfig<ExampleConfig> plain = registry.zookeeper(curatorFramework, TEST_PATH, ExampleConfig.class, new JsonConverter<ExampleConfig>());
+        DynamicConfig<ExampleConfig> compressed = registry.zookeeper(curatorFramework, TEST_PATH, ExampleConfig.class,
+                new CompressingConverter<ExampleConfig>(new JsonConverter<ExampleConfig>(), Compression.GZIP));
+        DynamicConfig<ExampleConfig> compressedAgain = registry.zookeeper(curatorFramework, TEST_PATH, ExampleConfig.class,
+                new CompressingConverter<ExampleConfig>(new JsonConverter<ExampleConfig>(), Compression.GZIP));
+        assertEquals(2, registry.size());
+
+        plain.shutdown();
+        compressed.shutdown();
+        compressedAgain.shutdown();
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void testLastReleaseShutsDownAdapter() throws Exception {
+        DynamicConfig<ExampleConfig> first = registry.zookeeper(curatorFramework, TEST_PATH, ExampleConfig.class, new CountingConverter());
+        DynamicConfig<ExampleConfig> second = registry.zookeeper(curatorFramework, TEST_PATH, ExampleConfig.class, new CountingConverter());
+        QueueingListener firstListener = new QueueingListener();
+        QueueingListener secondListener = new QueueingListener();
+        first.registerListener(firstListener);
+        second.registerListener(secondListener);
+        first.start();
+
+        // releasing one handle removes only its listeners
+        first.shutdown();
+        first.shutdown();
+        assertEquals(1, registry.size());
+        curatorFramework.setData().forPath(TEST_PATH, getExampleBytes("bob"));
+        assertEquals("bob", secondListener.names.poll(20, TimeUnit.SECONDS));
+        assertTrue(firstListener.names.isEmpty());
+        try {
+            first.get();
+            fail("released handle");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+
+        second.shutdown();
+        assertEquals(0, registry.size());
+        curatorFramework.setData().forPath(TEST_PATH, getExampleBytes("alice"));
+        assertNull(secondListener.names.poll(1, TimeUnit.SECONDS));
+        assertEquals(2, decodes.get());
+
+        // a later acquire watches again
+        DynamicConfig<ExampleConfig> third = registry.zookeeper(curatorFramework, TEST_PATH, ExampleConfig.class, new CountingConverter());
+        third.start();
+        assertEquals("alice", third.get().get().name);
+        third.shutdown();
+    }
+
+    @Test
+    public void testLaterStartSeesCurrentConfig() throws Exception {
+        QueueingListener listener = new QueueingListener();
+        DynamicConfig<ExampleConfig> first = registry.zookeeper(curatorFramework, TEST_PATH, ExampleConfig.class, new CountingConverter());
+        first.registerListener(listener);
+        assertEquals("ray", first.startAsync().get(30, TimeUnit.SECONDS).get().name);
+
+        curatorFramework.setData().forPath(TEST_PATH, getExampleBytes("bob"));
+        assertEquals("bob", listener.names.poll(20, TimeUnit.SECONDS));
+        DynamicConfig<ExampleConfig> second = registry.zookeeper(curatorFramework, TEST_PATH, ExampleConfig.class, new CountingConverter());
+        assertEquals("bob", second.startAsync().get(30, TimeUnit.SECONDS).get().name);
+        first.shutdown();
+        second.shutdown();
+    }
+
+    @Test
+    public void testFilesKeyedByNormalizedPath() throws Exception {
+        File file = folder.newFile("config.json");
+        Files.write(file.toPath(), getExampleBytes("ray"));
+        String relative = new File("").getAbsoluteFile().toPath().relativize(file.toPath()).toString();
+        DynamicConfig<ExampleConfig> first = registry.file(relative, ExampleConfig.class, new JsonConverter<ExampleConfig>());
+        DynamicConfig<ExampleConfig> second = registry.file("./" + relative, ExampleConfig.class, new JsonConverter<ExampleConfig>());
+        DynamicConfig<ExampleConfig> third = registry.file(file.getAbsolutePath(), ExampleConfig.class, new JsonConverter<ExampleConfig>());
+        assertEquals(1, registry.size());
+        first.shutdown();
+        second.shutdown();
+        third.shutdown();
+        assertEquals(0, registry.size());
+    }
+}
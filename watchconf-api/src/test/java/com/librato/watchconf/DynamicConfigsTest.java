@@ -0,0 +1,80 @@
+package com.librato.watchconf;
+
+import com.google.common.base.Optional;
+import com.librato.ExampleConfig;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
+
+public class DynamicConfigsTest {
+
+    /**
+     * implements only the abstract methods of {@link DynamicConfig}, as a third party implementation would
+     */
+    private static class MinimalConfig implements DynamicConfig<ExampleConfig> {
+        private final int id;
+        volatile Thread startThread;
+
+        MinimalConfig(int id) {
+            this.id = id;
+        }
+
+        public Optional<ExampleConfig> get() {
+            if (startThread == null) {
+                return Optional.absent();
+            }
+            ExampleConfig exampleConfig = new ExampleConfig();
+            exampleConfig.id = id;
+            return Optional.of(exampleConfig);
+        }
+
+        public void registerListener(ChangeListener changeListener) {
+        }
+
+        public void removeListener(ChangeListener changeListener) {
+        }
+
+        public void start() throws Exception {
+            if (id < 0) {
+                throw new IllegalStateException("cannot start");
+            }
+            startThread = Thread.currentThread();
+        }
+
+        public void shutdown() {
+        }
+    }
+
+    @Test
+    public void testDefaultStartAsync() throws Exception {
+        MinimalConfig minimalConfig = new MinimalConfig(1);
+        assertEquals(1, minimalConfig.startAsync().get(10, TimeUnit.SECONDS).get().id);
+        assertTrue(minimalConfig.startThread.isDaemon());
+        assertTrue(minimalConfig.startThread.getName().startsWith("watchconf-start-"));
+    }
+
+    @Test
+    public void testDefaultStartAsyncFails() throws Exception {
+        try {
+            new MinimalConfig(-1).startAsync().get(10, TimeUnit.SECONDS);
+            fail("start should have failed");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void testStartAll() throws Exception {
+        MinimalConfig first = new MinimalConfig(1);
+        MinimalConfig second = new MinimalConfig(2);
+        DynamicConfigs.startAll(Arrays.asList(first, second)).get(10, TimeUnit.SECONDS);
+        assertEquals(1, first.get().get().id);
+        assertEquals(2, second.get().get().id);
+    }
+}
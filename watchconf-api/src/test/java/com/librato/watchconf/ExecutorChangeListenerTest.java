@@ -0,0 +1,189 @@
+package com.librato.watchconf;
+
+import com.google.common.base.Optional;
+import com.librato.ExampleConfig;
+import com.librato.watchconf.adapter.AbstractConfigAdapter;
+import com.librato.watchconf.converter.JsonConverter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+public class ExecutorChangeListenerTest {
+
+    private ExecutorService slowExecutor;
+    private ExecutorService fastExecutor;
+    private ExampleConfigAdapter adapter;
+
+    private static class ExampleConfigAdapter extends AbstractConfigAdapter<ExampleConfig, byte[]> {
+
+        ExampleConfigAdapter() {
+            super(ExampleConfig.class, new JsonConverter<ExampleConfig>(), Optional.<ChangeListener<ExampleConfig>>absent());
+        }
+
+        @Override
+        public void start() throws Exception {
+            started.set(true);
+        }
+
+        void change(Optional<ExampleConfig> t) {
+            notifyListeners(t);
+        }
+
+        int listenerCount() {
+            return changeListenerList.snapshot().length;
+        }
+    }
+
+    /**
+     * implements only the abstract methods of {@link DynamicConfig}, as a third party implementation would
+     */
+    private static class MinimalConfig implements DynamicConfig<ExampleConfig> {
+        final List<ChangeListener> changeListeners = new CopyOnWriteArrayList<ChangeListener>();
+        public Optional<ExampleConfig> get() {
+            return Optional.absent();
+        }
+
+        public void registerListener(ChangeListener changeListener) {
+            changeListeners.add(changeListener);
+        }
+
+        public void removeListener(ChangeListener changeListener) {
+            changeListeners.remove(changeListener);
+        }
+
+        public void start() {
+        }
+
+        public void shutdown() {
+        }
+    }
+
+    private static Optional<ExampleConfig> config(int id) {
+        ExampleConfig exampleConfig = new ExampleConfig();
+        exampleConfig.id = id;
+        return Optional.of(exampleConfig);
+    }
+
+    @Before
+    public void before() throws Exception {
+        slowExecutor = Executors.newSingleThreadExecutor();
+        fastExecutor = Executors.newSingleThreadExecutor();
+        adapter = new ExampleConfigAdapter();
+        adapter.start();
+    }
+
+    @After
+    public void after() {
+        slowExecutor.shutdownNow();
+        fastExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testSlowListenerDoesNotBlockOthers() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch fastNotified = new CountDownLatch(1);
+        adapter.registerListener(new DynamicConfig.ChangeListener<ExampleConfig>() {
+            public void onChange(Optional<ExampleConfig> t) {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            public void onError(Exception ex) {
+            }
+        }, slowExecutor);
+        adapter.registerListener(new DynamicConfig.ChangeListener<ExampleConfig>() {
+            public void onChange(Optional<ExampleConfig> t) {
+                fastNotified.countDown();
+            }
+
+            public void onError(Exception ex) {
+            }
+        }, fastExecutor);
+
+        adapter.change(config(1));
+        assertTrue(fastNotified.await(10, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    public void testSlowListenerSeesLatestValue() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        final List<Integer> seen = new CopyOnWriteArrayList<Integer>();
+        adapter.registerListener(new DynamicConfig.ChangeListener<ExampleConfig>() {
+            public void onChange(Optional<ExampleConfig> t) {
+                seen.add(t.get().id);
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }
+
+            public void onError(Exception ex) {
+            }
+        }, slowExecutor);
+
+        adapter.change(config(0));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        for (int i = 1; i <= 100; i++) {
+            adapter.change(config(i));
+        }
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        assertEquals(2, seen.size());
+        assertEquals(0, (int) seen.get(0));
+        assertEquals(100, (int) seen.get(1));
+    }
+
+    @Test
+    public void testRemoveExecutorListener() throws Exception {
+        DynamicConfig.ChangeListener<ExampleConfig> listener = new DynamicConfig.ChangeListener<ExampleConfig>() {
+            public void onChange(Optional<ExampleConfig> t) {
+            }
+
+            public void onError(Exception ex) {
+            }
+        };
+        adapter.registerListener(listener, fastExecutor);
+        assertEquals(1, adapter.listenerCount());
+        adapter.removeListener(listener);
+        assertEquals(0, adapter.listenerCount());
+    }
+
+    @Test
+    public void testDefaultRegisterWrapsListener() throws Exception {
+        final CountDownLatch notified = new CountDownLatch(1);
+        MinimalConfig minimalConfig = new MinimalConfig();
+        minimalConfig.registerListener(new DynamicConfig.ChangeListener<ExampleConfig>() {
+            public void onChange(Optional<ExampleConfig> t) {
+                notified.countDown();
+            }
+
+            public void onError(Exception ex) {
+            }
+        }, fastExecutor);
+
+        assertEquals(1, minimalConfig.changeListeners.size());
+        assertTrue(minimalConfig.changeListeners.get(0) instanceof ExecutorChangeListener);
+        minimalConfig.changeListeners.get(0).onChange(config(1));
+        assertTrue(notified.await(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,157 @@
+package com.librato.watchconf.adapter;
+
+import com.google.common.base.Optional;
+import com.librato.ExampleConfig;
+import com.librato.watchconf.DynamicConfig;
+import com.librato.watchconf.converter.JsonConverter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertSame;
+import static junit.framework.TestCase.assertTrue;
+
+public class LazyDecodingTest {
+
+    private final AtomicInteger decodes = new AtomicInteger();
+    private volatile CountDownLatch decodeGate = new CountDownLatch(0);
+    private ExecutorService executor;
+    private ExampleConfigAdapter adapter;
+
+    private class ExampleConfigAdapter extends AbstractConfigAdapter<ExampleConfig, byte[]> {
+
+        ExampleConfigAdapter() {
+            super(ExampleConfig.class, new JsonConverter<ExampleConfig>() {
+                @Override
+                public ExampleConfig toDomain(byte[] bytes, Class<ExampleConfig> clazz) throws IOException {
+                    decodes.incrementAndGet();
+                    try {
+                        decodeGate.await();
+                    } catch (InterruptedException ex) {
+                        throw new IOException(ex);
+                    }
+                    return super.toDomain(bytes, clazz);
+                }
+            }, Optional.<ChangeListener<ExampleConfig>>absent());
+            setLazy(true);
+        }
+
+        @Override
+        public void start() throws Exception {
+            started.set(true);
+        }
+
+        void change(String json) {
+            if (getAndSet(json.replace('\'', '"').getBytes())) {
+                notifyListeners();
+            }
+        }
+    }
+
+    @Before
+    public void before() throws Exception {
+        executor = Executors.newFixedThreadPool(8);
+        adapter = new ExampleConfigAdapter();
+        adapter.start();
+    }
+
+    @After
+    public void after() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testDecodesOnceOnFirstGetAfterChange() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            adapter.change("{'id':" + i + "}");
+        }
+        assertEquals(0, decodes.get());
+
+        assertEquals(9, adapter.get().get().id);
+        assertSame(adapter.get().get(), adapter.get().get());
+        assertEquals(1, decodes.get());
+    }
+
+    @Test
+    public void testConcurrentGetsShareDecode() throws Exception {
+        adapter.change("{'id':1}");
+        decodeGate = new CountDownLatch(1);
+        List<Future<Optional<ExampleConfig>>> results = new ArrayList<Future<Optional<ExampleConfig>>>();
+        for (int i = 0; i < 8; i++) {
+            results.add(executor.submit(new Callable<Optional<ExampleConfig>>() {
+                public Optional<ExampleConfig> call() throws Exception {
+                    return adapter.get();
+                }
+            }));
+        }
+
+        Thread.sleep(100);
+        decodeGate.countDown();
+        ExampleConfig first = results.get(0).get(10, TimeUnit.SECONDS).get();
+        for (Future<Optional<ExampleConfig>> result : results) {
+            assertSame(first, result.get(10, TimeUnit.SECONDS).get());
+        }
+        assertEquals(1, decodes.get());
+    }
+
+    @Test
+    public void testParseErrorKeepsPrevious() throws Exception {
+        adapter.change("{'id':1}");
+        assertEquals(1, adapter.get().get().id);
+
+        adapter.change("not json");
+        assertEquals(1, adapter.get().get().id);
+        assertEquals(1, adapter.get().get().id);
+        assertEquals(2, decodes.get());
+    }
+
+    @Test
+    public void testListenersDecodeOnChange() throws Exception {
+        final List<Integer> changes = new ArrayList<Integer>();
+        adapter.registerListener(new DynamicConfig.ChangeListener<ExampleConfig>() {
+            public void onChange(Optional<ExampleConfig> t) {
+                changes.add(t.get().id);
+            }
+
+            public void onError(Exception ex) {
+            }
+        });
+
+        adapter.change("{'id':1}");
+        adapter.change("{'id':2}");
+        assertEquals(2, decodes.get());
+        assertEquals(2, changes.size());
+        assertEquals(2, (int) changes.get(1));
+        assertEquals(2, adapter.get().get().id);
+        assertEquals(2, decodes.get());
+    }
+
+    @Test
+    public void testSnapshotIsNotWrittenOnReaderThread() throws Exception {
+        File file = new File(Files.createTempDirectory("watchconf").toFile(), "config.snapshot");
+        adapter.setSnapshotCache(new SnapshotCache(file));
+        adapter.change("{'id':1}");
+        assertEquals(1, adapter.get().get().id);
+        assertFalse(file.exists());
+
+        // the decoded version is written by the watcher with the next change
+        adapter.change("{'id':2}");
+        assertTrue(file.exists());
+        assertEquals("{\"id\":1}", new String(new SnapshotCache(file).read().getBytes()));
+    }
+}
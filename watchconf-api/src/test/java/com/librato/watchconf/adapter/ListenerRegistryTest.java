@@ -0,0 +1,143 @@
+package com.librato.watchconf.adapter;
+
+import com.google.common.base.Optional;
+import com.librato.ExampleConfig;
+import com.librato.watchconf.DynamicConfig;
+import com.librato.watchconf.converter.JsonConverter;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+
+public class ListenerRegistryTest {
+
+    private static class ExampleConfigAdapter extends AbstractConfigAdapter<ExampleConfig, byte[]> {
+
+        ExampleConfigAdapter() {
+            super(ExampleConfig.class, new JsonConverter<ExampleConfig>(), Optional.<ChangeListener<ExampleConfig>>absent());
+        }
+
+        @Override
+        public void start() throws Exception {
+            started.set(true);
+        }
+    }
+
+    private static class CountingListener implements DynamicConfig.ChangeListener<ExampleConfig> {
+        private final AtomicInteger changes = new AtomicInteger();
+
+        public void onChange(Optional<ExampleConfig> t) {
+            changes.incrementAndGet();
+        }
+
+        public void onError(Exception ex) {
+        }
+    }
+
+    @Test
+    public void testAddRemove() {
+        ListenerRegistry<String> registry = new ListenerRegistry<String>(new String[0]);
+        assertTrue(registry.isEmpty());
+        registry.add("a");
+        registry.add("b");
+        registry.add("a");
+        assertEquals(3, registry.snapshot().length);
+        assertTrue(registry.remove("a"));
+        assertEquals("b", registry.snapshot()[0]);
+        assertEquals("a", registry.snapshot()[1]);
+        assertFalse(registry.remove("c"));
+        assertTrue(registry.remove("a"));
+        assertTrue(registry.remove("b"));
+        assertTrue(registry.isEmpty());
+    }
+
+    @Test
+    public void testSnapshotIsNotAffectedByLaterChanges() {
+        ListenerRegistry<String> registry = new ListenerRegistry<String>(new String[0]);
+        registry.add("a");
+        String[] snapshot = registry.snapshot();
+        registry.add("b");
+        registry.remove("a");
+        assertEquals(1, snapshot.length);
+        assertEquals("a", snapshot[0]);
+    }
+
+    @Test
+    public void testIteratesSnapshot() {
+        ListenerRegistry<String> registry = new ListenerRegistry<String>(new String[0]);
+        registry.add("a");
+        registry.add("b");
+        List<String> seen = new ArrayList<String>();
+        for (String listener : registry) {
+            registry.remove(listener);
+            seen.add(listener);
+        }
+        assertEquals(2, seen.size());
+        assertTrue(registry.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentRegistrationDuringNotification() throws Exception {
+        final ExampleConfigAdapter adapter = new ExampleConfigAdapter();
+        adapter.start();
+        final Optional<ExampleConfig> value = Optional.of(new ExampleConfig());
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final int registrants = 4;
+        final int iterations = 5000;
+        final CountDownLatch ready = new CountDownLatch(registrants + 1);
+        ExecutorService executor = Executors.newFixedThreadPool(registrants + 1);
+
+        Future<?> notifier = executor.submit(new Runnable() {
+            public void run() {
+                ready.countDown();
+                while (running.get()) {
+                    adapter.notifyListeners(value);
+                }
+            }
+        });
+
+        List<Future<CountingListener>> registered = new ArrayList<Future<CountingListener>>();
+        for (int i = 0; i < registrants; i++) {
+            registered.add(executor.submit(new Callable<CountingListener>() {
+                public CountingListener call() throws Exception {
+                    ready.countDown();
+                    ready.await();
+                    for (int j = 0; j < iterations; j++) {
+                        CountingListener transientListener = new CountingListener();
+                        adapter.registerListener(transientListener);
+                        adapter.removeListener(transientListener);
+                    }
+                    CountingListener permanent = new CountingListener();
+                    adapter.registerListener(permanent);
+                    return permanent;
+                }
+            }));
+        }
+
+        List<CountingListener> permanentListeners = new ArrayList<CountingListener>();
+        for (Future<CountingListener> future : registered) {
+            permanentListeners.add(future.get(30, TimeUnit.SECONDS));
+        }
+        running.set(false);
+        notifier.get(30, TimeUnit.SECONDS);
+        executor.shutdown();
+
+        assertEquals(registrants, adapter.changeListenerList.snapshot().length);
+        adapter.notifyListeners(value);
+        for (CountingListener listener : permanentListeners) {
+            assertTrue(listener.changes.get() > 0);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.librato.watchconf.adapter;
+
+import com.google.common.base.Charsets;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNull;
+import static org.junit.Assert.assertArrayEquals;
+
+public class SnapshotCacheTest {
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        File dir = Files.createTempDirectory("watchconf").toFile();
+        SnapshotCache snapshotCache = new SnapshotCache(new File(dir, "nested/config.snapshot"));
+        assertNull(snapshotCache.read());
+
+        snapshotCache.write("{\"id\":1}".getBytes(Charsets.UTF_8), 7);
+        snapshotCache.write("{\"id\":2}".getBytes(Charsets.UTF_8), 8);
+        SnapshotCache.Snapshot snapshot = snapshotCache.read();
+        assertArrayEquals("{\"id\":2}".getBytes(Charsets.UTF_8), snapshot.getBytes());
+        assertEquals(8, snapshot.getVersion());
+
+        // no temporary files are left behind
+        assertEquals(1, new File(dir, "nested").list().length);
+    }
+
+    @Test
+    public void testCorruptSnapshotIsIgnored() throws Exception {
+        File file = new File(Files.createTempDirectory("watchconf").toFile(), "config.snapshot");
+        SnapshotCache snapshotCache = new SnapshotCache(file);
+        snapshotCache.write("{\"id\":1}".getBytes(Charsets.UTF_8), 7);
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.seek(17);
+            randomAccessFile.write('x');
+        } finally {
+            randomAccessFile.close();
+        }
+        assertNull(snapshotCache.read());
+
+        Files.write(file.toPath(), new byte[]{1, 2, 3});
+        assertNull(snapshotCache.read());
+    }
+
+    @Test
+    public void testCorruptLengthIsIgnored() throws Exception {
+        File file = new File(Files.createTempDirectory("watchconf").toFile(), "config.snapshot");
+        SnapshotCache snapshotCache = new SnapshotCache(file);
+        for (int length : new int[]{-1, Integer.MAX_VALUE}) {
+            snapshotCache.write("{\"id\":1}".getBytes(Charsets.UTF_8), 7);
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                // after the magic and the version
+                randomAccessFile.seek(12);
+                randomAccessFile.writeInt(length);
+            } finally {
+                randomAccessFile.close();
+            }
+            assertNull(snapshotCache.read());
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.librato.watchconf.adapter.redis;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
+import com.librato.ExampleConfig;
+import com.librato.watchconf.DynamicConfig;
+import com.librato.watchconf.adapter.SnapshotCache;
+import com.librato.watchconf.converter.JsonConverter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.embedded.RedisServer;
+
+import java.io.File;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+
+public class DynamicConfigRedisAdapterTest {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private RedisServer redisServer;
+    private JedisPool pool;
+
+    private static class ExampleConfigAdapter extends DynamicConfigRedisAdapter<ExampleConfig> {
+        ExampleConfigAdapter(String key, JedisPool jedisPool, ChangeListener<ExampleConfig> changeListener) throws Exception {
+            super(ExampleConfig.class, key, jedisPool, new JsonConverter<ExampleConfig>(), changeListener);
+        }
+    }
+
+    private static int freePort() throws Exception {
+        ServerSocket serverSocket = new ServerSocket(0);
+        try {
+            return serverSocket.getLocalPort();
+        } finally {
+            serverSocket.close();
+        }
+    }
+
+    @Before
+    public void before() throws Exception {
+        int port = freePort();
+        redisServer = new RedisServer(port);
+        redisServer.start();
+        pool = new JedisPool(new JedisPoolConfig(), "localhost", port);
+    }
+
+    @After
+    public void after() throws Exception {
+        pool.close();
+        redisServer.stop();
+    }
+
+    private void set(String key, int id) throws Exception {
+        ExampleConfig exampleConfig = new ExampleConfig();
+        exampleConfig.id = id;
+        Jedis jedis = pool.getResource();
+        try {
+            jedis.set(key, objectMapper.writeValueAsString(exampleConfig));
+        } finally {
+            jedis.close();
+        }
+    }
+
+    @Test
+    public void testAdaptersShareSubscriptionAndReturnConnections() throws Exception {
+        final CountDownLatch countDownLatch = new CountDownLatch(1);
+        final AtomicInteger watchedChanges = new AtomicInteger();
+        final AtomicInteger otherChanges = new AtomicInteger();
+        List<ExampleConfigAdapter> adapters = new ArrayList<ExampleConfigAdapter>();
+        for (int i = 0; i < 10; i++) {
+            set("config" + i, i);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            final boolean watched = i == 3;
+            ExampleConfigAdapter adapter = new ExampleConfigAdapter("config" + i, pool, new DynamicConfig.ChangeListener<ExampleConfig>() {
+                public void onChange(Optional<ExampleConfig> t) {
+                    if (watched) {
+                        watchedChanges.incrementAndGet();
+                        countDownLatch.countDown();
+                    } else {
+                        otherChanges.incrementAndGet();
+                    }
+                }
+
+                public void onError(Exception ex) {
+                }
+            });
+            adapter.start();
+            assertEquals(i, adapter.get().get().id);
+            adapters.add(adapter);
+        }
+
+        // only the shared subscriber holds a connection
+        assertEquals(1, pool.getNumActive());
+
+        // rewriting an identical value is notified by redis but skipped by the adapter
+        set("config3", 3);
+        set("config3", 100);
+        assertTrue(countDownLatch.await(20, TimeUnit.SECONDS));
+        assertEquals(100, adapters.get(3).get().get().id);
+        awaitNumActive(1);
+        assertEquals(1, watchedChanges.get());
+        assertEquals(0, otherChanges.get());
+
+        Jedis jedis = pool.getResource();
+        try {
+            // only keyspace channels for string and generic commands, not every event class
+            String flags = jedis.configGet("notify-keyspace-events").get(1);
+            assertTrue(flags.contains("K") && flags.contains("$") && flags.contains("g"));
+            assertFalse(flags.contains("A") || flags.contains("E"));
+        } finally {
+            jedis.close();
+        }
+
+        for (ExampleConfigAdapter adapter : adapters) {
+            adapter.shutdown();
+        }
+
+        awaitNumActive(0);
+    }
+
+    @Test
+    public void testSlowListenerDoesNotDelayOtherKeys() throws Exception {
+        set("slow", 1);
+        set("fast", 1);
+        final CountDownLatch slowCalled = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch fastCalled = new CountDownLatch(1);
+        ExampleConfigAdapter slow = new ExampleConfigAdapter("slow", pool, new DynamicConfig.ChangeListener<ExampleConfig>() {
+            public void onChange(Optional<ExampleConfig> t) {
+                slowCalled.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            public void onError(Exception ex) {
+            }
+        });
+        ExampleConfigAdapter fast = new ExampleConfigAdapter("fast", pool, new DynamicConfig.ChangeListener<ExampleConfig>() {
+            public void onChange(Optional<ExampleConfig> t) {
+                fastCalled.countDown();
+            }
+
+            public void onError(Exception ex) {
+            }
+        });
+        slow.start();
+        fast.start();
+
+        set("slow", 2);
+        assertTrue(slowCalled.await(20, TimeUnit.SECONDS));
+        set("fast", 2);
+        assertTrue(fastCalled.await(20, TimeUnit.SECONDS));
+        release.countDown();
+
+        slow.shutdown();
+        fast.shutdown();
+        awaitNumActive(0);
+    }
+
+    @Test
+    public void testSubscriberIsRecreatedAfterLastAdapterShutsDown() throws Exception {
+        set("config", 1);
+        ExampleConfigAdapter adapter = new ExampleConfigAdapter("config", pool, null);
+        adapter.start();
+        adapter.shutdown();
+        awaitNumActive(0);
+
+        final CountDownLatch countDownLatch = new CountDownLatch(1);
+        adapter = new ExampleConfigAdapter("config", pool, new DynamicConfig.ChangeListener<ExampleConfig>() {
+            public void onChange(Optional<ExampleConfig> t) {
+                countDownLatch.countDown();
+            }
+
+            public void onError(Exception ex) {
+            }
+        });
+        adapter.start();
+        awaitNumActive(1);
+        set("config", 2);
+        assertTrue(countDownLatch.await(20, TimeUnit.SECONDS));
+        assertEquals(2, adapter.get().get().id);
+        adapter.shutdown();
+        awaitNumActive(0);
+    }
+
+    @Test
+    public void testShutdownDuringReconcileUnsubscribes() throws Exception {
+        File file = new File(Files.createTempDirectory("watchconf").toFile(), "config.snapshot");
+        new SnapshotCache(file).write(objectMapper.writeValueAsBytes(new ExampleConfig()), 0);
+        set("config", 2);
+        final CountDownLatch countDownLatch = new CountDownLatch(1);
+        final List<ExampleConfigAdapter> adapter = new ArrayList<ExampleConfigAdapter>();
+        adapter.add(new ExampleConfigAdapter("config", pool, new DynamicConfig.ChangeListener<ExampleConfig>() {
+            public void onChange(Optional<ExampleConfig> t) {
+                // shut down by the reconcile, before it subscribes
+                if (t.get().id == 2) {
+                    try {
+                        adapter.get(0).shutdown();
+                    } catch (Exception ex) {
+                        throw new RuntimeException(ex);
+                    }
+                    countDownLatch.countDown();
+                }
+            }
+
+            public void onError(Exception ex) {
+            }
+        }));
+        adapter.get(0).setSnapshotCache(new SnapshotCache(file));
+        adapter.get(0).start();
+        assertTrue(countDownLatch.await(20, TimeUnit.SECONDS));
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("watchconf-redis-reconcile config")) {
+                thread.join(20000);
+            }
+        }
+        awaitNumActive(0);
+    }
+
+    private void awaitNumActive(int numActive) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (pool.getNumActive() != numActive && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(numActive, pool.getNumActive());
+    }
+
+    @Test
+    public void testMergeEventFlagsPreservesExistingFlags() {
+        assertEquals("K$g", DynamicConfigRedisAdapter.mergeEventFlags(""));
+        assertEquals("Ex$Kg", DynamicConfigRedisAdapter.mergeEventFlags("Ex$"));
+        assertEquals("AK", DynamicConfigRedisAdapter.mergeEventFlags("AK"));
+        assertEquals("AEK", DynamicConfigRedisAdapter.mergeEventFlags("AE"));
+    }
+}
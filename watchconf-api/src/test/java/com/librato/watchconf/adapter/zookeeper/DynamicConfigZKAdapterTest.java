@@ -2,43 +2,95 @@ package com.librato.watchconf.adapter.zookeeper;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.google.common.base.Function;
+import com.google.common.base.Optional;
+import com.google.common.base.Strings;
 import com.librato.ExampleConfig;
+import com.librato.watchconf.ConfigDelta;
+import com.librato.watchconf.DeltaListener;
+import com.librato.watchconf.DynamicConfig;
+import com.librato.watchconf.DynamicConfigs;
+import com.librato.watchconf.adapter.SnapshotCache;
+import com.librato.watchconf.converter.CompressingConverter;
+import com.librato.watchconf.converter.Converter;
 import com.librato.watchconf.converter.JsonConverter;
+import com.librato.watchconf.converter.Stamp;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.cache.ChildData;
 import org.apache.curator.retry.RetryOneTime;
 import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
 import static junit.framework.TestCase.*;
 
 public class DynamicConfigZKAdapterTest {
     private static final String TEST_PATH = "/test/config";
+    private TestingServer server;
     private CuratorFramework curatorFramework;
 
     private class ExampleConfigAdapter extends DynamicConfigZKAdapter<ExampleConfig> {
         ExampleConfigAdapter(CuratorFramework curatorFramework) throws Exception {
-            super(ExampleConfig.class, TEST_PATH, curatorFramework, new JsonConverter<ExampleConfig>());
+            this(curatorFramework, TEST_PATH);
+        }
+
+        ExampleConfigAdapter(CuratorFramework curatorFramework, String path) throws Exception {
+            super(ExampleConfig.class, path, curatorFramework, new JsonConverter<ExampleConfig>());
+        }
+
+        ExampleConfigAdapter(CuratorFramework curatorFramework, Converter<ExampleConfig, byte[]> converter) throws Exception {
+            super(ExampleConfig.class, TEST_PATH, curatorFramework, converter);
         }
     }
 
     @Before
     public void before() throws Exception {
-        TestingServer server = new TestingServer();
+        server = new TestingServer();
         curatorFramework = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryOneTime(1));
         curatorFramework.start();
         curatorFramework.create().creatingParentContainersIfNeeded().forPath(TEST_PATH, getExampleBytes());
     }
 
     private byte[] getExampleBytes() throws JsonProcessingException {
+        return getExampleBytes("ray");
+    }
+
+    private byte[] getExampleBytes(String name) throws JsonProcessingException {
         ExampleConfig exampleConfig = new ExampleConfig();
-        exampleConfig.name = "ray";
+        exampleConfig.name = name;
 
         ObjectMapper objectMapper = new ObjectMapper();
         return objectMapper.writeValueAsBytes(exampleConfig);
     }
 
+    private byte[] largeExampleBytes(String name) throws JsonProcessingException {
+        ExampleConfig exampleConfig = new ExampleConfig();
+        exampleConfig.name = name;
+        for (int i = 0; i < 100; i++) {
+            exampleConfig.things.add(new ExampleConfig.Thing("thing" + i));
+        }
+        return new ObjectMapper().writeValueAsBytes(exampleConfig);
+    }
+
     @Test
     public void testInit() throws Exception {
         ExampleConfigAdapter exampleConfigAdapter = new ExampleConfigAdapter(curatorFramework);
@@ -53,4 +105,361 @@ public class DynamicConfigZKAdapterTest {
         assertTrue(exampleConfigAdapter.get().isPresent());
         assertEquals(exampleConfigAdapter.get().get().name, "ray");
     }
+
+    @Test
+    public void testGetReturnsDecodedSnapshot() throws Exception {
+        ExampleConfigAdapter exampleConfigAdapter = new ExampleConfigAdapter(curatorFramework);
+        exampleConfigAdapter.start();
+        assertSame(exampleConfigAdapter.get().get(), exampleConfigAdapter.get().get());
+    }
+
+    @Test
+    public void testUpdate() throws Exception {
+        final CountDownLatch countDownLatch = new CountDownLatch(1);
+        ExampleConfigAdapter exampleConfigAdapter = new ExampleConfigAdapter(curatorFramework);
+        exampleConfigAdapter.start();
+        ExampleConfig original = exampleConfigAdapter.get().get();
+        exampleConfigAdapter.registerListener(new DynamicConfig.ChangeListener<ExampleConfig>() {
+            public void onChange(Optional<ExampleConfig> t) {
+                countDownLatch.countDown();
+            }
+
+            public void onError(Exception ex) {
+            }
+        });
+
+        curatorFramework.setData().forPath(TEST_PATH, getExampleBytes("updated"));
+        assertTrue(countDownLatch.await(20, TimeUnit.SECONDS));
+        assertNotSame(original, exampleConfigAdapter.get().get());
+        assertEquals("updated", exampleConfigAdapter.get().get().name);
+    }
+
+    @Test
+    public void testDelta() throws Exception {
+        final BlockingQueue<ConfigDelta<ExampleConfig>> deltas = new LinkedBlockingQueue<ConfigDelta<ExampleConfig>>();
+        ExampleConfigAdapter exampleConfigAdapter = new ExampleConfigAdapter(curatorFramework);
+        exampleConfigAdapter.registerDeltaListener(new DeltaListener<ExampleConfig>() {
+            public void onDelta(ConfigDelta<ExampleConfig> delta) {
+                deltas.add(delta);
+            }
+
+            public void onError(Exception ex) {
+            }
+        });
+        exampleConfigAdapter.start();
+
+        curatorFramework.setData().forPath(TEST_PATH, getExampleBytes("updated"));
+        ConfigDelta<ExampleConfig> delta = deltas.poll(20, TimeUnit.SECONDS);
+        assertEquals("ray", delta.getPrevious().get().name);
+        assertEquals("updated", delta.getCurrent().get().name);
+        assertEquals(Collections.singleton("/name"), delta.getChangedPaths());
+        assertEquals("updated", delta.getTree().get("name").asText());
+        assertTrue(delta.isChanged("/name"));
+        assertFalse(delta.isChanged("/things"));
+    }
+
+    @Test
+    public void testCompressedDelta() throws Exception {
+        final BlockingQueue<ConfigDelta<ExampleConfig>> deltas = new LinkedBlockingQueue<ConfigDelta<ExampleConfig>>();
+        CompressingConverter<ExampleConfig> converter = new CompressingConverter<ExampleConfig>(new JsonConverter<ExampleConfig>());
+        ExampleConfigAdapter exampleConfigAdapter = new ExampleConfigAdapter(curatorFramework, converter);
+        exampleConfigAdapter.registerDeltaListener(new DeltaListener<ExampleConfig>() {
+            public void onDelta(ConfigDelta<ExampleConfig> delta) {
+                deltas.add(delta);
+            }
+
+            public void onError(Exception ex) {
+            }
+        });
+        exampleConfigAdapter.start();
+
+        ExampleConfig exampleConfig = converter.toDomain(curatorFramework.getData().forPath(TEST_PATH), ExampleConfig.class);
+        exampleConfig.name = "compressed";
+        curatorFramework.setData().forPath(TEST_PATH, converter.fromDomain(exampleConfig));
+        ConfigDelta<ExampleConfig> delta = deltas.poll(20, TimeUnit.SECONDS);
+        assertEquals("ray", delta.getPrevious().get().name);
+        assertEquals("compressed", delta.getCurrent().get().name);
+        assertEquals(Collections.singleton("/name"), delta.getChangedPaths());
+    }
+
+    @Test
+    public void testPathScopedListeners() throws Exception {
+        final BlockingQueue<Optional<String>> pointerChanges = new LinkedBlockingQueue<Optional<String>>();
+        final BlockingQueue<Optional<String>> projectionChanges = new LinkedBlockingQueue<Optional<String>>();
+        final BlockingQueue<ConfigDelta<ExampleConfig>> deltas = new LinkedBlockingQueue<ConfigDelta<ExampleConfig>>();
+        ExampleConfigAdapter exampleConfigAdapter = new ExampleConfigAdapter(curatorFramework);
+        exampleConfigAdapter.registerListener("/name", String.class, new DynamicConfig.ChangeListener<String>() {
+            public void onChange(Optional<String> t) {
+                pointerChanges.add(t);
+            }
+
+            public void onError(Exception ex) {
+            }
+        });
+        exampleConfigAdapter.registerListener(new Function<ExampleConfig, String>() {
+            public String apply(ExampleConfig exampleConfig) {
+                return exampleConfig.name;
+            }
+        }, new DynamicConfig.ChangeListener<String>() {
+            public void onChange(Optional<String> t) {
+                projectionChanges.add(t);
+            }
+
+            public void onError(Exception ex) {
+            }
+        });
+        exampleConfigAdapter.registerDeltaListener(new DeltaListener<ExampleConfig>() {
+            public void onDelta(ConfigDelta<ExampleConfig> delta) {
+                deltas.add(delta);
+            }
+
+            public void onError(Exception ex) {
+            }
+        });
+        exampleConfigAdapter.start();
+
+        // rewriting identical content changes no paths
+        curatorFramework.setData().forPath(TEST_PATH, getExampleBytes("ray"));
+        curatorFramework.setData().forPath(TEST_PATH, getExampleBytes("updated"));
+        assertEquals("updated", pointerChanges.poll(20, TimeUnit.SECONDS).get());
+        assertEquals("updated", projectionChanges.poll(20, TimeUnit.SECONDS).get());
+        assertEquals(Collections.singleton("/name"), deltas.poll(20, TimeUnit.SECONDS).getChangedPaths());
+
+        ExampleConfig exampleConfig = new ExampleConfig();
+        exampleConfig.name = "updated";
+        exampleConfig.id = 5;
+        curatorFramework.setData().forPath(TEST_PATH, new ObjectMapper().writeValueAsBytes(exampleConfig));
+        assertEquals(Collections.singleton("/id"), deltas.poll(20, TimeUnit.SECONDS).getChangedPaths());
+        assertTrue(pointerChanges.isEmpty());
+        assertTrue(projectionChanges.isEmpty());
+    }
+
+    @Test
+    public void testChunkedPayload() throws Exception {
+        String name = Strings.repeat("a", 200);
+        ChunkedPayload chunks = ChunkedPayload.split(new Stamp(1, System.currentTimeMillis()).apply(getExampleBytes(name + "1")), 16);
+        assertTrue(ChunkedPayload.isManifest(chunks.getManifest()));
+        assertFalse(ChunkedPayload.isManifest(getExampleBytes()));
+        chunks.writeChunks(curatorFramework, TEST_PATH);
+        curatorFramework.setData().forPath(TEST_PATH, chunks.getManifest());
+
+        final CountDownLatch countDownLatch = new CountDownLatch(1);
+        ExampleConfigAdapter exampleConfigAdapter = new ExampleConfigAdapter(curatorFramework);
+        exampleConfigAdapter.start();
+        assertEquals(name + "1", exampleConfigAdapter.get().get().name);
+        exampleConfigAdapter.registerListener(new DynamicConfig.ChangeListener<ExampleConfig>() {
+            public void onChange(Optional<ExampleConfig> t) {
+                countDownLatch.countDown();
+            }
+
+            public void onError(Exception ex) {
+            }
+        });
+
+        // only the last chunks change, the first is served from the adapter's cache even though it is gone
+        ChunkedPayload updated = ChunkedPayload.split(new Stamp(2, System.currentTimeMillis()).apply(getExampleBytes(name + "2")), 16);
+        assertEquals(chunks.getHashes().get(0), updated.getHashes().get(0));
+        updated.writeChunks(curatorFramework, TEST_PATH);
+        curatorFramework.delete().forPath(TEST_PATH + "/" + updated.getHashes().get(0));
+        curatorFramework.setData().forPath(TEST_PATH, updated.getManifest());
+        assertTrue(countDownLatch.await(20, TimeUnit.SECONDS));
+        assertEquals(name + "2", exampleConfigAdapter.get().get().name);
+
+        ChunkedPayload.deleteUnreferenced(curatorFramework, TEST_PATH, updated.getManifest());
+        Set<String> expected = new HashSet<String>(updated.getHashes());
+        expected.remove(updated.getHashes().get(0));
+        assertEquals(expected, new HashSet<String>(curatorFramework.getChildren().forPath(TEST_PATH)));
+    }
+
+    @Test
+    public void testDeletedZnodeIsReported() throws Exception {
+        final BlockingQueue<Exception> errors = new LinkedBlockingQueue<Exception>();
+        ExampleConfigAdapter exampleConfigAdapter = new ExampleConfigAdapter(curatorFramework);
+        exampleConfigAdapter.registerListener(new DynamicConfig.ChangeListener<ExampleConfig>() {
+            public void onChange(Optional<ExampleConfig> t) {
+            }
+
+            public void onError(Exception ex) {
+                errors.add(ex);
+            }
+        });
+        exampleConfigAdapter.start();
+
+        curatorFramework.delete().forPath(TEST_PATH);
+        assertTrue(errors.poll(20, TimeUnit.SECONDS) instanceof KeeperException.NoNodeException);
+        assertEquals("ray", exampleConfigAdapter.get().get().name);
+    }
+
+    @Test
+    public void testUndecodableSnapshotIsNotPatched() throws Exception {
+        final BlockingQueue<Exception> errors = new LinkedBlockingQueue<Exception>();
+        ExampleConfigAdapter exampleConfigAdapter = new ExampleConfigAdapter(curatorFramework);
+        exampleConfigAdapter.registerListener(new DynamicConfig.ChangeListener<ExampleConfig>() {
+            public void onChange(Optional<ExampleConfig> t) {
+            }
+
+            public void onError(Exception ex) {
+                errors.add(ex);
+            }
+        });
+        exampleConfigAdapter.setFollowPatches(true);
+        exampleConfigAdapter.start();
+
+        Stat stat = curatorFramework.setData().forPath(TEST_PATH, "not json".getBytes());
+        assertNotNull(errors.poll(20, TimeUnit.SECONDS));
+
+        // a patch against the undecodable snapshot is not applied, so its error is not reported again
+        ArrayNode operations = new ObjectMapper().createArrayNode();
+        operations.addObject().put("op", "replace").put("path", "/name").put("value", "bob");
+        curatorFramework.create().withMode(CreateMode.PERSISTENT_SEQUENTIAL)
+                .forPath(ZKPaths.makePath(TEST_PATH, JsonPatchLog.PATCH_PREFIX), JsonPatchLog.encode(stat.getMzxid(), 1, operations, null));
+        assertNull(errors.poll(2, TimeUnit.SECONDS));
+        assertEquals("ray", exampleConfigAdapter.get().get().name);
+    }
+
+    @Test
+    public void testPatches() throws Exception {
+        final BlockingQueue<Optional<ExampleConfig>> changes = new LinkedBlockingQueue<Optional<ExampleConfig>>();
+        ExampleConfigAdapter exampleConfigAdapter = new ExampleConfigAdapter(curatorFramework);
+        exampleConfigAdapter.registerListener(new DynamicConfig.ChangeListener<ExampleConfig>() {
+            public void onChange(Optional<ExampleConfig> t) {
+                changes.add(t);
+            }
+
+            public void onError(Exception ex) {
+            }
+        });
+        curatorFramework.setData().forPath(TEST_PATH, largeExampleBytes("ray"));
+        exampleConfigAdapter.setFollowPatches(true);
+        exampleConfigAdapter.start();
+
+        assertEquals(JsonPatchLog.Result.PATCHED, JsonPatchLog.publish(curatorFramework, TEST_PATH, largeExampleBytes("bob"), 10));
+        assertEquals("bob", changes.poll(20, TimeUnit.SECONDS).get().name);
+        assertEquals(JsonPatchLog.Result.UNCHANGED, JsonPatchLog.publish(curatorFramework, TEST_PATH, largeExampleBytes("bob"), 10));
+        assertEquals(JsonPatchLog.Result.PATCHED, JsonPatchLog.publish(curatorFramework, TEST_PATH, largeExampleBytes("carl"), 10));
+        assertEquals("carl", changes.poll(20, TimeUnit.SECONDS).get().name);
+
+        // adapters started later apply the existing patches to the snapshot
+        ExampleConfigAdapter late = new ExampleConfigAdapter(curatorFramework);
+        late.setFollowPatches(true);
+        late.start();
+        assertEquals("carl", late.get().get().name);
+
+        // adapters not following patches keep the snapshot
+        ExampleConfigAdapter snapshotOnly = new ExampleConfigAdapter(curatorFramework);
+        snapshotOnly.start();
+        assertEquals("ray", snapshotOnly.get().get().name);
+        snapshotOnly.shutdown();
+        assertEquals(100, late.get().get().things.size());
+        assertEquals("ray", new ObjectMapper().readValue(curatorFramework.getData().forPath(TEST_PATH), ExampleConfig.class).name);
+
+        // a gap in the sequence requires a new snapshot
+        ChildData snapshot = new ChildData(TEST_PATH, curatorFramework.checkExists().forPath(TEST_PATH), null);
+        curatorFramework.create().forPath(TEST_PATH + "/" + JsonPatchLog.PATCH_PREFIX + "gap",
+                JsonPatchLog.encode(snapshot.getStat().getMzxid(), 4, new ObjectMapper().readTree("[]"), null));
+        assertEquals(JsonPatchLog.Result.SNAPSHOT_REQUIRED, JsonPatchLog.publish(curatorFramework, TEST_PATH, largeExampleBytes("dave"), 10));
+        curatorFramework.setData().forPath(TEST_PATH, largeExampleBytes("dave"));
+        JsonPatchLog.deletePatches(curatorFramework, TEST_PATH);
+        assertEquals("dave", changes.poll(20, TimeUnit.SECONDS).get().name);
+        assertTrue(curatorFramework.getChildren().forPath(TEST_PATH).isEmpty());
+
+        assertEquals(JsonPatchLog.Result.PATCHED, JsonPatchLog.publish(curatorFramework, TEST_PATH, largeExampleBytes("erin"), 10));
+        assertEquals("erin", changes.poll(20, TimeUnit.SECONDS).get().name);
+        assertEquals(JsonPatchLog.Result.SNAPSHOT_REQUIRED, JsonPatchLog.publish(curatorFramework, TEST_PATH, largeExampleBytes("fred"), 1));
+    }
+
+    @Test
+    public void testSnapshotAndPatchBeforeOneNotifyAreOneDelta() throws Exception {
+        File file = new File(Files.createTempDirectory("watchconf").toFile(), "config.snapshot");
+        curatorFramework.setData().forPath(TEST_PATH, largeExampleBytes("ray"));
+        ExampleConfigAdapter exampleConfigAdapter = new ExampleConfigAdapter(curatorFramework);
+        exampleConfigAdapter.setSnapshotCache(new SnapshotCache(file));
+        exampleConfigAdapter.start();
+        exampleConfigAdapter.shutdown();
+
+        // a new snapshot and a patch against it, both read by the reconcile after the restart
+        curatorFramework.setData().forPath(TEST_PATH, largeExampleBytes("bob"));
+        ExampleConfig patched = new ObjectMapper().readValue(largeExampleBytes("bob"), ExampleConfig.class);
+        patched.id = 5;
+        assertEquals(JsonPatchLog.Result.PATCHED, JsonPatchLog.publish(curatorFramework, TEST_PATH, new ObjectMapper().writeValueAsBytes(patched), 10));
+
+        final BlockingQueue<ConfigDelta<ExampleConfig>> deltas = new LinkedBlockingQueue<ConfigDelta<ExampleConfig>>();
+        ExampleConfigAdapter restarted = new ExampleConfigAdapter(curatorFramework);
+        restarted.setSnapshotCache(new SnapshotCache(file));
+        restarted.setFollowPatches(true);
+        restarted.registerDeltaListener(new DeltaListener<ExampleConfig>() {
+            public void onDelta(ConfigDelta<ExampleConfig> delta) {
+                deltas.add(delta);
+            }
+
+            public void onError(Exception ex) {
+            }
+        });
+        restarted.start();
+
+        ConfigDelta<ExampleConfig> delta = deltas.poll(20, TimeUnit.SECONDS);
+        assertEquals("ray", delta.getPrevious().get().name);
+        assertEquals(5, delta.getCurrent().get().id);
+        assertEquals(new HashSet<String>(Arrays.asList("/id", "/name")), delta.getChangedPaths());
+        restarted.shutdown();
+    }
+
+    @Test
+    public void testStartAll() throws Exception {
+        List<ExampleConfigAdapter> adapters = new ArrayList<ExampleConfigAdapter>();
+        for (int i = 0; i < 20; i++) {
+            curatorFramework.create().forPath("/test/config" + i, getExampleBytes("name" + i));
+            adapters.add(new ExampleConfigAdapter(curatorFramework, "/test/config" + i));
+        }
+        // missing znodes are created with an empty configuration
+        adapters.add(new ExampleConfigAdapter(curatorFramework, "/test/missing"));
+
+        DynamicConfigs.startAll(adapters).get(30, TimeUnit.SECONDS);
+        for (int i = 0; i < 20; i++) {
+            assertEquals("name" + i, adapters.get(i).get().get().name);
+        }
+        assertTrue(adapters.get(20).get().isPresent());
+
+        Optional<ExampleConfig> config = new ExampleConfigAdapter(curatorFramework).startAsync().get(30, TimeUnit.SECONDS);
+        assertEquals("ray", config.get().name);
+    }
+
+    @Test
+    public void testStartServesSnapshotWhileZooKeeperIsDown() throws Exception {
+        File file = new File(Files.createTempDirectory("watchconf").toFile(), "config.snapshot");
+        ExampleConfigAdapter exampleConfigAdapter = new ExampleConfigAdapter(curatorFramework);
+        exampleConfigAdapter.setSnapshotCache(new SnapshotCache(file));
+        exampleConfigAdapter.start();
+        exampleConfigAdapter.setSnapshotCache(null);
+        assertTrue(file.exists());
+
+        // changed after the snapshot was taken, then the server goes down
+        curatorFramework.setData().forPath(TEST_PATH, getExampleBytes("bob"));
+        curatorFramework.close();
+        server.stop();
+
+        CuratorFramework disconnected = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryOneTime(1));
+        disconnected.start();
+        final BlockingQueue<Optional<ExampleConfig>> changes = new LinkedBlockingQueue<Optional<ExampleConfig>>();
+        ExampleConfigAdapter restarted = new ExampleConfigAdapter(disconnected);
+        restarted.setSnapshotCache(new SnapshotCache(file));
+        restarted.registerListener(new DynamicConfig.ChangeListener<ExampleConfig>() {
+            public void onChange(Optional<ExampleConfig> t) {
+                changes.add(t);
+            }
+
+            public void onError(Exception ex) {
+            }
+        });
+        restarted.start();
+        assertEquals("ray", restarted.get().get().name);
+
+        server.restart();
+        Optional<ExampleConfig> change = changes.poll(30, TimeUnit.SECONDS);
+        assertNotNull(change);
+        assertEquals("bob", change.get().name);
+        assertEquals("bob", restarted.get().get().name);
+
+        disconnected.close();
+    }
 }
@@ -0,0 +1,199 @@
+package com.librato.watchconf.adapter.zookeeper;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
+import com.librato.ExampleConfig;
+import com.librato.watchconf.DynamicConfig;
+import com.librato.watchconf.converter.JsonConverter;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.*;
+
+public class DynamicConfigZKTreeAdapterTest {
+    private static final String TEST_PATH = "/test/tenants";
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private TestingServer server;
+    private CuratorFramework curatorFramework;
+    private final AtomicInteger decodes = new AtomicInteger();
+
+    private class ExampleConfigTreeAdapter extends DynamicConfigZKTreeAdapter<ExampleConfig> {
+        ExampleConfigTreeAdapter() throws Exception {
+            super(ExampleConfig.class, TEST_PATH, curatorFramework, new JsonConverter<ExampleConfig>() {
+                @Override
+                public ExampleConfig toDomain(byte[] bytes, Class<ExampleConfig> clazz) throws IOException {
+                    decodes.incrementAndGet();
+                    return super.toDomain(bytes, clazz);
+                }
+            });
+        }
+    }
+
+    private static class Delta {
+        final String key;
+        final Optional<ExampleConfig> value;
+
+        Delta(String key, Optional<ExampleConfig> value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    @Before
+    public void before() throws Exception {
+        server = new TestingServer();
+        curatorFramework = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryOneTime(1));
+        curatorFramework.start();
+        curatorFramework.create().creatingParentsIfNeeded().forPath(TEST_PATH + "/a", getExampleBytes("a"));
+        curatorFramework.create().forPath(TEST_PATH + "/b", getExampleBytes("b"));
+    }
+
+    @After
+    public void after() throws Exception {
+        curatorFramework.close();
+        server.close();
+    }
+
+    private byte[] getExampleBytes(String name) throws JsonProcessingException {
+        ExampleConfig exampleConfig = new ExampleConfig();
+        exampleConfig.name = name;
+        return objectMapper.writeValueAsBytes(exampleConfig);
+    }
+
+    @Test
+    public void testReadDecodesLazily() throws Exception {
+        ExampleConfigTreeAdapter adapter = new ExampleConfigTreeAdapter();
+        adapter.start();
+        assertEquals(0, decodes.get());
+
+        Map<String, ExampleConfig> configs = adapter.get().get();
+        assertEquals(2, configs.size());
+        assertEquals(2, decodes.get());
+        assertEquals("a", configs.get("a").name);
+        assertSame(configs, adapter.get().get());
+        assertEquals(2, decodes.get());
+        assertNull(configs.get("missing"));
+        adapter.shutdown();
+    }
+
+    @Test
+    public void testSnapshotIsImmutable() throws Exception {
+        final BlockingQueue<Map<String, ExampleConfig>> changes = new LinkedBlockingQueue<Map<String, ExampleConfig>>();
+        ExampleConfigTreeAdapter adapter = new ExampleConfigTreeAdapter();
+        adapter.registerListener(new DynamicConfig.ChangeListener<Map<String, ExampleConfig>>() {
+            public void onChange(Optional<Map<String, ExampleConfig>> t) {
+                changes.add(t.get());
+            }
+
+            public void onError(Exception ex) {
+            }
+        });
+        adapter.start();
+        Map<String, ExampleConfig> configs = adapter.get().get();
+        try {
+            configs.remove("a");
+            fail("snapshot should be immutable");
+        } catch (UnsupportedOperationException ex) {
+            // expected
+        }
+
+        curatorFramework.delete().forPath(TEST_PATH + "/a");
+        assertFalse(changes.poll(20, TimeUnit.SECONDS).containsKey("a"));
+        assertTrue(configs.containsKey("a"));
+
+        // a child that never decoded is left out rather than mapped to null
+        curatorFramework.create().forPath(TEST_PATH + "/c", "not json".getBytes());
+        Map<String, ExampleConfig> changed = changes.poll(20, TimeUnit.SECONDS);
+        assertEquals(1, changed.size());
+        assertFalse(changed.containsKey("c"));
+        adapter.shutdown();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetAfterShutdown() throws Exception {
+        ExampleConfigTreeAdapter adapter = new ExampleConfigTreeAdapter();
+        adapter.start();
+        adapter.shutdown();
+        adapter.get();
+    }
+
+    @Test
+    public void testEntryDeltasOnlyDecodeChangedChild() throws Exception {
+        final BlockingQueue<Delta> deltas = new LinkedBlockingQueue<Delta>();
+        final BlockingQueue<String> errors = new LinkedBlockingQueue<String>();
+        ExampleConfigTreeAdapter adapter = new ExampleConfigTreeAdapter();
+        adapter.registerEntryListener(new DynamicConfigZKTreeAdapter.EntryListener<ExampleConfig>() {
+            public void onEntryChange(String key, Optional<ExampleConfig> t) {
+                deltas.add(new Delta(key, t));
+            }
+
+            public void onEntryError(String key, Exception ex) {
+                errors.add(key);
+            }
+        });
+        adapter.start();
+        ExampleConfig a = adapter.get().get().get("a");
+
+        curatorFramework.setData().forPath(TEST_PATH + "/b", getExampleBytes("b2"));
+        Delta delta = deltas.poll(20, TimeUnit.SECONDS);
+        assertEquals("b", delta.key);
+        assertEquals("b2", delta.value.get().name);
+        assertEquals(3, decodes.get());
+        assertSame(a, adapter.get().get().get("a"));
+
+        curatorFramework.create().forPath(TEST_PATH + "/c", getExampleBytes("c"));
+        delta = deltas.poll(20, TimeUnit.SECONDS);
+        assertEquals("c", delta.key);
+        assertEquals("c", delta.value.get().name);
+
+        curatorFramework.delete().forPath(TEST_PATH + "/a");
+        delta = deltas.poll(20, TimeUnit.SECONDS);
+        assertEquals("a", delta.key);
+        assertFalse(delta.value.isPresent());
+        assertFalse(adapter.get().get().containsKey("a"));
+
+        // an unparseable update keeps the last good value
+        curatorFramework.setData().forPath(TEST_PATH + "/c", "not json".getBytes());
+        assertEquals("c", errors.poll(20, TimeUnit.SECONDS));
+        assertEquals("c", adapter.get().get().get("c").name);
+        assertTrue(deltas.isEmpty());
+        adapter.shutdown();
+    }
+
+    @Test
+    public void testDecodeErrorReportedOnceFromWatcher() throws Exception {
+        final BlockingQueue<Thread> errorThreads = new LinkedBlockingQueue<Thread>();
+        ExampleConfigTreeAdapter adapter = new ExampleConfigTreeAdapter();
+        adapter.registerListener(new DynamicConfig.ChangeListener<Map<String, ExampleConfig>>() {
+            public void onChange(Optional<Map<String, ExampleConfig>> t) {
+            }
+
+            public void onError(Exception ex) {
+                errorThreads.add(Thread.currentThread());
+            }
+        });
+        adapter.start();
+        assertEquals("a", adapter.get().get().get("a").name);
+
+        curatorFramework.setData().forPath(TEST_PATH + "/a", "not json".getBytes());
+        assertNotSame(Thread.currentThread(), errorThreads.poll(20, TimeUnit.SECONDS));
+        for (int i = 0; i < 3; i++) {
+            assertEquals("a", adapter.get().get().get("a").name);
+        }
+        assertTrue(errorThreads.isEmpty());
+        adapter.shutdown();
+    }
+}
@@ -0,0 +1,66 @@
+package com.librato.watchconf.converter;
+
+import com.librato.ExampleConfig;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertSame;
+
+public class AbstractJacksonConverterTest {
+
+    private static void assertExampleConfig(ExampleConfig exampleConfig) {
+        assertEquals(1, exampleConfig.id);
+        assertEquals("ray", exampleConfig.name);
+        assertEquals("thing1", exampleConfig.things.get(0).name);
+    }
+
+    private static void assertRoundTrips(AbstractJacksonConverter<ExampleConfig> converter) throws Exception {
+        byte[] bytes = converter.fromDomain(ExampleConfig.example(1));
+        assertExampleConfig(converter.toDomain(bytes, ExampleConfig.class));
+        final AtomicBoolean closed = new AtomicBoolean(false);
+        assertExampleConfig(converter.toDomain(new ByteArrayInputStream(bytes) {
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        }, ExampleConfig.class));
+        assertFalse(closed.get());
+
+        ByteBuffer heap = ByteBuffer.allocate(bytes.length + 8);
+        heap.position(4);
+        heap.put(bytes);
+        heap.position(4);
+        heap.limit(4 + bytes.length);
+        assertExampleConfig(converter.toDomain(heap.slice(), ExampleConfig.class));
+        assertExampleConfig(converter.toDomain(heap, ExampleConfig.class));
+        assertEquals(4, heap.position());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes);
+        direct.flip();
+        assertExampleConfig(converter.toDomain(direct, ExampleConfig.class));
+        assertEquals(0, direct.position());
+    }
+
+    @Test
+    public void testJsonRoundTrip() throws Exception {
+        assertRoundTrips(new JsonConverter<ExampleConfig>());
+    }
+
+    @Test
+    public void testYAMLRoundTrip() throws Exception {
+        assertRoundTrips(new YAMLConverter<ExampleConfig>());
+    }
+
+    @Test
+    public void testReadersAndWritersAreCached() {
+        JsonConverter<ExampleConfig> converter = new JsonConverter<ExampleConfig>();
+        assertSame(converter.reader(ExampleConfig.class), converter.reader(ExampleConfig.class));
+        assertSame(converter.writer(ExampleConfig.class), converter.writer(ExampleConfig.class));
+    }
+}
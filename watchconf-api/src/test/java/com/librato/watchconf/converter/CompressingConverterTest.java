@@ -0,0 +1,66 @@
+package com.librato.watchconf.converter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.librato.ExampleConfig;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+public class CompressingConverterTest {
+
+    @Test
+    public void testCompressedRoundTrip() throws Exception {
+        CompressingConverter<ExampleConfig> converter = new CompressingConverter<ExampleConfig>(new JsonConverter<ExampleConfig>());
+        byte[] bytes = converter.fromDomain(ExampleConfig.example(100));
+        assertEquals(Compression.GZIP, Compression.detect(bytes));
+        assertTrue(bytes.length < new JsonConverter<ExampleConfig>().fromDomain(ExampleConfig.example(100)).length);
+
+        assertEquals(100, converter.toDomain(bytes, ExampleConfig.class).things.size());
+        assertEquals(100, converter.toDomain(ByteBuffer.wrap(bytes), ExampleConfig.class).things.size());
+        assertEquals(100, converter.toDomain(new ByteArrayInputStream(bytes), ExampleConfig.class).things.size());
+    }
+
+    @Test
+    public void testReadsPlainPayloads() throws Exception {
+        CompressingConverter<ExampleConfig> converter = new CompressingConverter<ExampleConfig>(new YAMLConverter<ExampleConfig>());
+        byte[] bytes = new YAMLConverter<ExampleConfig>().fromDomain(ExampleConfig.example(100));
+        assertEquals(Compression.NONE, Compression.detect(bytes));
+        assertEquals("ray", converter.toDomain(bytes, ExampleConfig.class).name);
+        assertEquals("ray", converter.toDomain(ByteBuffer.wrap(bytes), ExampleConfig.class).name);
+        assertEquals("ray", converter.toDomain(new ByteArrayInputStream(bytes), ExampleConfig.class).name);
+    }
+
+    @Test
+    public void testWrapsDetectingConverter() throws Exception {
+        CompressingConverter<ExampleConfig> converter = new CompressingConverter<ExampleConfig>(new FormatDetectingConverter<ExampleConfig>(Format.SMILE));
+        byte[] bytes = converter.fromDomain(ExampleConfig.example(100));
+        assertEquals(Compression.GZIP, Compression.detect(bytes));
+        assertEquals(Format.SMILE, Format.detect(Compression.GZIP.decompress(bytes)));
+        assertEquals("ray", converter.toDomain(bytes, ExampleConfig.class).name);
+    }
+
+    @Test
+    public void testCompressedTree() throws Exception {
+        CompressingConverter<ExampleConfig> converter = new CompressingConverter<ExampleConfig>(new SmileConverter<ExampleConfig>());
+        JsonNode node = converter.toTree(converter.fromDomain(ExampleConfig.example(100)));
+        assertEquals("ray", node.get("name").asText());
+        assertEquals("ray", converter.fromTree(node, ExampleConfig.class).name);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testTreeRequiresTreeConverter() throws Exception {
+        new CompressingConverter<ExampleConfig>(new Converter<ExampleConfig, byte[]>() {
+            public ExampleConfig toDomain(byte[] bytes, Class<ExampleConfig> clazz) {
+                return new ExampleConfig();
+            }
+
+            public byte[] fromDomain(ExampleConfig exampleConfig) {
+                return new byte[0];
+            }
+        }).toTree(new byte[0]);
+    }
+}
@@ -0,0 +1,73 @@
+package com.librato.watchconf.converter;
+
+import com.librato.ExampleConfig;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+public class FormatDetectingConverterTest {
+
+    @Test
+    public void testDetect() throws Exception {
+        for (Format format : Format.values()) {
+            byte[] bytes = format.<ExampleConfig>newConverter().fromDomain(ExampleConfig.example(1));
+            assertEquals(format, Format.detect(bytes));
+        }
+        assertEquals(Format.JSON, Format.detect("  \n[1, 2]".getBytes()));
+        assertEquals(Format.YAML, Format.detect("---\nid: 1\n".getBytes()));
+        assertEquals(Format.JSON, Format.detect("{ \"id\": 1}".getBytes()));
+        assertEquals(Format.JSON, Format.detect("{}".getBytes()));
+        assertEquals(Format.JSON, Format.detect("[-1]".getBytes()));
+    }
+
+    @Test
+    public void testDetectFlowYaml() throws Exception {
+        assertEquals(Format.YAML, Format.detect("{id: 1, name: ray}".getBytes()));
+        assertEquals(Format.YAML, Format.detect("[a, b]".getBytes()));
+        // JSON is YAML, so an ambiguous array is read as YAML
+        assertEquals(Format.YAML, Format.detect("[true]".getBytes()));
+        // only the first token is inspected
+        assertEquals(Format.JSON, Format.detect("{\"id\": one}".getBytes()));
+
+        FormatDetectingConverter<ExampleConfig> converter = new FormatDetectingConverter<ExampleConfig>();
+        assertEquals("ray", converter.toDomain("{id: 1, name: ray}".getBytes(), ExampleConfig.class).name);
+    }
+
+    @Test
+    public void testDetectCborArray() throws Exception {
+        byte[] bytes = new CBORConverter<List<String>>().fromDomain(Arrays.asList("a", "b"));
+        assertEquals(Format.CBOR, Format.detect(bytes));
+        assertEquals(Format.CBOR, Format.detect(new CBORConverter<List<String>>().fromDomain(Collections.<String>emptyList())));
+    }
+
+    @Test
+    public void testBinaryIsSmallerThanJson() throws Exception {
+        int json = new JsonConverter<ExampleConfig>().fromDomain(ExampleConfig.example(1)).length;
+        assertTrue(new SmileConverter<ExampleConfig>().fromDomain(ExampleConfig.example(1)).length < json);
+        assertTrue(new CBORConverter<ExampleConfig>().fromDomain(ExampleConfig.example(1)).length < json);
+    }
+
+    @Test
+    public void testReadsEveryFormat() throws Exception {
+        FormatDetectingConverter<ExampleConfig> converter = new FormatDetectingConverter<ExampleConfig>();
+        for (Format format : Format.values()) {
+            byte[] bytes = format.<ExampleConfig>newConverter().fromDomain(ExampleConfig.example(1));
+            assertEquals("ray", converter.toDomain(bytes, ExampleConfig.class).name);
+            assertEquals("ray", converter.toDomain(ByteBuffer.wrap(bytes), ExampleConfig.class).name);
+            assertEquals("ray", converter.toDomain(new ByteArrayInputStream(bytes), ExampleConfig.class).name);
+        }
+    }
+
+    @Test
+    public void testWritesOutputFormat() throws Exception {
+        byte[] bytes = new FormatDetectingConverter<ExampleConfig>(Format.SMILE).fromDomain(ExampleConfig.example(1));
+        assertEquals(Format.SMILE, Format.detect(bytes));
+    }
+}
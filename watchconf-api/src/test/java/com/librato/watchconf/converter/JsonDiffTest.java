@@ -0,0 +1,45 @@
+package com.librato.watchconf.converter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.TreeSet;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+public class JsonDiffTest {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static JsonNode tree(String json) throws Exception {
+        return objectMapper.readTree(json.replace('\'', '"'));
+    }
+
+    @Test
+    public void testEqualTreesHaveNoChanges() throws Exception {
+        assertTrue(JsonDiff.changedPaths(tree("{'a':{'b':[1,2]}}"), tree("{'a':{'b':[1,2]}}")).isEmpty());
+    }
+
+    @Test
+    public void testReportsDeepestChangedPaths() throws Exception {
+        JsonNode previous = tree("{'limits':{'rateLimit':10,'burst':5},'name':'x','removed':1,'list':[1,2],'grown':[1]}");
+        JsonNode current = tree("{'limits':{'rateLimit':20,'burst':5},'name':'x','added':1,'list':[1,3],'grown':[1,2]}");
+        assertEquals(new TreeSet<String>(Arrays.asList("/added", "/grown", "/limits/rateLimit", "/list/1", "/removed")),
+                JsonDiff.changedPaths(previous, current));
+    }
+
+    @Test
+    public void testEscapesFieldNames() throws Exception {
+        assertEquals(Collections.singleton("/a~1b~0c"), JsonDiff.changedPaths(tree("{'a/b~c':1}"), tree("{'a/b~c':2}")));
+    }
+
+    @Test
+    public void testTypeChangeReplacesRoot() throws Exception {
+        assertEquals(Collections.singleton(JsonDiff.ROOT), JsonDiff.changedPaths(tree("{}"), tree("[]")));
+        assertEquals(Collections.singleton(JsonDiff.ROOT), JsonDiff.changedPaths(null, tree("{}")));
+    }
+}
@@ -0,0 +1,68 @@
+package com.librato.watchconf.converter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertSame;
+import static junit.framework.TestCase.fail;
+
+public class JsonPatchTest {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static JsonNode tree(String json) throws Exception {
+        return objectMapper.readTree(json.replace('\'', '"'));
+    }
+
+    private static void assertRoundTrip(String source, String target) throws Exception {
+        JsonNode patch = JsonPatch.diff(tree(source), tree(target));
+        assertEquals(tree(target), JsonPatch.apply(tree(source), patch));
+    }
+
+    @Test
+    public void testDiffAppliesToTarget() throws Exception {
+        assertRoundTrip("{'a':{'b':1,'c':2},'d':[1,2,3]}", "{'a':{'b':5,'e':3},'d':[1,4]}");
+        assertRoundTrip("{'d':[1]}", "{'d':[1,{'x':2},3]}");
+        assertRoundTrip("{'a/b~c':1}", "{'a/b~c':2}");
+        assertRoundTrip("[1,2]", "{'a':1}");
+        assertEquals(0, JsonPatch.diff(tree("{'a':[1]}"), tree("{'a':[1]}")).size());
+        assertEquals(tree("[{'op':'replace','path':'/a/b','value':5}]"), JsonPatch.diff(tree("{'a':{'b':1}}"), tree("{'a':{'b':5}}")));
+    }
+
+    @Test
+    public void testApplyCopiesOnlyThePathChanged() throws Exception {
+        JsonNode source = tree("{'changed':{'value':1},'untouched':{'value':2}}");
+        JsonNode patched = JsonPatch.apply(source, tree("[{'op':'replace','path':'/changed/value','value':3}]"));
+        assertEquals(tree("{'changed':{'value':3},'untouched':{'value':2}}"), patched);
+        assertEquals(tree("{'changed':{'value':1},'untouched':{'value':2}}"), source);
+        assertSame(source.get("untouched"), patched.get("untouched"));
+    }
+
+    @Test
+    public void testApplyArrayOperations() throws Exception {
+        JsonNode patched = JsonPatch.apply(tree("{'a':[1,2]}"), tree("[{'op':'add','path':'/a/-','value':3},"
+                + "{'op':'add','path':'/a/0','value':0},{'op':'remove','path':'/a/1'}]"));
+        assertEquals(tree("{'a':[0,2,3]}"), patched);
+    }
+
+    @Test
+    public void testRejectsPatchesThatDoNotApply() throws Exception {
+        assertRejected("{'a':1}", "[{'op':'remove','path':'/b'}]");
+        assertRejected("{'a':1}", "[{'op':'replace','path':'/a/b','value':1}]");
+        assertRejected("{'a':[1]}", "[{'op':'replace','path':'/a/1','value':1}]");
+        assertRejected("{'a':1}", "[{'op':'move','from':'/a','path':'/b'}]");
+        assertRejected("{'a':1}", "{'op':'remove','path':'/a'}");
+    }
+
+    private static void assertRejected(String source, String patch) throws Exception {
+        try {
+            JsonPatch.apply(tree(source), tree(patch));
+            fail("applied " + patch);
+        } catch (IOException expected) {
+        }
+    }
+}
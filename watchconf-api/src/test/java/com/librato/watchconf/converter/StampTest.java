@@ -0,0 +1,48 @@
+package com.librato.watchconf.converter;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertSame;
+import static junit.framework.TestCase.assertTrue;
+
+public class StampTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte[] payload = "{\"id\":1}".getBytes();
+        byte[] stamped = new Stamp(42, 1000).apply(payload);
+        assertEquals(Stamp.HEADER_LENGTH + payload.length, stamped.length);
+
+        Stamp stamp = Stamp.read(stamped);
+        assertEquals(42, stamp.getVersion());
+        assertEquals(1000, stamp.getTimestampMillis());
+        assertTrue(Arrays.equals(payload, Stamp.strip(stamped)));
+    }
+
+    @Test
+    public void testUnstampedPayloads() throws Exception {
+        byte[] json = "{\"padding\":\"0123456789abcdef\"}".getBytes();
+        assertNull(Stamp.read(json));
+        assertSame(json, Stamp.strip(json));
+        assertNull(Stamp.read(Compression.GZIP.compress(json)));
+        for (Format format : Format.values()) {
+            assertNull(Stamp.read(format.newObjectMapper().writeValueAsBytes(new int[32])));
+        }
+    }
+
+    @Test
+    public void testReadFromBufferPosition() throws Exception {
+        byte[] stamped = new Stamp(7, 8).apply("{}".getBytes());
+        ByteBuffer buffer = ByteBuffer.allocate(stamped.length + 3);
+        buffer.position(3);
+        buffer.put(stamped);
+        buffer.position(3);
+        assertEquals(7, Stamp.read(buffer).getVersion());
+        assertEquals(3, buffer.position());
+    }
+}
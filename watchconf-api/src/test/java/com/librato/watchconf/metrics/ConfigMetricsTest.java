@@ -0,0 +1,127 @@
+package com.librato.watchconf.metrics;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Optional;
+import com.librato.ExampleConfig;
+import com.librato.watchconf.ConfigMetrics;
+import com.librato.watchconf.DynamicConfig;
+import com.librato.watchconf.adapter.AbstractConfigAdapter;
+import com.librato.watchconf.converter.JsonConverter;
+import com.librato.watchconf.converter.Stamp;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+public class ConfigMetricsTest {
+
+    private static class ExampleConfigAdapter extends AbstractConfigAdapter<ExampleConfig, byte[]> {
+
+        ExampleConfigAdapter(ConfigMetrics metrics) {
+            super(ExampleConfig.class, new JsonConverter<ExampleConfig>(), Optional.<ChangeListener<ExampleConfig>>absent());
+            setMetrics(metrics);
+            registerListener(new DynamicConfig.ChangeListener<ExampleConfig>() {
+                public void onChange(Optional<ExampleConfig> t) {
+                }
+
+                public void onError(Exception ex) {
+                }
+            });
+        }
+
+        @Override
+        public void start() throws Exception {
+            started.set(true);
+        }
+
+        void change(String json) {
+            change(json.replace('\'', '"').getBytes());
+        }
+
+        void change(byte[] bytes) {
+            if (getAndSet(bytes)) {
+                notifyListeners();
+            }
+        }
+    }
+
+    private static void changes(ExampleConfigAdapter adapter) throws Exception {
+        adapter.start();
+        adapter.change("{'id':1}");
+        adapter.change("not json");
+        adapter.change("{'id':2}");
+        adapter.get();
+    }
+
+    @Test
+    public void testMicrometer() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        changes(new ExampleConfigAdapter(new MicrometerConfigMetrics(registry, "example")));
+
+        assertEquals(3.0, registry.get("watchconf.reloads").tag("config", "example").counter().count());
+        assertEquals(24.0, registry.get("watchconf.payload.size").summary().totalAmount());
+        assertEquals(2, registry.get("watchconf.decode").timer().count());
+        assertEquals(1.0, registry.get("watchconf.decode.failures").counter().count());
+        assertEquals(2, registry.get("watchconf.notify").timer().count());
+        assertEquals(-1.0, registry.get("watchconf.applied.version").gauge().value());
+    }
+
+    @Test
+    public void testMicrometerRecreated() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        new MicrometerConfigMetrics(registry, "example").reloaded(10);
+        MicrometerConfigMetrics recreated = new MicrometerConfigMetrics(registry, "example");
+        recreated.reloaded(10);
+        recreated.applied(7, 0);
+
+        assertEquals(2.0, registry.get("watchconf.reloads").tag("config", "example").counter().count());
+        assertEquals(7.0, registry.get("watchconf.applied.version").tag("config", "example").gauge().value());
+    }
+
+    @Test
+    public void testStampedChangesReportPropagation() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        ExampleConfigAdapter adapter = new ExampleConfigAdapter(new MicrometerConfigMetrics(registry, "example"));
+        adapter.start();
+        assertEquals(-1, adapter.getAppliedVersion());
+
+        adapter.change(new Stamp(7, System.currentTimeMillis() - 50).apply("{\"id\":3}".getBytes()));
+        assertEquals(3, adapter.get().get().id);
+        assertEquals(7, adapter.getAppliedVersion());
+        assertEquals(7.0, registry.get("watchconf.applied.version").gauge().value());
+        assertEquals(1, registry.get("watchconf.propagation").timer().count());
+        assertTrue(registry.get("watchconf.propagation").timer().totalTime(TimeUnit.MILLISECONDS) >= 50);
+
+        // an unstamped change doesn't report propagation
+        adapter.change("{'id':4}");
+        assertEquals(7, adapter.getAppliedVersion());
+        assertEquals(1, registry.get("watchconf.propagation").timer().count());
+    }
+
+    @Test
+    public void testDropwizard() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        changes(new ExampleConfigAdapter(new DropwizardConfigMetrics(registry, "example")));
+
+        assertEquals(3, registry.counter("watchconf.example.reloads").getCount());
+        assertEquals(3, registry.histogram("watchconf.example.payload-bytes").getCount());
+        assertEquals(2, registry.timer("watchconf.example.decode").getCount());
+        assertEquals(1, registry.counter("watchconf.example.decode-failures").getCount());
+        assertEquals(2, registry.timer("watchconf.example.notify").getCount());
+    }
+
+    @Test
+    public void testDropwizardRecreated() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        new DropwizardConfigMetrics(registry, "example").reloaded(10);
+        DropwizardConfigMetrics recreated = new DropwizardConfigMetrics(registry, "example");
+        recreated.reloaded(10);
+        recreated.applied(7, 0);
+
+        assertEquals(2, registry.counter("watchconf.example.reloads").getCount());
+        assertEquals(7L, registry.getGauges().get("watchconf.example.applied-version").getValue());
+    }
+}
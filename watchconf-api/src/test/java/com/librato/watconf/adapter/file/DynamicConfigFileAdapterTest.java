@@ -3,18 +3,30 @@ package com.librato.watconf.adapter.file;
 import com.google.common.base.Optional;
 import com.librato.ExampleConfig;
 import com.librato.watchconf.DynamicConfig;
+import com.librato.watchconf.adapter.SnapshotCache;
 import com.librato.watchconf.adapter.file.DynamicConfigFileAdapter;
 import com.librato.watchconf.converter.Converter;
 import com.librato.watchconf.converter.YAMLConverter;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.URL;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
 
 public class DynamicConfigFileAdapterTest {
@@ -29,10 +41,24 @@ public class DynamicConfigFileAdapterTest {
         }
     }
 
+    /**
+     * @return a copy of the example config in a new temporary directory, so tests may change it
+     */
+    private File copyFixture() throws Exception {
+        File file = new File(Files.createTempDirectory("watchconf").toFile(), "example_config.yml");
+        InputStream inputStream = this.getClass().getResourceAsStream("/example_config.yml");
+        try {
+            Files.copy(inputStream, file.toPath());
+        } finally {
+            inputStream.close();
+        }
+        return file;
+    }
+
     @Test
     public void testReadConfig() throws Exception {
-        URL url = this.getClass().getResource("/example_config.yml");
-        ExampleConfigAdapter exampleConfigAdapter = new ExampleConfigAdapter(url.getFile(), new YAMLConverter<ExampleConfig>());
+        File file = copyFixture();
+        ExampleConfigAdapter exampleConfigAdapter = new ExampleConfigAdapter(file.getAbsolutePath(), new YAMLConverter<ExampleConfig>());
         exampleConfigAdapter.start();
         Optional<ExampleConfig> exampleConfig = exampleConfigAdapter.get();
         assertTrue(exampleConfig.isPresent());
@@ -40,13 +66,14 @@ public class DynamicConfigFileAdapterTest {
         assertEquals("foo", exampleConfig.get().name);
         assertEquals(1, exampleConfig.get().things.size());
         assertEquals("thing1", exampleConfig.get().things.get(0).name);
+        exampleConfigAdapter.shutdown();
     }
 
     @Test
     public void testWatchConfig() throws Exception {
-        URL url = this.getClass().getResource("/example_config.yml");
+        File file = copyFixture();
         final CountDownLatch countDownLatch = new CountDownLatch(1);
-        ExampleConfigAdapter exampleConfigAdapter = new ExampleConfigAdapter(url.getFile(), new YAMLConverter<ExampleConfig>(), new DynamicConfig.ChangeListener<ExampleConfig>() {
+        ExampleConfigAdapter exampleConfigAdapter = new ExampleConfigAdapter(file.getAbsolutePath(), new YAMLConverter<ExampleConfig>(), new DynamicConfig.ChangeListener<ExampleConfig>() {
             public void onChange(Optional<ExampleConfig> t) {
                 countDownLatch.countDown();
             }
@@ -63,14 +90,273 @@ public class DynamicConfigFileAdapterTest {
         exampleConfig.things.clear();
 
         YAMLConverter<ExampleConfig> exampleConfigYAMLConverter = new YAMLConverter();
-        FileOutputStream fileOutputStream = new FileOutputStream(url.getFile());
+        FileOutputStream fileOutputStream = new FileOutputStream(file);
         fileOutputStream.write(exampleConfigYAMLConverter.fromDomain(exampleConfig));
         fileOutputStream.close();
-        countDownLatch.await(20, TimeUnit.SECONDS);
-        assertEquals(0, countDownLatch.getCount());
+        assertTrue(countDownLatch.await(20, TimeUnit.SECONDS));
         exampleConfig = exampleConfigAdapter.get().get();
         assertEquals(100, exampleConfig.id);
         assertEquals("ray", exampleConfig.name);
         assertEquals(0, exampleConfig.things.size());
+        exampleConfigAdapter.shutdown();
+    }
+
+    private static void write(File file, ExampleConfig exampleConfig) throws Exception {
+        File tmp = new File(file.getParentFile(), "." + file.getName() + ".tmp");
+        FileOutputStream fileOutputStream = new FileOutputStream(tmp);
+        fileOutputStream.write(new YAMLConverter<ExampleConfig>().fromDomain(exampleConfig));
+        fileOutputStream.close();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static int countWatcherThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if ("watchconf-file-watcher".equals(thread.getName())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testAdaptersShareWatcher() throws Exception {
+        File dir = Files.createTempDirectory("watchconf").toFile();
+        final CountDownLatch countDownLatch = new CountDownLatch(1);
+        final AtomicInteger otherChanges = new AtomicInteger();
+        List<ExampleConfigAdapter> adapters = new ArrayList<ExampleConfigAdapter>();
+
+        for (int i = 0; i < 20; i++) {
+            ExampleConfig exampleConfig = new ExampleConfig();
+            exampleConfig.id = i;
+            write(new File(dir, "config" + i + ".yml"), exampleConfig);
+        }
+
+        for (int i = 0; i < 20; i++) {
+            File file = new File(dir, "config" + i + ".yml");
+            final boolean watched = i == 7;
+            ExampleConfigAdapter adapter = new ExampleConfigAdapter(file.getAbsolutePath(), new YAMLConverter<ExampleConfig>(), new DynamicConfig.ChangeListener<ExampleConfig>() {
+                public void onChange(Optional<ExampleConfig> t) {
+                    if (watched) {
+                        countDownLatch.countDown();
+                    } else {
+                        otherChanges.incrementAndGet();
+                    }
+                }
+
+                public void onError(Exception ex) {
+                }
+            });
+            adapter.start();
+            adapters.add(adapter);
+        }
+
+        assertEquals(1, countWatcherThreads());
+
+        ExampleConfig updated = new ExampleConfig();
+        updated.id = 100;
+        write(new File(dir, "config7.yml"), updated);
+        assertTrue(countDownLatch.await(20, TimeUnit.SECONDS));
+        assertEquals(100, adapters.get(7).get().get().id);
+        assertEquals(0, otherChanges.get());
+
+        for (ExampleConfigAdapter adapter : adapters) {
+            adapter.shutdown();
+        }
+    }
+
+    @Test
+    public void testBurstOfWritesIsOneReload() throws Exception {
+        File dir = Files.createTempDirectory("watchconf").toFile();
+        File file = new File(dir, "config.yml");
+        ExampleConfig exampleConfig = new ExampleConfig();
+        write(file, exampleConfig);
+
+        final BlockingQueue<Integer> changes = new LinkedBlockingQueue<Integer>();
+        ExampleConfigAdapter adapter = new ExampleConfigAdapter(file.getAbsolutePath(), new YAMLConverter<ExampleConfig>(), new DynamicConfig.ChangeListener<ExampleConfig>() {
+            public void onChange(Optional<ExampleConfig> t) {
+                changes.add(t.get().id);
+            }
+
+            public void onError(Exception ex) {
+            }
+        });
+        adapter.setDebounce(500, TimeUnit.MILLISECONDS);
+        adapter.start();
+
+        YAMLConverter<ExampleConfig> converter = new YAMLConverter<ExampleConfig>();
+        for (int i = 1; i <= 10; i++) {
+            exampleConfig.id = i;
+            FileOutputStream fileOutputStream = new FileOutputStream(file);
+            fileOutputStream.write(converter.fromDomain(exampleConfig));
+            fileOutputStream.close();
+        }
+        assertEquals(10, (int) changes.poll(20, TimeUnit.SECONDS));
+
+        // reloads are delivered in order, so the next one follows any left over from the burst
+        exampleConfig.id = 11;
+        write(file, exampleConfig);
+        assertEquals(11, (int) changes.poll(20, TimeUnit.SECONDS));
+        assertTrue(changes.isEmpty());
+        adapter.shutdown();
+    }
+
+    @Test
+    public void testShutdownCancelsPendingReload() throws Exception {
+        File dir = Files.createTempDirectory("watchconf").toFile();
+        File file = new File(dir, "config.yml");
+        ExampleConfig exampleConfig = new ExampleConfig();
+        exampleConfig.id = 1;
+        write(file, exampleConfig);
+
+        final CountDownLatch changed = new CountDownLatch(1);
+        ExampleConfigAdapter adapter = new ExampleConfigAdapter(file.getAbsolutePath(), new YAMLConverter<ExampleConfig>(), new DynamicConfig.ChangeListener<ExampleConfig>() {
+            public void onChange(Optional<ExampleConfig> t) {
+                changed.countDown();
+            }
+
+            public void onError(Exception ex) {
+            }
+        });
+        adapter.setDebounce(1000, TimeUnit.MILLISECONDS);
+        adapter.start();
+
+        // registered after adapter, so its reload follows the event being delivered to adapter
+        final CountDownLatch delivered = new CountDownLatch(1);
+        ExampleConfigAdapter probe = new ExampleConfigAdapter(file.getAbsolutePath(), new YAMLConverter<ExampleConfig>(), new DynamicConfig.ChangeListener<ExampleConfig>() {
+            public void onChange(Optional<ExampleConfig> t) {
+                delivered.countDown();
+            }
+
+            public void onError(Exception ex) {
+            }
+        });
+        probe.setDebounce(0, TimeUnit.MILLISECONDS);
+        probe.start();
+
+        exampleConfig.id = 2;
+        write(file, exampleConfig);
+        assertTrue(delivered.await(20, TimeUnit.SECONDS));
+        adapter.shutdown();
+        assertFalse(changed.await(2, TimeUnit.SECONDS));
+        probe.shutdown();
+    }
+
+    @Test
+    public void testIdenticalContentIsSkipped() throws Exception {
+        File dir = Files.createTempDirectory("watchconf").toFile();
+        File file = new File(dir, "config.yml");
+        ExampleConfig exampleConfig = new ExampleConfig();
+        exampleConfig.id = 1;
+        write(file, exampleConfig);
+
+        final CountDownLatch changed = new CountDownLatch(1);
+        ExampleConfigAdapter adapter = new ExampleConfigAdapter(file.getAbsolutePath(), new YAMLConverter<ExampleConfig>(), new DynamicConfig.ChangeListener<ExampleConfig>() {
+            public void onChange(Optional<ExampleConfig> t) {
+                changed.countDown();
+            }
+
+            public void onError(Exception ex) {
+            }
+        });
+        adapter.setDebounce(0, TimeUnit.MILLISECONDS);
+        adapter.start();
+        ExampleConfig loaded = adapter.get().get();
+
+        write(file, exampleConfig);
+        assertFalse(changed.await(1, TimeUnit.SECONDS));
+        assertTrue(loaded == adapter.get().get());
+        adapter.shutdown();
+    }
+
+    @Test
+    public void testMappedReadMode() throws Exception {
+        File dir = Files.createTempDirectory("watchconf").toFile();
+        File file = new File(dir, "config.yml");
+        ExampleConfig exampleConfig = new ExampleConfig();
+        exampleConfig.id = 1;
+        exampleConfig.things.add(new ExampleConfig.Thing("thing1"));
+        write(file, exampleConfig);
+
+        final CountDownLatch countDownLatch = new CountDownLatch(1);
+        ExampleConfigAdapter adapter = new ExampleConfigAdapter(file.getAbsolutePath(), new YAMLConverter<ExampleConfig>(), new DynamicConfig.ChangeListener<ExampleConfig>() {
+            public void onChange(Optional<ExampleConfig> t) {
+                countDownLatch.countDown();
+            }
+
+            public void onError(Exception ex) {
+            }
+        });
+        adapter.setReadMode(DynamicConfigFileAdapter.ReadMode.MAPPED);
+        adapter.start();
+        assertEquals(1, adapter.get().get().id);
+        assertEquals("thing1", adapter.get().get().things.get(0).name);
+
+        exampleConfig.id = 2;
+        write(file, exampleConfig);
+        assertTrue(countDownLatch.await(20, TimeUnit.SECONDS));
+        assertEquals(2, adapter.get().get().id);
+        adapter.shutdown();
+    }
+
+    @Test
+    public void testMappedReadModeDecodesLazily() throws Exception {
+        File dir = Files.createTempDirectory("watchconf").toFile();
+        File file = new File(dir, "config.yml");
+        ExampleConfig exampleConfig = new ExampleConfig();
+        exampleConfig.id = 1;
+        write(file, exampleConfig);
+
+        final AtomicInteger decodes = new AtomicInteger();
+        ExampleConfigAdapter adapter = new ExampleConfigAdapter(file.getAbsolutePath(), new YAMLConverter<ExampleConfig>() {
+            @Override
+            public ExampleConfig toDomain(ByteBuffer buffer, Class<ExampleConfig> clazz) throws IOException {
+                decodes.incrementAndGet();
+                return super.toDomain(buffer, clazz);
+            }
+        });
+        adapter.setReadMode(DynamicConfigFileAdapter.ReadMode.MAPPED);
+        adapter.setLazy(true);
+        adapter.start();
+        assertEquals(0, decodes.get());
+        assertEquals(1, adapter.get().get().id);
+        assertEquals(1, adapter.get().get().id);
+        assertEquals(1, decodes.get());
+        adapter.shutdown();
+    }
+
+    @Test
+    public void testMappedReadModeWritesSnapshot() throws Exception {
+        File dir = Files.createTempDirectory("watchconf").toFile();
+        File file = new File(dir, "config.yml");
+        ExampleConfig exampleConfig = new ExampleConfig();
+        exampleConfig.id = 1;
+        write(file, exampleConfig);
+
+        SnapshotCache snapshotCache = new SnapshotCache(new File(dir, "config.snapshot"));
+        ExampleConfigAdapter adapter = new ExampleConfigAdapter(file.getAbsolutePath(), new YAMLConverter<ExampleConfig>());
+        adapter.setReadMode(DynamicConfigFileAdapter.ReadMode.MAPPED);
+        adapter.setSnapshotCache(snapshotCache);
+        adapter.start();
+        assertTrue(Arrays.equals(Files.readAllBytes(file.toPath()), snapshotCache.read().getBytes()));
+        adapter.shutdown();
+    }
+
+    @Test
+    public void testMissingFileAtStartIsReported() throws Exception {
+        File dir = Files.createTempDirectory("watchconf").toFile();
+        final List<Exception> errors = new ArrayList<Exception>();
+        ExampleConfigAdapter adapter = new ExampleConfigAdapter(new File(dir, "missing.yml").getAbsolutePath(), new YAMLConverter<ExampleConfig>(), new DynamicConfig.ChangeListener<ExampleConfig>() {
+            public void onChange(Optional<ExampleConfig> t) {
+            }
+
+            public void onError(Exception ex) {
+                errors.add(ex);
+            }
+        });
+        adapter.start();
+        assertEquals(1, errors.size());
+        assertFalse(adapter.get().isPresent());
+        adapter.shutdown();
     }
 }
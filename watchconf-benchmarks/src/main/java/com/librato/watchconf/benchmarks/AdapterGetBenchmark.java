@@ -0,0 +1,47 @@
+package com.librato.watchconf.benchmarks;
+
+import com.librato.watchconf.DynamicConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link DynamicConfig#get()} on started adapters, the call services make on their request path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djute.maxbuffer=16777216")
+public class AdapterGetBenchmark {
+
+    @Param({"zookeeper", "file"})
+    public String backend;
+
+    @Param({"1024", "1048576"})
+    public int size;
+
+    private Backend source;
+    private DynamicConfig<BenchmarkConfig> adapter;
+
+    @Setup
+    public void setUp() throws Exception {
+        source = Backend.create(backend);
+        source.write(Payloads.bytesOfSize("json", size));
+        adapter = source.newAdapter(null);
+        adapter.start();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        adapter.shutdown();
+        source.close();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public BenchmarkConfig get() throws Exception {
+        return adapter.get().get();
+    }
+}
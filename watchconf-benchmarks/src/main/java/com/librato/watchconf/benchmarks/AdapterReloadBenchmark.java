@@ -0,0 +1,76 @@
+package com.librato.watchconf.benchmarks;
+
+import com.google.common.base.Optional;
+import com.librato.watchconf.DynamicConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time from writing a new payload to the backend until a registered listener has been notified.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djute.maxbuffer=16777216")
+public class AdapterReloadBenchmark {
+
+    @Param({"zookeeper", "file"})
+    public String backend;
+
+    @Param({"1024", "102400", "1048576", "10485760"})
+    public int size;
+
+    private final BlockingQueue<Optional<BenchmarkConfig>> changes = new LinkedBlockingQueue<Optional<BenchmarkConfig>>();
+    private Backend source;
+    private DynamicConfig<BenchmarkConfig> adapter;
+    private byte[][] payloads;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkConfig first = Payloads.configOfSize(size);
+        first.id = 1;
+        BenchmarkConfig second = Payloads.configOfSize(size);
+        second.id = 2;
+        payloads = new byte[][]{
+                Payloads.mapper("json").writeValueAsBytes(first),
+                Payloads.mapper("json").writeValueAsBytes(second)
+        };
+
+        source = Backend.create(backend);
+        source.write(payloads[0]);
+        adapter = source.newAdapter(new DynamicConfig.ChangeListener<BenchmarkConfig>() {
+            public void onChange(Optional<BenchmarkConfig> t) {
+                changes.offer(t);
+            }
+
+            public void onError(Exception ex) {
+            }
+        });
+        adapter.start();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        adapter.shutdown();
+        source.close();
+    }
+
+    @Benchmark
+    public Optional<BenchmarkConfig> reload() throws Exception {
+        next = (next + 1) % payloads.length;
+        changes.clear();
+        source.write(payloads[next]);
+        // skip late notifications for the previous write
+        Optional<BenchmarkConfig> change;
+        do {
+            change = changes.poll(30, TimeUnit.SECONDS);
+        } while (change != null && change.get().id != next + 1);
+        return change;
+    }
+}
@@ -0,0 +1,132 @@
+package com.librato.watchconf.benchmarks;
+
+import com.librato.watchconf.DynamicConfig;
+import com.librato.watchconf.DynamicConfig.ChangeListener;
+import com.librato.watchconf.adapter.file.DynamicConfigFileAdapter;
+import com.librato.watchconf.adapter.zookeeper.DynamicConfigZKAdapter;
+import com.librato.watchconf.converter.JsonConverter;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * An in-process stand-in for a configuration source: a curator-test {@link TestingServer} for ZooKeeper, or a
+ * temporary directory for files.
+ */
+public abstract class Backend {
+
+    private static final String ZK_PATH = "/watchconf/benchmark/config";
+
+    /**
+     * Creates a backend by name.
+     *
+     * @param name zookeeper or file
+     * @return a started backend
+     * @throws Exception unable to start the backend
+     */
+    public static Backend create(String name) throws Exception {
+        if ("zookeeper".equals(name)) {
+            return new ZooKeeperBackend();
+        } else if ("file".equals(name)) {
+            return new FileBackend();
+        }
+        throw new IllegalArgumentException("unknown backend: " + name);
+    }
+
+    /**
+     * Stores a payload at the benchmark's config location.
+     *
+     * @param bytes serialized config
+     * @throws Exception unable to write the payload
+     */
+    public abstract void write(byte[] bytes) throws Exception;
+
+    /**
+     * Creates an adapter watching the benchmark's config location. The adapter is not started.
+     *
+     * @param changeListener listener to register, may be null
+     * @return a new adapter
+     * @throws Exception unable to create the adapter
+     */
+    public abstract DynamicConfig<BenchmarkConfig> newAdapter(ChangeListener<BenchmarkConfig> changeListener) throws Exception;
+
+    public abstract void close() throws Exception;
+
+    private static class ZooKeeperBackend extends Backend {
+
+        private final TestingServer server;
+        private final CuratorFramework curatorFramework;
+
+        ZooKeeperBackend() throws Exception {
+            server = new TestingServer();
+            curatorFramework = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryOneTime(1));
+            curatorFramework.start();
+        }
+
+        @Override
+        public void write(byte[] bytes) throws Exception {
+            if (curatorFramework.checkExists().forPath(ZK_PATH) == null) {
+                curatorFramework.create().creatingParentsIfNeeded().forPath(ZK_PATH, bytes);
+            } else {
+                curatorFramework.setData().forPath(ZK_PATH, bytes);
+            }
+        }
+
+        @Override
+        public DynamicConfig<BenchmarkConfig> newAdapter(ChangeListener<BenchmarkConfig> changeListener) throws Exception {
+            return new DynamicConfigZKAdapter<BenchmarkConfig>(BenchmarkConfig.class, ZK_PATH, curatorFramework, new JsonConverter<BenchmarkConfig>(), changeListener) {
+            };
+        }
+
+        @Override
+        public void close() throws Exception {
+            curatorFramework.close();
+            server.close();
+        }
+    }
+
+    private static class FileBackend extends Backend {
+
+        private final File dir;
+        private final File file;
+
+        FileBackend() throws IOException {
+            dir = Files.createTempDirectory("watchconf-benchmark").toFile();
+            file = new File(dir, "config.json");
+        }
+
+        /**
+         * Writes to a temporary file and renames it into place, the way config management tools save files.
+         */
+        @Override
+        public void write(byte[] bytes) throws IOException {
+            File tmp = new File(dir, ".config.json.tmp");
+            FileOutputStream fileOutputStream = new FileOutputStream(tmp);
+            try {
+                fileOutputStream.write(bytes);
+            } finally {
+                fileOutputStream.close();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        @Override
+        public DynamicConfig<BenchmarkConfig> newAdapter(ChangeListener<BenchmarkConfig> changeListener) throws Exception {
+            return new DynamicConfigFileAdapter<BenchmarkConfig>(BenchmarkConfig.class, file.getAbsolutePath(), new JsonConverter<BenchmarkConfig>(), changeListener) {
+            };
+        }
+
+        @Override
+        public void close() {
+            file.delete();
+            dir.delete();
+        }
+    }
+}
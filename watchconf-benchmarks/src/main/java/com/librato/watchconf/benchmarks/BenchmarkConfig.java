@@ -0,0 +1,41 @@
+package com.librato.watchconf.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Configuration POJO used by the benchmarks, shaped like a typical routing table.
+ */
+public class BenchmarkConfig {
+
+    public int id;
+    public String name;
+    public List<Route> routes = new ArrayList();
+
+    public static class Route {
+        public String name;
+        public String host;
+        public int port;
+        public boolean enabled = true;
+    }
+
+    /**
+     * Builds a config with the given number of routes.
+     *
+     * @param routeCount number of routes to add
+     * @return a populated config
+     */
+    public static BenchmarkConfig withRoutes(int routeCount) {
+        BenchmarkConfig config = new BenchmarkConfig();
+        config.id = 1;
+        config.name = "benchmark";
+        for (int i = 0; i < routeCount; i++) {
+            Route route = new Route();
+            route.name = "route-" + i;
+            route.host = "10.0." + (i / 256 % 256) + "." + (i % 256);
+            route.port = 9000 + (i % 1000);
+            config.routes.add(route);
+        }
+        return config;
+    }
+}
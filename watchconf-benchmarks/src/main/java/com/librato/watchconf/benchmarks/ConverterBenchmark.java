@@ -0,0 +1,40 @@
+package com.librato.watchconf.benchmarks;
+
+import com.librato.watchconf.converter.Converter;
+import com.librato.watchconf.converter.Format;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Converter#toDomain} for the bundled converters across payload sizes. Run {@link PayloadSizes} to
+ * compare the encoded size of the same payloads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConverterBenchmark {
+
+    @Param({"json", "yaml", "smile", "cbor"})
+    public String format;
+
+    @Param({"1024", "102400", "1048576", "10485760"})
+    public int size;
+
+    private Converter<BenchmarkConfig, byte[]> converter;
+    private byte[] payload;
+
+    @Setup
+    public void setUp() throws Exception {
+        converter = Format.fromName(format).newConverter();
+        payload = Payloads.bytesOfSize(format, size);
+    }
+
+    @Benchmark
+    public BenchmarkConfig toDomain() throws Exception {
+        return converter.toDomain(payload, BenchmarkConfig.class);
+    }
+}
@@ -0,0 +1,81 @@
+package com.librato.watchconf.benchmarks;
+
+import com.google.common.base.Optional;
+import com.librato.watchconf.DynamicConfig.ChangeListener;
+import com.librato.watchconf.adapter.AbstractConfigAdapter;
+import com.librato.watchconf.converter.JsonConverter;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of notifying registered listeners of a change.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListenerFanoutBenchmark {
+
+    @Param({"1", "10", "100", "1000", "10000"})
+    public int listeners;
+
+    private FanoutAdapter adapter;
+    private Optional<BenchmarkConfig> value;
+
+    /**
+     * Exposes {@link AbstractConfigAdapter#notifyListeners} to the benchmark.
+     */
+    public static class FanoutAdapter extends AbstractConfigAdapter<BenchmarkConfig, byte[]> {
+
+        public FanoutAdapter() {
+            super(BenchmarkConfig.class, new JsonConverter<BenchmarkConfig>(), Optional.<ChangeListener<BenchmarkConfig>>absent());
+        }
+
+        @Override
+        public void start() throws Exception {
+            started.set(true);
+        }
+
+        public void fire(Optional<BenchmarkConfig> t) {
+            notifyListeners(t);
+        }
+    }
+
+    public static class ConsumingListener implements ChangeListener<BenchmarkConfig> {
+
+        private final Blackhole blackhole;
+
+        public ConsumingListener(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void onChange(Optional<BenchmarkConfig> t) {
+            blackhole.consume(t);
+        }
+
+        @Override
+        public void onError(Exception ex) {
+            blackhole.consume(ex);
+        }
+    }
+
+    @Setup
+    public void setUp(Blackhole blackhole) throws Exception {
+        adapter = new FanoutAdapter();
+        adapter.start();
+        for (int i = 0; i < listeners; i++) {
+            adapter.registerListener(new ConsumingListener(blackhole));
+        }
+        value = Optional.of(BenchmarkConfig.withRoutes(1));
+    }
+
+    @Benchmark
+    public void notifyListeners() {
+        adapter.fire(value);
+    }
+}
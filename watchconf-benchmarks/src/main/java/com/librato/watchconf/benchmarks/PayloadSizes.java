@@ -0,0 +1,29 @@
+package com.librato.watchconf.benchmarks;
+
+import com.librato.watchconf.converter.Format;
+
+/**
+ * Prints the encoded size of the benchmark payloads in each supported format, as a companion to
+ * {@link ConverterBenchmark}.
+ */
+public class PayloadSizes {
+
+    private static final int[] SIZES = {1024, 102400, 1048576, 10485760};
+
+    public static void main(String[] args) throws Exception {
+        System.out.printf("%-10s", "json size");
+        for (Format format : Format.values()) {
+            System.out.printf("%14s", format.name().toLowerCase());
+        }
+        System.out.println();
+
+        for (int size : SIZES) {
+            BenchmarkConfig config = Payloads.configOfSize(size);
+            System.out.printf("%-10d", size);
+            for (Format format : Format.values()) {
+                System.out.printf("%14d", format.newObjectMapper().writeValueAsBytes(config).length);
+            }
+            System.out.println();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.librato.watchconf.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.librato.watchconf.converter.Format;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Builds serialized {@link BenchmarkConfig} payloads of an approximate target size.
+ */
+public final class Payloads {
+
+    private static final ObjectMapper jsonMapper = new ObjectMapper();
+    private static final Map<Format, ObjectMapper> mappers = new EnumMap<Format, ObjectMapper>(Format.class);
+    private static final int SAMPLE_ROUTES = 100;
+
+    static {
+        for (Format format : Format.values()) {
+            mappers.put(format, format.newObjectMapper());
+        }
+    }
+
+    private Payloads() {
+    }
+
+    /**
+     * Returns a config that serializes to roughly the given number of bytes as JSON.
+     *
+     * @param sizeBytes target serialized size
+     * @return a populated config
+     * @throws Exception unable to serialize the sample config
+     */
+    public static BenchmarkConfig configOfSize(int sizeBytes) throws Exception {
+        int sampleSize = jsonMapper.writeValueAsBytes(BenchmarkConfig.withRoutes(SAMPLE_ROUTES)).length;
+        int routes = Math.max(1, (int) ((long) sizeBytes * SAMPLE_ROUTES / sampleSize));
+        return BenchmarkConfig.withRoutes(routes);
+    }
+
+    /**
+     * Serializes a config of roughly the given size.
+     *
+     * @param format json, yaml, smile or cbor
+     * @param sizeBytes target serialized size
+     * @return serialized config
+     * @throws Exception unable to serialize the config
+     */
+    public static byte[] bytesOfSize(String format, int sizeBytes) throws Exception {
+        return mapper(format).writeValueAsBytes(configOfSize(sizeBytes));
+    }
+
+    public static ObjectMapper mapper(String format) {
+        Format parsed = Format.fromName(format);
+        if (parsed == null) {
+            throw new IllegalArgumentException("unknown format: " + format);
+        }
+        return mappers.get(parsed);
+    }
+}
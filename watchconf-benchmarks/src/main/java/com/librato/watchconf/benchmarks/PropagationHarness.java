@@ -0,0 +1,133 @@
+package com.librato.watchconf.benchmarks;
+
+import com.google.common.base.Optional;
+import com.librato.watchconf.ConfigMetrics;
+import com.librato.watchconf.DynamicConfig;
+import com.librato.watchconf.adapter.zookeeper.DynamicConfigZKAdapter;
+import com.librato.watchconf.converter.JsonConverter;
+import com.librato.watchconf.converter.Stamp;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long a stamped push takes to reach every client. Starts a curator-test {@link TestingServer} and N
+ * in-process clients, each with its own ZooKeeper session and {@link DynamicConfigZKAdapter}, then pushes stamped
+ * configs one at a time and reports the p50/p99 of the per-client latency from push to listeners returning, and of
+ * the fan-out latency until the last client has applied a push.
+ * <p>
+ * Usage: {@code java -cp benchmarks.jar com.librato.watchconf.benchmarks.PropagationHarness [clients] [pushes] [bytes]}
+ */
+public class PropagationHarness {
+
+    private static final String PATH = "/watchconf/benchmark/propagation";
+    private static final long PUSH_TIMEOUT_SECONDS = 60;
+
+    private static volatile CountDownLatch pushApplied;
+    private static volatile long currentVersion;
+    private static final ConcurrentLinkedQueue<Long> pushLatencies = new ConcurrentLinkedQueue<Long>();
+
+    private static final ConfigMetrics RECORDER = new ConfigMetrics() {
+        public void reloaded(int bytes) {
+        }
+
+        public void decoded(long nanos) {
+        }
+
+        public void decodeFailed() {
+        }
+
+        public void notified(long nanos) {
+        }
+
+        public void delivered(long lagMillis) {
+        }
+
+        public void applied(long version, long latencyMillis) {
+            if (version == currentVersion) {
+                pushLatencies.add(latencyMillis);
+                pushApplied.countDown();
+            }
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int pushes = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int bytes = args.length > 2 ? Integer.parseInt(args[2]) : 10240;
+        byte[] payload = Payloads.bytesOfSize("json", bytes);
+
+        TestingServer server = new TestingServer();
+        CuratorFramework pusher = newClient(server);
+        pusher.create().creatingParentsIfNeeded().forPath(PATH, payload);
+
+        List<CuratorFramework> curatorFrameworks = new ArrayList<CuratorFramework>();
+        List<DynamicConfigZKAdapter<BenchmarkConfig>> adapters = new ArrayList<DynamicConfigZKAdapter<BenchmarkConfig>>();
+        DynamicConfig.ChangeListener<BenchmarkConfig> changeListener = new DynamicConfig.ChangeListener<BenchmarkConfig>() {
+            public void onChange(Optional<BenchmarkConfig> t) {
+            }
+
+            public void onError(Exception ex) {
+                ex.printStackTrace(System.err);
+            }
+        };
+        for (int i = 0; i < clients; i++) {
+            CuratorFramework curatorFramework = newClient(server);
+            DynamicConfigZKAdapter<BenchmarkConfig> adapter = new DynamicConfigZKAdapter<BenchmarkConfig>(BenchmarkConfig.class, PATH, curatorFramework, new JsonConverter<BenchmarkConfig>(), changeListener) {
+            };
+            adapter.setMetrics(RECORDER);
+            adapter.start();
+            curatorFrameworks.add(curatorFramework);
+            adapters.add(adapter);
+        }
+
+        List<Long> clientLatencies = new ArrayList<Long>();
+        List<Long> fanOutLatencies = new ArrayList<Long>();
+        for (int push = 1; push <= pushes; push++) {
+            pushLatencies.clear();
+            pushApplied = new CountDownLatch(clients);
+            currentVersion = push;
+            pusher.setData().forPath(PATH, new Stamp(push, System.currentTimeMillis()).apply(payload));
+            if (!pushApplied.await(PUSH_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                System.err.println("push " + push + " reached " + (clients - pushApplied.getCount()) + " of " + clients + " clients");
+            }
+
+            clientLatencies.addAll(pushLatencies);
+            fanOutLatencies.add(Collections.max(pushLatencies));
+        }
+
+        System.out.printf("clients=%d pushes=%d bytes=%d%n", clients, pushes, payload.length);
+        System.out.printf("per-client latency ms: p50=%d p99=%d max=%d%n", percentile(clientLatencies, 50), percentile(clientLatencies, 99), Collections.max(clientLatencies));
+        System.out.printf("fan-out latency ms:    p50=%d p99=%d max=%d%n", percentile(fanOutLatencies, 50), percentile(fanOutLatencies, 99), Collections.max(fanOutLatencies));
+
+        for (DynamicConfigZKAdapter<BenchmarkConfig> adapter : adapters) {
+            adapter.shutdown();
+        }
+        for (CuratorFramework curatorFramework : curatorFrameworks) {
+            curatorFramework.close();
+        }
+        pusher.close();
+        server.close();
+    }
+
+    private static CuratorFramework newClient(TestingServer server) {
+        CuratorFramework curatorFramework = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryOneTime(1));
+        curatorFramework.start();
+        return curatorFramework;
+    }
+
+    private static long percentile(List<Long> values, int percentile) {
+        List<Long> sorted = new ArrayList<Long>(values);
+        Collections.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index));
+    }
+}
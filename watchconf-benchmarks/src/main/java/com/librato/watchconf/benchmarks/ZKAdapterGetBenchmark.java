@@ -0,0 +1,71 @@
+package com.librato.watchconf.benchmarks;
+
+import com.librato.watchconf.adapter.zookeeper.DynamicConfigZKAdapter;
+import com.librato.watchconf.converter.JsonConverter;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.cache.NodeCache;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of {@link DynamicConfigZKAdapter#get()} against decoding the cached znode on every call,
+ * which is what get() did before decoded snapshots were memoized per znode version.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ZKAdapterGetBenchmark {
+
+    private static final String PATH = "/watchconf/benchmark/config";
+
+    @Param({"10", "1000"})
+    public int routes;
+
+    private TestingServer server;
+    private CuratorFramework curatorFramework;
+    private NodeCache nodeCache;
+    private JsonConverter<BenchmarkConfig> converter;
+    private DynamicConfigZKAdapter<BenchmarkConfig> adapter;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = new TestingServer();
+        curatorFramework = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryOneTime(1));
+        curatorFramework.start();
+
+        converter = new JsonConverter<BenchmarkConfig>();
+        curatorFramework.create().creatingParentsIfNeeded().forPath(PATH, converter.fromDomain(BenchmarkConfig.withRoutes(routes)));
+
+        nodeCache = new NodeCache(curatorFramework, PATH);
+        nodeCache.start(true);
+
+        adapter = new DynamicConfigZKAdapter<BenchmarkConfig>(BenchmarkConfig.class, PATH, curatorFramework, converter) {
+        };
+        adapter.start();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        adapter.shutdown();
+        nodeCache.close();
+        curatorFramework.close();
+        server.close();
+    }
+
+    @Benchmark
+    public BenchmarkConfig decodePerCall() throws Exception {
+        return converter.toDomain(nodeCache.getCurrentData().getData(), BenchmarkConfig.class);
+    }
+
+    @Benchmark
+    public BenchmarkConfig memoizedGet() throws Exception {
+        return adapter.get().get();
+    }
+}
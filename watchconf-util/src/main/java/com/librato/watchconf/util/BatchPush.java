@@ -0,0 +1,328 @@
+package com.librato.watchconf.util;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.librato.watchconf.adapter.zookeeper.ChunkedPayload;
+import com.librato.watchconf.adapter.zookeeper.JsonPatchLog;
+import com.librato.watchconf.converter.Stamp;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.transaction.CuratorOp;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Pushes many files to their znodes over one session. Files are converted, and the znodes they replace read, in
+ * parallel. Znodes whose content would not change, ignoring any {@link Stamp}, are skipped. The rest are written in
+ * ZooKeeper multi-op transactions, each kept under {@code jute.maxbuffer} so the server accepts it. Every
+ * transaction is atomic and checks the znode versions read, so a concurrent edit fails the transaction rather than
+ * being overwritten. A conversion failure aborts the push before anything is written.
+ * <p>
+ * Files too large for a znode are stored as a {@link ChunkedPayload}: their chunks are written before the
+ * transactions, which then replace only the manifest. Each znode written is a full snapshot, so its
+ * {@link JsonPatchLog patches} are deleted afterwards.
+ */
+class BatchPush {
+
+    /**
+     * ZooKeeper's default jute.maxbuffer
+     */
+    static final int DEFAULT_MAX_BUFFER = 0xfffff;
+    /**
+     * allowance for the request header and each operation's type, version and flags
+     */
+    private static final int REQUEST_OVERHEAD = 1024;
+    private static final int OP_OVERHEAD = 64;
+    private static final int THREADS = 16;
+
+    private final CuratorFramework framework;
+    private final ConfigEncoder encoder;
+    private final int maxTransactionBytes;
+    private final int chunkSize;
+
+    /**
+     * @param chunkSize chunk configurations larger than this, 0 to chunk only those too large for a znode
+     */
+    BatchPush(CuratorFramework framework, ConfigEncoder encoder, int chunkSize) {
+        this.framework = framework;
+        this.encoder = encoder;
+        this.maxTransactionBytes = maxBuffer() - REQUEST_OVERHEAD;
+        this.chunkSize = chunkSize;
+    }
+
+    private static int maxBuffer() {
+        return Integer.getInteger("jute.maxbuffer", DEFAULT_MAX_BUFFER);
+    }
+
+    /**
+     * @param data configuration to push
+     * @param chunkSize chunk configurations larger than this, 0 to chunk only those too large for a znode
+     * @return data split into chunks, null if it is written to the znode as is
+     */
+    static ChunkedPayload chunkIfNeeded(byte[] data, int chunkSize) {
+        if (chunkSize > 0) {
+            return data.length > chunkSize ? ChunkedPayload.split(data, chunkSize) : null;
+        }
+        return data.length > maxBuffer() - REQUEST_OVERHEAD ? ChunkedPayload.split(data, ChunkedPayload.DEFAULT_CHUNK_SIZE) : null;
+    }
+
+    /**
+     * Maps every file under a directory to a znode under root, named by the file's path relative to the directory
+     * without its extension, so {@code kafka/producer.yaml} is pushed to {@code <root>/kafka/producer}. Hidden files
+     * are skipped.
+     *
+     * @param dir directory to push
+     * @param root znode to push under
+     * @return znode paths to files, in path order
+     */
+    static Map<String, File> fromDirectory(File dir, String root) throws IOException {
+        if (!dir.isDirectory()) {
+            throw new IOException(dir + " is not a directory");
+        }
+
+        Map<String, File> files = new LinkedHashMap<String, File>();
+        addDirectory(files, dir, root.endsWith("/") ? root.substring(0, root.length() - 1) : root);
+        return files;
+    }
+
+    private static void addDirectory(Map<String, File> files, File dir, String path) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+
+        Arrays.sort(children);
+        for (File child : children) {
+            if (child.isHidden() || child.getName().startsWith(".")) {
+                continue;
+            }
+
+            String name = child.getName();
+            if (child.isDirectory()) {
+                addDirectory(files, child, path + "/" + name);
+            } else {
+                int extension = name.lastIndexOf('.');
+                files.put(path + "/" + (extension > 0 ? name.substring(0, extension) : name), child);
+            }
+        }
+    }
+
+    /**
+     * Reads a manifest of {@code <file> <znode path>} lines. Blank lines and lines starting with # are ignored, and
+     * relative file names are resolved against the manifest's directory.
+     *
+     * @param manifest manifest file
+     * @return znode paths to files, in manifest order
+     */
+    static Map<String, File> fromManifest(File manifest) throws IOException {
+        Map<String, File> files = new LinkedHashMap<String, File>();
+        File baseDir = manifest.getAbsoluteFile().getParentFile();
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(manifest.toPath(), Charsets.UTF_8)) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            String[] fields = line.split("\\s+");
+            if (fields.length != 2 || !fields[1].startsWith("/")) {
+                throw new IOException(manifest + ":" + lineNumber + ": expected <file> <znode path>");
+            }
+
+            File file = new File(fields[0]);
+            if (files.put(fields[1], file.isAbsolute() ? file : new File(baseDir, fields[0])) != null) {
+                throw new IOException(manifest + ":" + lineNumber + ": " + fields[1] + " is listed twice");
+            }
+        }
+        return files;
+    }
+
+    /**
+     * @param files znode paths to the files to push to them
+     * @return the number of znodes written, the rest were unchanged
+     * @throws Exception a file could not be converted, in which case nothing was written, or a transaction failed,
+     * in which case the transactions before it were committed
+     */
+    int push(Map<String, File> files) throws Exception {
+        List<Change> changes = prepare(files);
+        if (changes.isEmpty()) {
+            return 0;
+        }
+
+        for (Change change : changes) {
+            if (change.chunks != null) {
+                change.chunks.writeChunks(framework, change.path);
+                if (change.version < 0) {
+                    // writeChunks created the znode, so it is then updated like an existing one. A znode read
+                    // before keeps the version read, so a concurrent edit still fails the transaction
+                    change.version = framework.checkExists().forPath(change.path).getVersion();
+                }
+            } else if (change.version < 0) {
+                String parent = ZKPaths.getPathAndNode(change.path).getPath();
+                if (!"/".equals(parent)) {
+                    framework.createContainers(parent);
+                }
+            }
+        }
+
+        int written = 0;
+        List<Change> transaction = new ArrayList<Change>();
+        int transactionBytes = 0;
+        for (Change change : changes) {
+            int size = change.size();
+            if (!transaction.isEmpty() && transactionBytes + size > maxTransactionBytes) {
+                written += commit(transaction);
+                transaction.clear();
+                transactionBytes = 0;
+            }
+
+            transaction.add(change);
+            transactionBytes += size;
+        }
+        written += commit(transaction);
+        return written;
+    }
+
+    /**
+     * Commits the changes in one transaction, then deletes the chunks and patches they retired, so the znodes of
+     * transactions committed before a failing one are cleaned up too.
+     *
+     * @return the number of znodes written
+     */
+    private int commit(List<Change> transaction) throws Exception {
+        List<CuratorOp> ops = new ArrayList<CuratorOp>();
+        for (Change change : transaction) {
+            ops.add(change.version < 0
+                    ? framework.transactionOp().create().forPath(change.path, change.data)
+                    : framework.transactionOp().setData().withVersion(change.version).forPath(change.path, change.data));
+        }
+        framework.transaction().forOperations(ops);
+        System.out.println("Committed " + ops.size() + " znodes");
+
+        for (Change change : transaction) {
+            if (change.chunks != null || change.hasChildren) {
+                ChunkedPayload.deleteUnreferenced(framework, change.path, change.data);
+                JsonPatchLog.deletePatches(framework, change.path);
+            }
+        }
+        return ops.size();
+    }
+
+    /**
+     * Converts the files and reads their znodes in parallel.
+     *
+     * @return the znodes to write, in the order of files
+     */
+    private List<Change> prepare(Map<String, File> files) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(THREADS, files.size())),
+                new ThreadFactoryBuilder().setNameFormat("watchconf-push-%d").setDaemon(true).build());
+        try {
+            List<Future<Change>> futures = new ArrayList<Future<Change>>();
+            for (final Map.Entry<String, File> entry : files.entrySet()) {
+                futures.add(executor.submit(new Callable<Change>() {
+                    public Change call() throws Exception {
+                        return prepare(entry.getKey(), entry.getValue());
+                    }
+                }));
+            }
+
+            List<Change> changes = new ArrayList<Change>();
+            for (Future<Change> future : futures) {
+                Change change;
+                try {
+                    change = future.get();
+                } catch (ExecutionException ex) {
+                    throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+                }
+
+                if (change != null) {
+                    changes.add(change);
+                }
+            }
+            return changes;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the change to path, null if its content would not change
+     */
+    private Change prepare(String path, File file) throws Exception {
+        byte[] data = encoder.encode(file);
+        ChunkedPayload chunks = chunkIfNeeded(data, chunkSize);
+        if (chunks != null) {
+            data = chunks.getManifest();
+        }
+
+        Stat stat = new Stat();
+        byte[] current;
+        try {
+            current = framework.getData().storingStatIn(stat).forPath(path);
+        } catch (KeeperException.NoNodeException ex) {
+            return new Change(path, data, -1, chunks, false);
+        }
+
+        // a manifest references chunks by content hash, so identical manifests mean identical content. Patches
+        // mean the configuration differs from the snapshot, so it is rewritten
+        boolean hasChildren = stat.getNumChildren() > 0;
+        if (current != null && Arrays.equals(Stamp.strip(current), Stamp.strip(data)) && !(hasChildren && hasPatches(path))) {
+            System.out.println("Unchanged " + path);
+            return null;
+        }
+        return new Change(path, data, stat.getVersion(), chunks, hasChildren);
+    }
+
+    private boolean hasPatches(String path) throws Exception {
+        for (String child : framework.getChildren().forPath(path)) {
+            if (JsonPatchLog.isPatch(child)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class Change {
+        private final String path;
+        private final byte[] data;
+        /**
+         * version of the znode read, -1 if it does not exist
+         */
+        private int version;
+        /**
+         * chunks data is the manifest of, null if data is written as is
+         */
+        private final ChunkedPayload chunks;
+        /**
+         * true if the znode has chunks or patches that may need deleting
+         */
+        private final boolean hasChildren;
+
+        Change(String path, byte[] data, int version, ChunkedPayload chunks, boolean hasChildren) {
+            this.path = path;
+            this.data = data;
+            this.version = version;
+            this.chunks = chunks;
+            this.hasChildren = hasChildren;
+        }
+
+        int size() {
+            return data.length + path.getBytes(Charsets.UTF_8).length + OP_OVERHEAD;
+        }
+    }
+}
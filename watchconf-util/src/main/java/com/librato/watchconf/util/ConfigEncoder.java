@@ -0,0 +1,76 @@
+package com.librato.watchconf.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.librato.watchconf.converter.Compression;
+import com.librato.watchconf.converter.Format;
+import com.librato.watchconf.converter.Stamp;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Converts an input file to the bytes written to a znode: re-encoded in the output format, optionally validated
+ * against a class, compressed and stamped. Safe to use from several threads.
+ */
+class ConfigEncoder {
+
+    private final Format inputFormat;
+    private final Format outputFormat;
+    private final Class<?> validationClass;
+    private final Compression compression;
+    private final Stamp stamp;
+
+    /**
+     * @param inputFormat format of the input files
+     * @param outputFormat format to write
+     * @param validationClass class the output must bind to, null to skip validation
+     * @param compression compression to apply, null for none
+     * @param stamp stamp to prefix the output with, null for none
+     */
+    ConfigEncoder(Format inputFormat, Format outputFormat, Class<?> validationClass, Compression compression, Stamp stamp) {
+        this.inputFormat = inputFormat;
+        this.outputFormat = outputFormat;
+        this.validationClass = validationClass;
+        this.compression = compression;
+        this.stamp = stamp;
+    }
+
+    /**
+     * @param file input file
+     * @return bytes to write to the znode
+     * @throws InvalidConfigException the output does not bind to the validation class
+     * @throws IOException the file cannot be read or parsed
+     */
+    byte[] encode(File file) throws IOException {
+        JsonNode jsonNode = inputFormat.newObjectMapper().readTree(file);
+        byte[] outputBytes = outputFormat == Format.JSON
+                ? jsonNode.toString().getBytes()
+                : outputFormat.newObjectMapper().writeValueAsBytes(jsonNode);
+
+        if (validationClass != null) {
+            try {
+                outputFormat.newObjectMapper().readValue(outputBytes, validationClass);
+            } catch (Exception ex) {
+                throw new InvalidConfigException("error converting " + file + " to class: " + validationClass.getName(), ex);
+            }
+        }
+
+        if (compression != null) {
+            outputBytes = compression.compress(outputBytes);
+        }
+
+        if (stamp != null) {
+            outputBytes = stamp.apply(outputBytes);
+        }
+        return outputBytes;
+    }
+
+    /**
+     * An input file that parses but does not bind to the validation class.
+     */
+    static class InvalidConfigException extends IOException {
+        InvalidConfigException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
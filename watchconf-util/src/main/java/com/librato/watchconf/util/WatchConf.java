@@ -1,22 +1,22 @@
 package com.librato.watchconf.util;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import com.google.common.collect.ImmutableMap;
+import com.librato.watchconf.adapter.zookeeper.ChunkedPayload;
+import com.librato.watchconf.adapter.zookeeper.JsonPatchLog;
+import com.librato.watchconf.converter.Compression;
+import com.librato.watchconf.converter.Format;
+import com.librato.watchconf.converter.Stamp;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.Map;
 
 public class WatchConf {
 
     public static void main(String[] args) throws Exception {
-        if (args.length < 10) {
+        if (args.length < 8) {
             printHelp();
             return;
         }
@@ -35,18 +35,73 @@ public class WatchConf {
         Map<String, String> argMap = builder.build();
 
         String zkServer = argMap.get("-zkServer");
-        String format = argMap.get("-format");
+        Format format = Format.fromName(argMap.get("-format"));
         String fileName = argMap.get("-f");
-        String output = argMap.get("-o");
+        String dirName = argMap.get("-dir");
+        String manifestName = argMap.get("-manifest");
+        Format output = Format.fromName(argMap.get("-o"));
         String path = argMap.get("-z");
-        if (zkServer == null || format == null || fileName == null || output == null || path == null) {
+        boolean batch = dirName != null || manifestName != null;
+        if (zkServer == null || format == null || output == null
+                || (batch ? dirName != null && (manifestName != null || path == null) : fileName == null || path == null)) {
             printHelp();
             return;
         }
 
+        String className = argMap.get("-c");
+        Class clazz = className == null ? null : Class.forName(className);
+
+        Compression compression = null;
+        String compressionName = argMap.get("-compress");
+        if (compressionName != null) {
+            compression = Compression.fromName(compressionName);
+            if (compression == null) {
+                printHelp();
+                return;
+            }
+        }
+
+        Stamp stamp = null;
+        String stampVersion = argMap.get("-stamp");
+        if (stampVersion != null) {
+            long now = System.currentTimeMillis();
+            try {
+                stamp = new Stamp("auto".equals(stampVersion) ? now : Long.parseLong(stampVersion), now);
+            } catch (NumberFormatException ex) {
+                printHelp();
+                return;
+            }
+        }
+
+        int chunkSize = 0;
+        String chunkSizeName = argMap.get("-chunkSize");
+        if (chunkSizeName != null) {
+            try {
+                chunkSize = Integer.parseInt(chunkSizeName);
+            } catch (NumberFormatException ex) {
+                chunkSize = -1;
+            }
+            if (chunkSize <= 0) {
+                printHelp();
+                return;
+            }
+        }
 
-        JsonNode jsonNode = getJsonNode(new File(fileName), format);
+        int maxPatches = 0;
+        String maxPatchesName = argMap.get("-patch");
+        if (maxPatchesName != null) {
+            try {
+                maxPatches = Integer.parseInt(maxPatchesName);
+            } catch (NumberFormatException ex) {
+                maxPatches = -1;
+            }
+            if (maxPatches <= 0 || batch) {
+                printHelp();
+                return;
+            }
+        }
 
+        ConfigEncoder encoder = new ConfigEncoder(format, output, clazz, compression, stamp);
         CuratorFramework framework = CuratorFrameworkFactory.builder()
                 .connectionTimeoutMs(1000)
                 .connectString(zkServer)
@@ -54,27 +109,58 @@ public class WatchConf {
                 .build();
         framework.start();
 
-        byte[] outputBytes = getOutputBytes(output, jsonNode);
-
-        String className = argMap.get("-c");
-        if (className != null) {
-            Class clazz = Class.forName(className);
-            ObjectMapper objectMapper = new ObjectMapper();
-            try {
-                objectMapper.readValue(outputBytes, clazz);
-            } catch (Exception ex) {
-                ex.printStackTrace(System.err);
-                System.out.println("error converting data to class: " + className + " please fix input error before continuing");
-                return;
+        try {
+            if (batch) {
+                pushBatch(framework, encoder, chunkSize, dirName != null
+                        ? BatchPush.fromDirectory(new File(dirName), path)
+                        : BatchPush.fromManifest(new File(manifestName)));
+            } else {
+                pushFile(framework, encoder, chunkSize, maxPatches, new File(fileName), path);
+            }
+            if (stamp != null) {
+                System.out.println("Stamped configuration with version " + stamp.getVersion());
             }
+        } finally {
+            framework.close();
         }
+    }
 
+    private static void pushFile(CuratorFramework framework, ConfigEncoder encoder, int chunkSize, int maxPatches, File file, String path) throws Exception {
+        byte[] outputBytes;
         try {
+            outputBytes = encoder.encode(file);
+        } catch (ConfigEncoder.InvalidConfigException ex) {
+            ex.getCause().printStackTrace(System.err);
+            System.out.println(ex.getMessage() + " please fix input error before continuing");
+            return;
+        }
+
+        try {
+            if (maxPatches > 0) {
+                JsonPatchLog.Result result = JsonPatchLog.publish(framework, path, outputBytes, maxPatches);
+                if (result == JsonPatchLog.Result.UNCHANGED) {
+                    System.out.println("Configuration unchanged");
+                    return;
+                } else if (result == JsonPatchLog.Result.PATCHED) {
+                    System.out.println("Successfully deployed configuration as a patch");
+                    return;
+                }
+            }
+
+            ChunkedPayload chunks = BatchPush.chunkIfNeeded(outputBytes, chunkSize);
+            if (chunks != null) {
+                chunks.writeChunks(framework, path);
+                outputBytes = chunks.getManifest();
+                System.out.println("Wrote configuration as " + chunks.getHashes().size() + " chunks");
+            }
+
             if (framework.checkExists().forPath(path) == null) {
                 framework.create().creatingParentsIfNeeded().forPath(path, outputBytes);
             } else {
                 framework.setData().forPath(path, outputBytes);
             }
+            ChunkedPayload.deleteUnreferenced(framework, path, outputBytes);
+            JsonPatchLog.deletePatches(framework, path);
             System.out.println("Successfully deployed configuration");
         } catch (Exception ex) {
             System.out.println("Error deploying config");
@@ -82,39 +168,31 @@ public class WatchConf {
         }
     }
 
-    private static byte[] getOutputBytes(String output, JsonNode jsonNode) throws JsonProcessingException {
-        if ("yaml".equals(output)) {
-            ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
-            return mapper.writeValueAsBytes(jsonNode);
-        } else if ("json".equals(output)) {
-            return jsonNode.toString().getBytes();
-        } else {
-            printHelp();
-            System.exit(1);
-            return null;
-        }
-    }
-
-    private static JsonNode getJsonNode(File file, String format) throws IOException {
-        if ("yaml".equals(format)) {
-            ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
-            return mapper.readTree(file);
-        } else if ("json".equals(format)) {
-            ObjectMapper mapper = new ObjectMapper();
-            return mapper.readTree(file);
-        } else {
-            printHelp();
-            System.exit(1);
-            return null;
+    private static void pushBatch(CuratorFramework framework, ConfigEncoder encoder, int chunkSize, Map<String, File> files) {
+        try {
+            int written = new BatchPush(framework, encoder, chunkSize).push(files);
+            System.out.println("Successfully deployed " + written + " configurations, " + (files.size() - written) + " unchanged");
+        } catch (ConfigEncoder.InvalidConfigException ex) {
+            ex.getCause().printStackTrace(System.err);
+            System.out.println(ex.getMessage() + " please fix input error before continuing, nothing was deployed");
+        } catch (Exception ex) {
+            System.out.println("Error deploying config, transactions before the failure were committed");
+            ex.printStackTrace(System.err);
         }
     }
 
     private static void printHelp() {
         System.out.println("watchconf: Must specify -zkServer <host:port> and additional required flags");
-        System.out.println("-format [yaml|json]: input file format");
+        System.out.println("-format [yaml|json|smile|cbor]: input file format");
         System.out.println("-f <file>: input file to read from");
-        System.out.println("-o [yaml|json]: format of data to output to znode");
-        System.out.println("-z full path to znode to update, will create parents and node doesn't exist");
+        System.out.println("-dir <directory>: push every file under directory to a znode under -z, named by its relative path without extension");
+        System.out.println("-manifest <file>: push the files listed in manifest, one \"<file> <znode path>\" per line");
+        System.out.println("-o [yaml|json|smile|cbor]: format of data to output to znode");
+        System.out.println("-z full path to znode to update, will create parents and node doesn't exist. With -dir, the znode to push under");
         System.out.println("-c (Optional) name of class to validate JSON against before pushing");
+        System.out.println("-compress [none|gzip] (Optional) compress data written to znode, read it with a CompressingConverter");
+        System.out.println("-chunkSize <bytes> (Optional) store configurations larger than this as a manifest and content-addressed chunks, by default only those too large for a znode are chunked");
+        System.out.println("-patch <max patches> (Optional) publish the change as a JSON Patch against the current configuration, writing the whole configuration once there are max patches or the patch is not smaller. Not supported with -dir or -manifest");
+        System.out.println("-stamp [auto|<version>] (Optional) prefix data with a version and push time so readers can report propagation latency, auto uses the current time as the version");
     }
 }